@@ -8,6 +8,7 @@ DROP TABLE IF EXISTS warc;
 DROP TABLE IF EXISTS schedule;
 DROP TABLE IF EXISTS session;
 DROP TABLE IF EXISTS screenshot_cache;
+DROP TABLE IF EXISTS analysis_cache;
 
 CREATE TABLE crawl_policy
 (
@@ -27,9 +28,14 @@ CREATE TABLE origin
     next_visit         BIGINT,
     robots_crawl_delay SMALLINT,
     robots_txt         BLOB,
+    delay_millis       BIGINT,
+    response_millis    BIGINT,
     FOREIGN KEY (crawl_policy_id) REFERENCES crawl_policy
 );
 
+-- index for cdx host queries
+create index origin_origin_index on origin (origin);
+
 CREATE TABLE location_type
 (
     id TINYINT NOT NULL PRIMARY KEY,
@@ -58,6 +64,10 @@ CREATE TABLE location
 create index location_next_visit_index
     on location (origin_id, next_visit, path_id);
 
+-- index for cdx prefix queries
+create index location_path_index
+    on location (origin_id, path);
+
 CREATE TABLE sitemap_entry
 (
     origin_id         BIGINT NOT NULL,
@@ -128,6 +138,8 @@ CREATE TABLE visit
     response_length         BIGINT     NOT NULL,
     response_payload_digest BINARY(8)  NULL,
     revisit_of_date         BIGINT     NULL,
+    timings                 VARBINARY(64) NULL,
+    truncated               VARCHAR(16) NULL,
     PRIMARY KEY (origin_id, path_id, date),
     FOREIGN KEY (origin_id, path_id) REFERENCES location ON DELETE CASCADE,
     FOREIGN KEY (method_id) REFERENCES method,
@@ -138,6 +150,9 @@ CREATE TABLE visit
 -- index for crawl log
 create index visit_date_index on visit (date);
 
+-- index for recent timings of an origin
+create index visit_origin_date_index on visit (origin_id, date);
+
 CREATE TABLE session
 (
     id         VARCHAR(30)  NOT NULL PRIMARY KEY,
@@ -147,14 +162,18 @@ CREATE TABLE session
     expiry     BIGINT    NOT NULL
 );
 
-CREATE TABLE screenshot_cache
+CREATE TABLE analysis_cache
 (
-    origin_id  BIGINT    NOT NULL,
-    path_id    BIGINT    NOT NULL,
-    date       BIGINT NOT NULL,
-    screenshot BLOB      NOT NULL,
-    PRIMARY KEY (origin_id, path_id, date),
-    FOREIGN KEY (origin_id, path_id, date) REFERENCES visit ON DELETE CASCADE
+    origin_id      BIGINT        NOT NULL,
+    path_id        BIGINT        NOT NULL,
+    payload_digest BINARY(8)     NOT NULL,
+    date           BIGINT        NOT NULL,
+    title          VARCHAR(4000) NULL,
+    has_script     BOOLEAN       NOT NULL,
+    resources      BLOB          NOT NULL,
+    links          BLOB          NOT NULL,
+    PRIMARY KEY (origin_id, path_id),
+    FOREIGN KEY (origin_id, path_id) REFERENCES location ON DELETE CASCADE
 );
 
 CREATE TABLE schedule
@@ -13,14 +13,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.css.sac.*;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.StringReader;
-import java.io.UncheckedIOException;
+import java.io.*;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -30,6 +30,7 @@ public class Analysis {
     private static final Logger log = LoggerFactory.getLogger(Analysis.class);
     private static final Pattern SRCSET = Pattern.compile("[\\s,]*(\\S*[^,\\s])(?:\\s(?:[^,(]+|\\([^)]*(?:\\)|$))*)?", Pattern.MULTILINE);
     private static final Pattern META_REFRESH = Pattern.compile("\\d+\\s*;\\s*url=['\"]?(.*?)['\"]?");
+    private static final Pattern META_CHARSET = Pattern.compile("<meta[^>]+charset\\s*=\\s*[\"']?\\s*([-\\w.:]+)", Pattern.CASE_INSENSITIVE);
     private static final boolean extraAttrs = true;
     static final MediaType CSS = MediaType.parse("text/css");
 
@@ -40,6 +41,14 @@ public class Analysis {
     public String title;
     public byte[] screenshot;
     public boolean hasScript;
+    /**
+     * True if the results were loaded from the analysis cache rather than by parsing and browsing.
+     */
+    public boolean cached;
+    /**
+     * HTML responses with a record larger than this are parsed with the streaming tokenizer rather than a DOM.
+     */
+    long htmlStreamingThreshold = Long.MAX_VALUE;
 
     public Analysis(Location location, Instant visitDate) {
         this.location = location;
@@ -47,13 +56,44 @@ public class Analysis {
     }
 
     public Analysis(Crawl crawl, Location location, Instant date, boolean recordMode) throws IOException {
+        this(crawl, location, date, recordMode, crawl.config.analysisCache);
+    }
+
+    /**
+     * Analyses a visit. If useCache is true and a previous analysis of the same location and payload digest exists
+     * its results are reused instead of parsing and browsing the page again.
+     */
+    public Analysis(Crawl crawl, Location location, Instant date, boolean recordMode, boolean useCache) throws IOException {
         this.location = location;
         visitDate = date;
+        htmlStreamingThreshold = crawl.config.htmlStreamingThresholdBytes;
         Visit visit = crawl.db.visits.find(location.originId, location.pathId, date);
+        byte[] digest = visit.responsePayloadDigest;
+        if (useCache && digest != null) {
+            var entry = crawl.db.analysisCache.find(location.originId, location.pathId, digest);
+            if (entry != null) {
+                try {
+                    loadCached(entry);
+                    cached = true;
+                    return;
+                } catch (IOException e) {
+                    log.warn("Ignoring corrupt analysis cache entry for {}", location.url(), e);
+                    resourceMap.clear();
+                    links.clear();
+                    title = null;
+                    hasScript = false;
+                }
+            }
+        }
         crawl.storage.readResponse(visit, this::parsePayload);
         if (hasScript) {
             browse(crawl, recordMode);
         }
+        if (crawl.config.analysisCache && digest != null) {
+            crawl.db.analysisCache.insertOrReplace(location.originId, location.pathId, digest, date,
+                    title == null || title.length() <= 4000 ? title : title.substring(0, 4000), hasScript,
+                    encodeResources(), encodeLinks());
+        }
     }
 
     public void addResource(String method, Url url, ResourceType type, Visit visit, String analyser) {
@@ -76,6 +116,68 @@ public class Analysis {
         return Collections.unmodifiableCollection(links);
     }
 
+    private byte[] encodeResources() throws IOException {
+        var buffer = new ByteArrayOutputStream();
+        var out = new DataOutputStream(buffer);
+        out.writeInt(resourceMap.size());
+        for (Resource resource : resourceMap.values()) {
+            writeString(out, resource.method);
+            writeString(out, resource.url.toString());
+            writeString(out, resource.type.name());
+            out.writeInt(resource.analysers.size());
+            for (String analyser : resource.analysers) {
+                writeString(out, analyser);
+            }
+        }
+        return buffer.toByteArray();
+    }
+
+    private byte[] encodeLinks() throws IOException {
+        var buffer = new ByteArrayOutputStream();
+        var out = new DataOutputStream(buffer);
+        out.writeInt(links.size());
+        for (Url link : links) {
+            writeString(out, link.toString());
+        }
+        return buffer.toByteArray();
+    }
+
+    private void loadCached(Database.CachedAnalysis entry) throws IOException {
+        title = entry.title;
+        hasScript = entry.hasScript;
+        var in = new DataInputStream(new ByteArrayInputStream(entry.resources));
+        for (int i = in.readInt(); i > 0; i--) {
+            String method = readString(in);
+            Url url = new Url(readString(in));
+            ResourceType type = ResourceType.valueOf(readString(in));
+            int analyserCount = in.readInt();
+            if (analyserCount < 1) throw new IOException("resource without analyser");
+            Resource resource = new Resource(method, url, type, null, readString(in));
+            for (int j = 1; j < analyserCount; j++) {
+                resource.analysers.add(readString(in));
+            }
+            resourceMap.putIfAbsent(url.ssurt(), resource);
+        }
+        in = new DataInputStream(new ByteArrayInputStream(entry.links));
+        for (int i = in.readInt(); i > 0; i--) {
+            links.add(new Url(readString(in)));
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) throw new IOException("bad string length " + length);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
     public String screenshotDataUrl() {
         return Util.makeJpegDataUrl(screenshot);
     }
@@ -103,22 +205,22 @@ public class Analysis {
     }
 
     void browse(Crawl crawl, boolean recordMode) {
-        log.warn("Browsing {}", location.url);
+        log.warn("Browsing {}", location.url());
         try (Browser.Tab tab = crawl.browser().createTab()) {
             if (crawl.config.scriptDeterminism) tab.overrideDateAndRandom(visitDate);
             tab.interceptRequests(request -> onRequestIntercepted(request, crawl, recordMode));
             try {
-                tab.navigate(location.url.toString()).get(15, TimeUnit.SECONDS);
+                tab.navigate(location.url().toString()).get(15, TimeUnit.SECONDS);
             } catch (InterruptedException e) {
                 throw new RuntimeException(e);
             } catch (ExecutionException e) {
                 if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
                 throw new RuntimeException(e.getCause());
             } catch (TimeoutException e) {
-                log.warn("Timed out waiting for page load {}", location.url);
+                log.warn("Timed out waiting for page load {}", location.url());
             }
 
-            screenshot = tab.screenshot();
+            screenshot = tab.thumbnail(crawl.config.screenshotWidth, crawl.config.screenshotQuality);
 
             tab.scrollDown();
 
@@ -130,8 +232,14 @@ public class Analysis {
     private void onRequestIntercepted(Browser.Request request, Crawl crawl, boolean recordMode) {
         try {
             Url subUrl = new Url(request.url());
-            Visit subvisit = crawl.db.visits.findClosest(subUrl.originId(), subUrl.pathId(), visitDate, request.method());
             ResourceType type = ResourceType.valueOf(request.resourceType);
+            ResponseCache.Entry cached = crawl.responseCache.get(subUrl, request.method(), visitDate);
+            if (cached != null) {
+                addResource(request.method(), subUrl, type, cached.visit, "browser");
+                fulfill(request, cached);
+                return;
+            }
+            Visit subvisit = crawl.db.visits.findClosest(subUrl.originId(), subUrl.pathId(), visitDate, request.method());
             addResource(request.method(), subUrl, type, subvisit, "browser");
             if (subvisit == null) {
                 if (!recordMode) {
@@ -159,13 +267,35 @@ public class Analysis {
             if (subvisit.status < 0) {
                 request.fail("Failed");
             } else {
-                crawl.storage.readResponse(subvisit, (rec, rsp) -> request.fulfill(rsp));
+                Storage.StoredResponse stored = crawl.storage.openResponse(subvisit);
+                ResponseCache.Entry entry;
+                try {
+                    entry = crawl.responseCache.put(subUrl, request.method(), visitDate, subvisit, stored.response);
+                } catch (IOException | RuntimeException e) {
+                    stored.close();
+                    throw e;
+                }
+                if (entry != null) {
+                    stored.close();
+                    fulfill(request, entry);
+                } else {
+                    // large bodies are streamed to the browser after we return so the request takes over the file
+                    request.fulfill(stored.response, stored);
+                }
             }
         } catch (IOException e) {
             request.fail("Failed");
         }
     }
 
+    private static void fulfill(Browser.Request request, ResponseCache.Entry entry) {
+        try {
+            request.fulfill(entry.status, entry.reason, entry.headers, entry.body());
+        } catch (Browser.ErrorException e) {
+            if (!e.getMessage().endsWith("Invalid InterceptionId.")) throw e;
+        }
+    }
+
     public void parseHtml(InputStream stream, String charset, String url) throws IOException {
         if (charset != null && !Charset.isSupported(charset)) charset = null;
         Document doc = Jsoup.parse(stream, charset, url);
@@ -174,77 +304,10 @@ public class Analysis {
             public void head(Node node, int depth) {
                 if (!(node instanceof Element)) return;
                 Element element = (Element) node;
-                String style = node.attr("style");
-                if (!style.isBlank()) {
-                    parseStyleAttribute(style, node.baseUri());
-                }
-                switch (element.tagName()) {
-                    case "a":
-                    case "area":
-                        addLink(node.attr("abs:href"));
-                        break;
-                    case "audio":
-                    case "track":
-                        addResource(node.attr("abs:src"), ResourceType.Media);
-                        break;
-                    case "command":
-                        addResource(node.attr("abs:icon"), ResourceType.Image);
-                        break;
-                    case "frame":
-                        addResource(node.attr("abs:src"), ResourceType.Document);
-                        break;
-                    case "img":
-                    case "source":
-                        ResourceType type = ResourceType.Image;
-                        if (element.tagName().equals("source") && element.parent() != null) {
-                            String parentTag = element.parent().tagName();
-                            if (parentTag.equals("audio") || parentTag.equals("video")) {
-                                type = ResourceType.Media;
-                            }
-                        }
-                        addResource(node.attr("abs:src"), type);
-                        for (Matcher m = SRCSET.matcher(node.attr("srcset")); m.lookingAt(); m.region(m.end(), m.regionEnd())) {
-                            addResource(StringUtil.resolve(node.baseUri(), m.group(1)), ResourceType.Image);
-                        }
-                        if (extraAttrs) {
-                            addResource(node.attr("abs:data-src"), type);
-                            for (Matcher m = SRCSET.matcher(node.attr("data-srcset")); m.lookingAt(); m.region(m.end(), m.regionEnd())) {
-                                addResource(StringUtil.resolve(node.baseUri(), m.group(1)), ResourceType.Image);
-                            }
-                        }
-
-                        break;
-                    case "link":
-                        if ("stylesheet".equalsIgnoreCase(node.attr("rel"))) {
-                            addResource(node.attr("abs:href"), ResourceType.Stylesheet);
-                        }
-                        break;
-                    case "meta":
-                        if (node.attr("http-equiv").equalsIgnoreCase("refresh")) {
-                            Matcher m = META_REFRESH.matcher(node.attr("content"));
-                            if (m.matches()) {
-                                addResource(StringUtil.resolve(node.baseUri(), m.group(1)), ResourceType.Document);
-                            }
-                        }
-                        break;
-                    case "input":
-                        addResource(node.attr("abs:src"), ResourceType.Image);
-                        break;
-                    case "script":
-                        hasScript = true;
-                        addResource(node.attr("abs:src"), ResourceType.Script);
-                        break;
-                    case "style":
-                        parseStyleSheet(element.html(), url);
-                        break;
-                    case "title":
-                        if (title == null) title = element.text();
-                        break;
-                    case "video":
-                        addResource(node.attr("abs:poster"), ResourceType.Image);
-                        addResource(node.attr("abs:src"), ResourceType.Media);
-                        break;
-                }
+                Element parent = element.parent();
+                analyseElement(element.tagName(), name -> element.hasAttr(name) ? element.attr(name) : null,
+                        parent == null ? null : parent.tagName(), node.baseUri(), url,
+                        () -> element.tagName().equals("style") ? element.html() : element.text());
             }
 
             @Override
@@ -253,24 +316,205 @@ public class Analysis {
         });
     }
 
+    /**
+     * Like {@link #parseHtml(InputStream, String, String)} but scans the page with {@link HtmlTokenizer} instead of
+     * building a DOM. Use for large pages where the DOM would be too expensive.
+     */
+    public void parseHtmlStreaming(InputStream stream, String charset, String url) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(stream);
+        Charset cs = charset != null && Charset.isSupported(charset) ? Charset.forName(charset) : sniffCharset(buffered);
+        new HtmlTokenizer(new InputStreamReader(buffered, cs), new HtmlTokenizer.Handler() {
+            private final Deque<String> mediaElements = new ArrayDeque<>();
+            private String baseUri = url;
+            private boolean seenBase;
+
+            @Override
+            public void startTag(String name, Map<String, String> attributes, String text) {
+                if (name.equals("base") && !seenBase && attributes.containsKey("href")) {
+                    seenBase = true;
+                    String href = StringUtil.resolve(url, attributes.get("href"));
+                    if (!href.isEmpty()) baseUri = href;
+                }
+                analyseElement(name, attributes::get, mediaElements.peek(), baseUri, url, () -> text);
+                if (isMediaContainer(name)) mediaElements.push(name);
+            }
+
+            @Override
+            public void endTag(String name) {
+                if (isMediaContainer(name) && mediaElements.contains(name)) {
+                    while (!mediaElements.pop().equals(name)) ;
+                }
+            }
+
+            private boolean isMediaContainer(String name) {
+                return name.equals("audio") || name.equals("video") || name.equals("picture");
+            }
+        }).run();
+    }
+
+    private static Charset sniffCharset(BufferedInputStream stream) throws IOException {
+        stream.mark(1024);
+        byte[] head = stream.readNBytes(1024);
+        stream.reset();
+        if (head.length >= 2 && (head[0] == (byte) 0xfe && head[1] == (byte) 0xff ||
+                head[0] == (byte) 0xff && head[1] == (byte) 0xfe)) {
+            return StandardCharsets.UTF_16;
+        }
+        Matcher m = META_CHARSET.matcher(new String(head, StandardCharsets.ISO_8859_1));
+        if (m.find()) {
+            try {
+                return Charset.forName(m.group(1));
+            } catch (IllegalArgumentException e) {
+                // unknown charset, fall through to the default
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+
+    /**
+     * The tag switch shared by the DOM and streaming parsers.
+     *
+     * @param attrs returns an attribute's value or null if it's absent
+     * @param text supplies the element's content, only called for style and title
+     */
+    private void analyseElement(String tagName, Function<String, String> attrs, String parentTag, String baseUri,
+                                String url, Supplier<String> text) {
+        String style = attrs.apply("style");
+        if (style != null && !style.isBlank()) {
+            parseStyleAttribute(style, baseUri);
+        }
+        switch (tagName) {
+            case "a":
+            case "area":
+                addLink(abs(attrs, "href", baseUri));
+                break;
+            case "audio":
+            case "track":
+                addResource(abs(attrs, "src", baseUri), ResourceType.Media);
+                break;
+            case "command":
+                addResource(abs(attrs, "icon", baseUri), ResourceType.Image);
+                break;
+            case "frame":
+                addResource(abs(attrs, "src", baseUri), ResourceType.Document);
+                break;
+            case "img":
+            case "source":
+                ResourceType type = ResourceType.Image;
+                if (tagName.equals("source") && ("audio".equals(parentTag) || "video".equals(parentTag))) {
+                    type = ResourceType.Media;
+                }
+                addResource(abs(attrs, "src", baseUri), type);
+                addSrcset(attrs.apply("srcset"), baseUri);
+                if (extraAttrs) {
+                    addResource(abs(attrs, "data-src", baseUri), type);
+                    addSrcset(attrs.apply("data-srcset"), baseUri);
+                }
+                break;
+            case "link":
+                if ("stylesheet".equalsIgnoreCase(attrs.apply("rel"))) {
+                    addResource(abs(attrs, "href", baseUri), ResourceType.Stylesheet);
+                }
+                break;
+            case "meta":
+                if ("refresh".equalsIgnoreCase(attrs.apply("http-equiv"))) {
+                    String content = attrs.apply("content");
+                    Matcher m = META_REFRESH.matcher(content == null ? "" : content);
+                    if (m.matches()) {
+                        addResource(StringUtil.resolve(baseUri, m.group(1)), ResourceType.Document);
+                    }
+                }
+                break;
+            case "input":
+                addResource(abs(attrs, "src", baseUri), ResourceType.Image);
+                break;
+            case "script":
+                hasScript = true;
+                addResource(abs(attrs, "src", baseUri), ResourceType.Script);
+                break;
+            case "style":
+                String css = text.get();
+                if (css != null) parseStyleSheet(css, url);
+                break;
+            case "title":
+                if (title == null) title = text.get();
+                break;
+            case "video":
+                addResource(abs(attrs, "poster", baseUri), ResourceType.Image);
+                addResource(abs(attrs, "src", baseUri), ResourceType.Media);
+                break;
+        }
+    }
+
+    private static String abs(Function<String, String> attrs, String name, String baseUri) {
+        String value = attrs.apply(name);
+        return value == null ? "" : StringUtil.resolve(baseUri, value);
+    }
+
+    private void addSrcset(String srcset, String baseUri) {
+        if (srcset == null) return;
+        for (Matcher m = SRCSET.matcher(srcset); m.lookingAt(); m.region(m.end(), m.regionEnd())) {
+            addResource(StringUtil.resolve(baseUri, m.group(1)), ResourceType.Image);
+        }
+    }
+
     private void addLink(String url) {
         if (url.isBlank()) return;
-        url = StringUtil.resolve(location.url.toString(), url);
+        url = StringUtil.resolve(location.url().toString(), url);
         addLink(new Url(url));
     }
 
+    /**
+     * Extracts references from a stylesheet with {@link CssScanner}, only resorting to the full SAC parser if the
+     * scanner fails. Resources are deduplicated so any the scanner found before failing aren't added twice.
+     */
     private void parseStyleSheet(String value, String baseUrl) {
-        InputSource source = new InputSource();
-        source.setURI(baseUrl);
-        source.setCharacterStream(new StringReader(value));
-        parseStyleSheet(source, baseUrl);
+        try {
+            CssScanner.scan(value, (url, type) -> addResource(StringUtil.resolve(baseUrl, url), type));
+        } catch (RuntimeException e) {
+            log.debug("Scanning stylesheet {} failed, falling back to SAC parser", baseUrl, e);
+            InputSource source = new InputSource();
+            source.setURI(baseUrl);
+            source.setCharacterStream(new StringReader(value));
+            parseStyleSheet(source, baseUrl);
+        }
     }
 
-    private void parseStyleSheet(InputStream stream, String baseUrl) {
-        InputSource source = new InputSource();
-        source.setURI(baseUrl);
-        source.setByteStream(stream);
-        parseStyleSheet(source, baseUrl);
+    private void parseStyleSheet(InputStream stream, String charset, String baseUrl) throws IOException {
+        byte[] bytes = stream.readAllBytes();
+        Charset cs = styleSheetCharset(bytes, charset);
+        int offset = cs == StandardCharsets.UTF_8 && hasUtf8Bom(bytes) ? 3 : 0;
+        parseStyleSheet(new String(bytes, offset, bytes.length - offset, cs), baseUrl);
+    }
+
+    /**
+     * Picks a stylesheet's encoding the way browsers do: a byte order mark, then the HTTP charset, then an @charset
+     * rule at the very start, falling back to UTF-8.
+     */
+    static Charset styleSheetCharset(byte[] bytes, String httpCharset) {
+        if (hasUtf8Bom(bytes)) return StandardCharsets.UTF_8;
+        if (bytes.length >= 2 && (bytes[0] == (byte) 0xfe && bytes[1] == (byte) 0xff ||
+                bytes[0] == (byte) 0xff && bytes[1] == (byte) 0xfe)) {
+            return StandardCharsets.UTF_16;
+        }
+        if (httpCharset != null && Charset.isSupported(httpCharset)) return Charset.forName(httpCharset);
+        String head = new String(bytes, 0, Math.min(bytes.length, 1024), StandardCharsets.ISO_8859_1);
+        int end = head.indexOf("\";", 10);
+        if (head.startsWith("@charset \"") && end > 0) {
+            String label = head.substring(10, end);
+            try {
+                Charset charset = Charset.forName(label);
+                // an ASCII-compatible rule can't really be UTF-16, the spec says to treat that as UTF-8
+                return charset.name().startsWith("UTF-16") ? StandardCharsets.UTF_8 : charset;
+            } catch (IllegalArgumentException e) {
+                // unknown charset, fall through to the default
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+
+    private static boolean hasUtf8Bom(byte[] bytes) {
+        return bytes.length >= 3 && bytes[0] == (byte) 0xef && bytes[1] == (byte) 0xbb && bytes[2] == (byte) 0xbf;
     }
 
     private void parseStyleSheet(InputSource source, String baseUrl) {
@@ -285,17 +529,7 @@ public class Analysis {
     }
 
     public void parseStyleAttribute(String value, String baseUrl) {
-        InputSource source = new InputSource();
-        source.setURI(baseUrl);
-        source.setCharacterStream(new StringReader(value));
-        SACParserCSS3 parser = new SACParserCSS3();
-        parser.setErrorHandler(new StyleErrorHandler());
-        parser.setDocumentHandler(new StyleHandler(baseUrl));
-        try {
-            parser.parseStyleDeclaration(source);
-        } catch (IOException e) {
-            throw new UncheckedIOException(e);
-        }
+        CssScanner.scan(value, (url, type) -> addResource(StringUtil.resolve(baseUrl, url), type));
     }
 
     public void parsePayload(WarcTargetRecord record, WarcResponse response) throws IOException {
@@ -312,10 +546,15 @@ public class Analysis {
         MediaType contentType = http.contentType().base();
         if (contentType.equals(MediaType.HTML)) {
             // we use response.http().body() not http.body() to ensure we're using the body resolved from revisits
-            parseHtml(response.http().body().stream(), response.http().contentType().parameters().get("charset"),
-                    record.target());
+            String charset = response.http().contentType().parameters().get("charset");
+            if (response.body().size() > htmlStreamingThreshold) {
+                parseHtmlStreaming(response.http().body().stream(), charset, record.target());
+            } else {
+                parseHtml(response.http().body().stream(), charset, record.target());
+            }
         } else if (contentType.equals(CSS)) {
-            parseStyleSheet(response.http().body().stream(), record.target());
+            String charset = response.http().contentType().parameters().get("charset");
+            parseStyleSheet(response.http().body().stream(), charset, record.target());
         }
     }
 
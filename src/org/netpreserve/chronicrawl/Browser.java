@@ -1,17 +1,21 @@
 package org.netpreserve.chronicrawl;
 
 import com.grack.nanojson.*;
+import fi.iki.elonen.NanoHTTPD;
 import org.java_websocket.client.WebSocketClient;
 import org.java_websocket.handshake.ServerHandshake;
+import org.netpreserve.jwarc.HttpResponse;
 import org.netpreserve.jwarc.WarcResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 
@@ -25,9 +29,17 @@ public class Browser implements Closeable {
     private final Process process;
     private final WebSocket websocket;
     private final AtomicLong idSeq = new AtomicLong(0);
-    private final ConcurrentHashMap<String, Consumer<JsonObject>> sessionEventHandlers = new ConcurrentHashMap<>();
-    private final Map<Long, CompletableFuture<JsonObject>> calls = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Consumer<DevtoolsMessage>> sessionEventHandlers = new ConcurrentHashMap<>();
+    private final Map<Long, CompletableFuture<DevtoolsMessage>> calls = new ConcurrentHashMap<>();
     private final ScheduledThreadPoolExecutor scheduledExecutor = new ScheduledThreadPoolExecutor(1);
+    private final Config config;
+    private final Semaphore streamPermits;
+    /**
+     * Answers intercepted requests. Separate from the tabs' event threads so that looking up and reading the many
+     * subresources of a page happens in parallel while the tab's other events are still handled in order.
+     */
+    private final ExecutorService requestExecutor;
+    private BodyServer bodyServer;
 
     static {
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
@@ -45,6 +57,17 @@ public class Browser implements Closeable {
         }, "Browser shutdown hook"));
     }
     public Browser() throws IOException {
+        this(new Config());
+    }
+
+    public Browser(Config config) throws IOException {
+        this.config = config;
+        this.streamPermits = new Semaphore(config.browserMaxStreams);
+        this.requestExecutor = Executors.newFixedThreadPool(config.browserRequestThreads, r -> {
+            Thread thread = new Thread(r, "Browser request handler");
+            thread.setDaemon(true);
+            return thread;
+        });
         scheduledExecutor.setRemoveOnCancelPolicy(true);
         Process process = null;
         for (String executable : executables) {
@@ -53,6 +76,12 @@ public class Browser implements Closeable {
                 cmd.add(executable);
                 cmd.add("--headless");
                 cmd.add("--remote-debugging-port=0");
+                // allow streamed bodies to be served from loopback (see BodyServer)
+                cmd.add("--disable-features=BlockInsecurePrivateNetworkRequests,PrivateNetworkAccessSendPreflights," +
+                        "PrivateNetworkAccessRespectPreflightResults");
+                // requests the crawler doesn't answer must not reach the live web, so no host resolves except
+                // loopback. The browser fails them itself without pausing them for a round trip to us.
+                cmd.add("--host-resolver-rules=MAP * ~NOTFOUND, EXCLUDE 127.0.0.1, EXCLUDE localhost");
                 if (System.getenv("BROWSER_LOGGING") != null) cmd.addAll(List.of("--enable-logging=stderr", "--v=1"));
                 process = new ProcessBuilder(cmd)
                         .inheritIO()
@@ -76,6 +105,13 @@ public class Browser implements Closeable {
         }
     }
 
+    /**
+     * Cheap check that the process is running and we're still connected to it. Doesn't talk to the browser.
+     */
+    public boolean processAlive() {
+        return process.isAlive() && websocket.isOpen();
+    }
+
     public boolean alive() {
         try {
             call("Browser.getVersion", Map.of());
@@ -96,36 +132,28 @@ public class Browser implements Closeable {
         }
 
         public void onMessage(String rawMessage) {
-            log.trace("< {}", rawMessage.length() > 1024 ? rawMessage.substring(0, 1024) + "..." : rawMessage);
             try {
-                var message = JsonParser.object().from(rawMessage);
-                if (message.has("method")) {
-                    if (message.has("sessionId")) {
-                        var handler = sessionEventHandlers.get(message.getString("sessionId"));
+                var message = DevtoolsMessage.peek(rawMessage);
+                if (log.isTraceEnabled()) log.trace("< {}", message);
+                if (message.isEvent()) {
+                    if (message.sessionId != null) {
+                        var handler = sessionEventHandlers.get(message.sessionId);
                         if (handler != null) {
-                            ForkJoinPool.commonPool().submit(() -> {
-                                try {
-                                    handler.accept(message);
-                                } catch (Throwable t) {
-                                    log.error("Exception handling browser event " + rawMessage, t);
-                                }
-                            });
+                            handler.accept(message);
                         } else {
-                            log.warn("Event for unknown session {}", rawMessage);
+                            log.warn("Event for unknown session {}", message);
                         }
                     }
                 } else {
-                    long id = message.getLong("id");
-                    CompletableFuture<JsonObject> future = calls.remove(id);
+                    CompletableFuture<DevtoolsMessage> future = calls.remove(message.id);
                     if (future == null) {
-                        log.warn("Unexpected RPC response id {}", id);
-                    } else if (message.has("error")) {
-                        future.completeExceptionally(new ErrorException(message.getObject("error").getString("message")));
+                        log.warn("Unexpected RPC response id {}", message.id);
                     } else {
-                        future.complete(message.getObject("result"));
+                        // the caller's thread decodes the result
+                        future.complete(message);
                     }
                 }
-            } catch (JsonParserException e) {
+            } catch (IllegalArgumentException e) {
                 log.debug("Received message: {}", rawMessage);
                 log.warn("Error parsing devtools message", e);
             } catch (Throwable e) {
@@ -158,18 +186,43 @@ public class Browser implements Closeable {
                 .object("params", params)
                 .end()
                 .done();
-        log.trace("> {} {}", message.length(), message.length() < 1024 ? message : message.substring(0, 1024) + "...");
-        var future = new CompletableFuture<JsonObject>();
+        if (log.isTraceEnabled()) {
+            log.trace("> {} {}", message.length(), message.length() < 1024 ? message : message.substring(0, 1024) + "...");
+        }
+        var future = new CompletableFuture<DevtoolsMessage>();
         calls.put(id, future);
+        var event = new JfrEvents.BrowserCallEvent();
+        event.begin();
+        long start = System.nanoTime();
         websocket.send(message);
         try {
-            return future.get(10, TimeUnit.SECONDS);
+            JsonObject response = future.get(10, TimeUnit.SECONDS).object();
+            Metrics.browserCallSeconds.observeNanos(System.nanoTime() - start, method);
+            if (response.has("error")) {
+                Metrics.browserCallErrors.inc(method);
+                event.error = response.getObject("error").getString("message");
+                throw new ErrorException(method + ": " + event.error);
+            }
+            return response.getObject("result");
         } catch (InterruptedException e) {
+            event.error = e.toString();
             throw new RuntimeException(e);
         } catch (TimeoutException e) {
+            Metrics.browserCallErrors.inc(method);
+            event.error = "timed out";
             throw new RuntimeException("Call timed out: " + message, e);
         } catch (ExecutionException e) {
+            Metrics.browserCallErrors.inc(method);
+            event.error = e.getCause().getMessage();
             throw new ErrorException(method + ": " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.method = method;
+                event.sessionId = sessionId;
+                event.requestBytes = message.length();
+                event.commit();
+            }
         }
     }
 
@@ -208,8 +261,17 @@ public class Browser implements Closeable {
         return devtoolsUrl;
     }
 
+    private synchronized BodyServer bodyServer() throws IOException {
+        if (bodyServer == null) bodyServer = new BodyServer();
+        return bodyServer;
+    }
+
     public void close() {
         scheduledExecutor.shutdown();
+        requestExecutor.shutdownNow();
+        synchronized (this) {
+            if (bodyServer != null) bodyServer.stop();
+        }
         try {
             websocket.close();
         } catch (Exception e) {
@@ -270,6 +332,25 @@ public class Browser implements Closeable {
         }
 
         public void fulfill(WarcResponse warcResponse) throws IOException {
+            fulfill(warcResponse, null);
+        }
+
+        /**
+         * Fulfills the request from a WARC response and takes ownership of source, whatever the response is being
+         * read from. A small body is sent straight away and source closed before returning. A large body is
+         * streamed, so source stays open until the browser has finished reading it.
+         */
+        public void fulfill(WarcResponse warcResponse, Closeable source) throws IOException {
+            if (warcResponse.body().size() > tab.browser.config.browserStreamThresholdBytes) {
+                fulfillStreaming(warcResponse.http(), source);
+                return;
+            }
+            try (source) {
+                fulfillInMemory(warcResponse);
+            }
+        }
+
+        private void fulfillInMemory(WarcResponse warcResponse) throws IOException {
             var headers = new ArrayList<Map.Entry<String, String>>();
             for (var entry : warcResponse.http().headers().map().entrySet()) {
                 for (var value : entry.getValue()) {
@@ -288,7 +369,82 @@ public class Browser implements Closeable {
             }
         }
 
+        /**
+         * Fulfills the request by redirecting the browser to the loopback body server, which streams the body from
+         * the WARC. Only a small buffer is held in memory regardless of the body size. Returns as soon as the browser
+         * has been redirected; the body server releases the stream when the transfer completes or fails, or it's
+         * abandoned when the browser doesn't collect or finish reading it in time. Closing the body closes source.
+         */
+        private void fulfillStreaming(HttpResponse http, Closeable source) throws IOException {
+            Browser browser = tab.browser;
+            StreamedBody body;
+            try {
+                if (!browser.streamPermits.tryAcquire(STREAM_START_TIMEOUT_SECS, TimeUnit.SECONDS)) {
+                    log.warn("Too many streamed bodies in progress, failing {}", url());
+                    if (source != null) source.close();
+                    fail("Failed");
+                    return;
+                }
+            } catch (InterruptedException e) {
+                if (source != null) source.close();
+                fail("Aborted");
+                throw new InterruptedIOException();
+            }
+            try {
+                body = new StreamedBody(http, source);
+            } catch (IOException | RuntimeException e) {
+                browser.streamPermits.release();
+                if (source != null) source.close();
+                throw e;
+            }
+            BodyServer bodyServer = browser.bodyServer();
+            String token = bodyServer.register(body);
+            String url = url();
+            ScheduledFuture<?> startTimeout = browser.scheduledExecutor.schedule(() -> {
+                if (!body.started.isDone()) abandon(body, "Browser never collected streamed body of " + url);
+            }, STREAM_START_TIMEOUT_SECS, TimeUnit.SECONDS);
+            ScheduledFuture<?> finishTimeout = browser.scheduledExecutor.schedule(
+                    () -> abandon(body, "Timed out streaming body of " + url), STREAM_FINISH_TIMEOUT_SECS, TimeUnit.SECONDS);
+            body.finished.whenComplete((result, error) -> {
+                startTimeout.cancel(false);
+                finishTimeout.cancel(false);
+                bodyServer.unregister(token);
+                browser.streamPermits.release();
+            });
+            try {
+                enforceHandledOnce();
+                tab.call("Fetch.continueRequest", Map.of("requestId", id, "url", bodyServer.url(token)));
+            } catch (ErrorException e) {
+                abandon(body, null);
+                if (e.getMessage().endsWith("Invalid InterceptionId.")) {
+                    log.trace("Request cancelled {} {}", id, url);
+                } else {
+                    throw e;
+                }
+            } catch (RuntimeException e) {
+                abandon(body, null);
+                throw e;
+            }
+        }
+
+        /**
+         * Closes a streamed body, which also makes the body server abort sending it if it's in progress.
+         */
+        private static void abandon(StreamedBody body, String warning) {
+            if (body.finished.isDone()) return;
+            if (warning != null) log.warn(warning);
+            try {
+                body.close();
+            } catch (IOException e) {
+                log.debug("Error closing streamed body", e);
+            }
+        }
+
         public void fulfill(int status, String reason, Collection<Map.Entry<String, String>> headers, byte[] body) {
+            fulfill(status, reason, headers, ByteBuffer.wrap(body));
+        }
+
+        public void fulfill(int status, String reason, Collection<Map.Entry<String, String>> headers, ByteBuffer body) {
             enforceHandledOnce();
             List<Map<String, String>> headerList = new ArrayList<>();
             for (var entry: headers) {
@@ -299,10 +455,24 @@ public class Browser implements Closeable {
             params.put("responseCode", status);
             if (!reason.isBlank()) params.put("responsePhrase", reason);
             params.put("responseHeaders", headerList);
-            params.put("body", Base64.getEncoder().encodeToString(body));
+            params.put("body", base64(body));
             tab.call("Fetch.fulfillRequest", params);
         }
 
+        /**
+         * Encodes without disturbing the buffer's position. Bodies read into a byte array are encoded straight to a
+         * string. Other buffers (cached bodies are direct) are encoded to a byte array, which Latin-1 turns into a
+         * string with a single copy rather than going through a char buffer.
+         */
+        static String base64(ByteBuffer body) {
+            if (body.hasArray() && body.arrayOffset() == 0 && body.position() == 0 && body.limit() == body.array().length) {
+                return Base64.getEncoder().encodeToString(body.array());
+            }
+            // encode(ByteBuffer) always returns a heap buffer wrapping an exactly sized array
+            byte[] encoded = Base64.getEncoder().encode(body.duplicate()).array();
+            return new String(encoded, ISO_8859_1);
+        }
+
         public void continueNormally() {
             enforceHandledOnce();
             tab.call("Fetch.continueRequest", Map.of("requestId", id));
@@ -332,6 +502,108 @@ public class Browser implements Closeable {
 
     }
 
+    private static final long STREAM_START_TIMEOUT_SECS = 30;
+    private static final long STREAM_FINISH_TIMEOUT_SECS = 600;
+    private static final Set<String> HOP_BY_HOP_HEADERS = Set.of("connection", "content-length", "keep-alive",
+            "transfer-encoding", "te", "trailer", "upgrade", "proxy-authenticate", "proxy-authorization");
+
+    /**
+     * A response body waiting to be collected by the browser from the body server.
+     */
+    static class StreamedBody extends FilterInputStream {
+        final int status;
+        final String reason;
+        final Map<String, List<String>> headers;
+        final long length;
+        final CompletableFuture<Void> started = new CompletableFuture<>();
+        final CompletableFuture<Void> finished = new CompletableFuture<>();
+        private final Closeable source;
+
+        StreamedBody(HttpResponse http) throws IOException {
+            this(http, null);
+        }
+
+        /**
+         * @param source what the response is read from, closed along with the body
+         */
+        StreamedBody(HttpResponse http, Closeable source) throws IOException {
+            super(http.body().stream());
+            this.source = source;
+            this.status = http.status();
+            this.reason = http.reason().trim();
+            this.headers = http.headers().map();
+            this.length = http.body().size();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try (source) {
+                super.close();
+            } finally {
+                finished.complete(null);
+            }
+        }
+    }
+
+    /**
+     * Loopback HTTP server that streams large response bodies to the browser. Fetch.fulfillRequest only accepts the
+     * whole body as a single base64 string, so for big responses we instead use Fetch.continueRequest to rewrite the
+     * request URL to point here. The rewrite isn't visible to the page.
+     */
+    static class BodyServer extends NanoHTTPD {
+        private final Map<String, StreamedBody> bodies = new ConcurrentHashMap<>();
+
+        BodyServer() throws IOException {
+            super("127.0.0.1", 0);
+            start(SOCKET_READ_TIMEOUT, true);
+        }
+
+        String register(StreamedBody body) {
+            String token = UUID.randomUUID().toString();
+            bodies.put(token, body);
+            return token;
+        }
+
+        void unregister(String token) {
+            bodies.remove(token);
+        }
+
+        String url(String token) {
+            return "http://127.0.0.1:" + getListeningPort() + "/" + token;
+        }
+
+        @Override
+        public Response serve(IHTTPSession session) {
+            StreamedBody body = bodies.remove(session.getUri().substring(1));
+            if (body == null) {
+                return newFixedLengthResponse(Response.Status.NOT_FOUND, MIME_PLAINTEXT, "Not found");
+            }
+            body.started.complete(null);
+            var status = new Response.IStatus() {
+                public String getDescription() {
+                    return body.status + (body.reason.isEmpty() ? "" : " " + body.reason);
+                }
+
+                public int getRequestStatus() {
+                    return body.status;
+                }
+            };
+            Response response = body.length >= 0 ? newFixedLengthResponse(status, null, body, body.length)
+                    : newChunkedResponse(status, null, body);
+            for (var entry : body.headers.entrySet()) {
+                if (HOP_BY_HOP_HEADERS.contains(entry.getKey().toLowerCase(Locale.ROOT))) continue;
+                // NanoHTTPD only supports a single value per header name
+                response.addHeader(entry.getKey(), String.join(", ", entry.getValue()));
+            }
+            return response;
+        }
+
+        @Override
+        protected boolean useGzipWhenAccepted(Response r) {
+            return false;
+        }
+    }
+
     /**
      * Notionally a browser tab. At the protocol level this a devtools 'target'.
      */
@@ -339,55 +611,82 @@ public class Browser implements Closeable {
         private static final Logger log = LoggerFactory.getLogger(Tab.class);
         private static final String scrollDownJs = Util.resource("scrollDown.js");
         private static final String overrideDateAndRandomJs = Util.resource("overrideDateAndRandom.js");
+        private static final int WIDTH = 1366;
+        private static final int HEIGHT = 768;
         private final Browser browser;
         private final String targetId;
         private final String sessionId;
-        private Consumer<Request> requestInterceptor;
+        private volatile Consumer<Request> requestInterceptor;
+        private volatile Set<String> blockedHosts = Set.of();
         private CompletableFuture<Double> loadFuture;
         private CompletableFuture<Void> networkIdleFuture;
-        private boolean closed;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        /**
+         * Routes this tab's events one at a time in the order they arrived. Handlers may block on call() as the
+         * responses are completed directly by the WebSocket thread, but paused requests are answered on the browser's
+         * request executor so one slow lookup doesn't hold up the rest.
+         */
+        private final ExecutorService eventExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "Browser tab events");
+            thread.setDaemon(true);
+            return thread;
+        });
 
         Tab(Browser browser) {
             this.browser = browser;
-            targetId = browser.call("Target.createTarget",  Map.of("url", "about:blank", "width", 1366, "height", 768)).getString("targetId");
+            targetId = browser.call("Target.createTarget",  Map.of("url", "about:blank", "width", WIDTH, "height", HEIGHT)).getString("targetId");
             sessionId = browser.call("Target.attachToTarget", Map.of("targetId", targetId, "flatten", true)).getString("sessionId");
-            browser.sessionEventHandlers.put(sessionId, this::handleEvent);
+            browser.sessionEventHandlers.put(sessionId, this::dispatchEvent);
             call("Page.enable", Map.of()); // for loadEventFired
             call("Page.setLifecycleEventsEnabled", Map.of("enabled", true)); // for networkidle
+            Metrics.browserTabs.inc();
         }
 
         public JsonObject call(String method, Map<String, Object> params) {
-            synchronized (this) {
-                if (closed) throw new IllegalStateException("closed");
-            }
+            if (closed.get()) throw new IllegalStateException("closed");
             return browser.call(sessionId, method, params);
         }
 
-        private void handleEvent(JsonObject event) {
-            JsonObject params = event.getObject("params");
-            switch (event.getString("method")) {
+        private void dispatchEvent(DevtoolsMessage event) {
+            try {
+                eventExecutor.execute(() -> {
+                    try {
+                        handleEvent(event);
+                    } catch (Throwable t) {
+                        log.error("Exception handling browser event " + event, t);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                log.trace("Dropping event for closed tab {}", event);
+            }
+        }
+
+        private void handleEvent(DevtoolsMessage event) {
+            JsonObject params;
+            switch (event.method) {
                 case "Fetch.requestPaused":
+                    params = event.object().getObject("params");
                     Request request = new Request(this, params.getString("requestId"), params.getObject("request"), params.getString("resourceType"));
-                    if (requestInterceptor != null) {
-                        try {
-                            requestInterceptor.accept(request);
-                        } catch (Throwable t) {
-                            if (!request.handled) {
-                                request.fail("Failed");
+                    try {
+                        browser.requestExecutor.execute(() -> {
+                            try {
+                                handleRequest(request);
+                            } catch (Throwable t) {
+                                if (!isClosed()) log.error("Exception handling browser request " + request, t);
                             }
-                            throw t;
-                        }
-                    }
-                    if (!request.handled) {
-                        request.continueNormally();
+                        });
+                    } catch (RejectedExecutionException e) {
+                        log.trace("Dropping request for closed browser {}", request);
                     }
                     break;
                 case "Page.loadEventFired":
+                    params = event.object().getObject("params");
                     if (loadFuture != null) {
                         loadFuture.complete(params.getDouble("timestamp"));
                     }
                     break;
                 case "Page.lifecycleEvent":
+                    params = event.object().getObject("params");
                     String eventName = params.getString("name");
                     if (networkIdleFuture != null && eventName.equals("networkIdle") && params.getString("frameId").equals(targetId)) {
                         networkIdleFuture.complete(null);
@@ -399,23 +698,109 @@ public class Browser implements Closeable {
                     }
                     break;
                 default:
-                    log.debug("Unhandled event {}", event);
+                    if (log.isDebugEnabled()) log.debug("Unhandled event {}", event);
                     break;
             }
         }
 
+        private void handleRequest(Request request) {
+            if (isClosed()) return;
+            if (isBlockedHost(blockedHosts, request.url())) {
+                log.trace("Failing request to blocked host {}", request.url());
+                request.fail("BlockedByClient");
+                return;
+            }
+            Consumer<Request> requestInterceptor = this.requestInterceptor;
+            if (requestInterceptor != null) {
+                try {
+                    requestInterceptor.accept(request);
+                } catch (Throwable t) {
+                    if (!request.handled) {
+                        request.fail("Failed");
+                    }
+                    throw t;
+                }
+            }
+            if (!request.handled) {
+                request.continueNormally();
+            }
+        }
+
+        private boolean isClosed() {
+            return closed.get();
+        }
+
         @Override
-        public synchronized void close() {
-            if (!closed) {
-                closed = true;
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                Metrics.browserTabs.dec();
+                eventExecutor.shutdownNow();
                 browser.call("Target.closeTarget", Map.of("targetId", targetId));
                 browser.sessionEventHandlers.remove(sessionId);
             }
         }
 
+        /**
+         * Pauses requests matching the configured intercept patterns and passes them to requestHandler, except those
+         * to blocked hosts which are failed before the handler sees them. Requests outside the patterns aren't paused
+         * at all. The browser can't resolve any host but loopback (see the constructor) so they fail on their own.
+         */
         public void interceptRequests(Consumer<Request> requestHandler) {
             this.requestInterceptor = requestHandler;
-            call("Fetch.enable", Map.of());
+            Config config = browser.config;
+            Set<String> hosts = new HashSet<>();
+            for (String host : splitList(config.browserBlockedHosts)) hosts.add(host.toLowerCase(Locale.ROOT));
+            blockedHosts = hosts;
+            call("Fetch.enable", Map.of("patterns", requestPatterns(config.browserInterceptPatterns,
+                    config.browserInterceptResourceTypes)));
+        }
+
+        /**
+         * Whether the URL's host or one of its parent domains is in the set.
+         */
+        static boolean isBlockedHost(Set<String> hosts, String url) {
+            if (hosts.isEmpty()) return false;
+            String host;
+            try {
+                host = new Url(url).host();
+            } catch (RuntimeException e) {
+                return false;
+            }
+            if (host == null) return false;
+            host = host.toLowerCase(Locale.ROOT);
+            while (true) {
+                if (hosts.contains(host)) return true;
+                int dot = host.indexOf('.');
+                if (dot < 0) return false;
+                host = host.substring(dot + 1);
+            }
+        }
+
+        /**
+         * Builds the Fetch.enable patterns for every combination of URL pattern and resource type.
+         */
+        static List<Map<String, String>> requestPatterns(String urlPatterns, String resourceTypes) {
+            List<String> types = splitList(resourceTypes);
+            List<Map<String, String>> patterns = new ArrayList<>();
+            for (String urlPattern : splitList(urlPatterns)) {
+                if (types.isEmpty()) {
+                    patterns.add(Map.of("urlPattern", urlPattern));
+                }
+                for (String type : types) {
+                    patterns.add(Map.of("urlPattern", urlPattern,
+                            "resourceType", Analysis.ResourceType.valueOf(type).name()));
+                }
+            }
+            return patterns;
+        }
+
+        private static List<String> splitList(String value) {
+            List<String> list = new ArrayList<>();
+            if (value == null) return list;
+            for (String item : value.split(",")) {
+                if (!item.isBlank()) list.add(item.strip());
+            }
+            return list;
         }
 
         public CompletableFuture<Void> navigate(String url) {
@@ -432,6 +817,16 @@ public class Browser implements Closeable {
             return Base64.getDecoder().decode(call("Page.captureScreenshot", Map.of("format", "jpeg")).getString("data"));
         }
 
+        /**
+         * Captures the viewport scaled down to the given width. The browser does the scaling so only the small image
+         * is encoded and sent over the websocket.
+         */
+        public byte[] thumbnail(int width, int quality) {
+            var clip = Map.of("x", 0, "y", 0, "width", WIDTH, "height", HEIGHT, "scale", (double) width / WIDTH);
+            return Base64.getDecoder().decode(call("Page.captureScreenshot",
+                    Map.of("format", "jpeg", "quality", quality, "clip", clip)).getString("data"));
+        }
+
         /**
          * Try to force js date and random functions to be deterministic. This doesn't actually succeed in making page
          * loading deterministic but it gets us closer. The random function is tries to match pywb.
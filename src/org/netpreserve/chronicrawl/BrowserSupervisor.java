@@ -0,0 +1,83 @@
+package org.netpreserve.chronicrawl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Keeps a browser running. A background thread periodically checks the Chromium process is alive and responding
+ * and swaps in a replacement if it isn't, so callers can get the current browser without locking or a round trip.
+ */
+class BrowserSupervisor implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(BrowserSupervisor.class);
+    private final Config config;
+    private final Runnable onRestartFailure;
+    private final Thread thread;
+    private volatile Browser browser;
+    private volatile boolean closed;
+
+    /**
+     * @param onRestartFailure called when the browser died and a replacement couldn't be started
+     */
+    BrowserSupervisor(Config config, Runnable onRestartFailure) throws IOException {
+        this.config = config;
+        this.onRestartFailure = onRestartFailure;
+        this.browser = new Browser(config);
+        thread = new Thread(this::run, "Browser supervisor");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the current browser.
+     *
+     * @throws UncheckedIOException if the browser died and couldn't be restarted
+     */
+    Browser browser() {
+        Browser browser = this.browser;
+        if (browser == null) throw new UncheckedIOException(new IOException("Browser is not running"));
+        return browser;
+    }
+
+    private void run() {
+        while (!closed) {
+            try {
+                Thread.sleep(config.browserHeartbeatMillis);
+            } catch (InterruptedException e) {
+                break;
+            }
+            Browser current = browser;
+            if (current != null && current.processAlive() && current.alive()) continue;
+            if (closed) break;
+            if (current != null) {
+                log.error("Browser seems to have crashed, restarting it.");
+                current.close();
+            }
+            try {
+                Browser replacement = new Browser(config);
+                browser = replacement;
+                if (closed) replacement.close(); // close() may have missed it
+            } catch (IOException e) {
+                browser = null;
+                log.error("Restarting browser failed. Pausing crawl.", e);
+                onRestartFailure.run();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        thread.interrupt();
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Browser browser = this.browser;
+        if (browser != null) browser.close();
+    }
+}
@@ -0,0 +1,288 @@
+package org.netpreserve.chronicrawl;
+
+import org.jdbi.v3.core.Handle;
+import org.jdbi.v3.core.result.ResultIterator;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.time.Instant;
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * A CDX server query in the style of pywb and OpenWayback. Results are read from the database in SURT then date
+ * order (or by distance from the closest date) a page at a time, so a query never holds more than a page of lines in
+ * memory, and the database connection is released before each page is written to the client.
+ * <p>
+ * Parameters:
+ * <dl>
+ *     <dt>url</dt><dd>the URL to look up</dd>
+ *     <dt>matchType</dt><dd>exact (default), prefix, host or domain</dd>
+ *     <dt>closest</dt><dd>14 digit timestamp. For exact matches sort by distance from it. Such queries can't be
+ *     resumed so they return at most one page of lines.</dd>
+ *     <dt>limit</dt><dd>maximum number of lines to return</dd>
+ *     <dt>filter</dt><dd>[!][~]field:regex where ! negates and ~ means contains rather than regex. Repeatable.</dd>
+ *     <dt>showResumeKey</dt><dd>if the limit was reached, append a blank line and the key to resume from</dd>
+ *     <dt>resumeKey</dt><dd>continue a previous query after the given key</dd>
+ * </dl>
+ * The urlkey field is a SURT of the host followed by the path as stored, not lowercased, as that's the order the
+ * database index returns.
+ */
+class CdxQuery {
+    private static final Comparator<Database.CdxLine> PATH_DATE_ORDER = Comparator
+            .comparing((Database.CdxLine line) -> line.path)
+            .thenComparing(line -> line.date);
+    private static final String[] FIELDS = {"urlkey", "timestamp", "original", "mimetype", "statuscode", "digest",
+            "length", "offset", "filename"};
+
+    enum MatchType {exact, prefix, host, domain}
+
+    final Url url;
+    final MatchType matchType;
+    final Instant closest;
+    final long limit;
+    final List<Predicate<String[]>> filters = new ArrayList<>();
+    final boolean showResumeKey;
+    final String resumeKey;
+    /**
+     * Lines read per database connection.
+     */
+    long pageSize = 1000;
+
+    CdxQuery(Url url, MatchType matchType, Instant closest, long limit, List<String> filters, boolean showResumeKey,
+             String resumeKey) {
+        this.url = url;
+        this.matchType = matchType;
+        this.closest = closest;
+        this.limit = limit;
+        this.showResumeKey = showResumeKey;
+        this.resumeKey = resumeKey;
+        for (String filter : filters) {
+            this.filters.add(parseFilter(filter));
+        }
+    }
+
+    /**
+     * Parses a filter like pywb: [!][~]field:value.
+     */
+    static Predicate<String[]> parseFilter(String filter) {
+        boolean negate = filter.startsWith("!");
+        if (negate) filter = filter.substring(1);
+        boolean contains = filter.startsWith("~");
+        if (contains) filter = filter.substring(1);
+        int colon = filter.indexOf(':');
+        if (colon < 0) throw new IllegalArgumentException("filter must be field:value");
+        int field = Arrays.asList(FIELDS).indexOf(filter.substring(0, colon));
+        if (field < 0) throw new IllegalArgumentException("unknown filter field: " + filter.substring(0, colon));
+        String value = filter.substring(colon + 1);
+        Predicate<String[]> predicate;
+        if (contains) {
+            predicate = fields -> fields[field].contains(value);
+        } else {
+            Pattern pattern = Pattern.compile(value);
+            predicate = fields -> pattern.matcher(fields[field]).lookingAt();
+        }
+        return negate ? predicate.negate() : predicate;
+    }
+
+    /**
+     * Parses a 14 digit timestamp. Shorter timestamps are padded to the start of the period.
+     */
+    static Instant parseTimestamp(String timestamp) {
+        if (timestamp.length() > 14) timestamp = timestamp.substring(0, 14);
+        return Util.ARC_DATE.parse(timestamp + "00000101000000".substring(timestamp.length()), Instant::from);
+    }
+
+    /**
+     * Host part of the urlkey, e.g. "org,example" or "org,example:8080".
+     */
+    static String surtHost(Url url) {
+        List<String> labels = Arrays.asList(url.host().split("\\."));
+        Collections.reverse(labels);
+        String key = String.join(",", labels);
+        if (url.port() >= 0) key += ":" + url.port();
+        return key;
+    }
+
+    void run(Database db, Writer out) throws IOException {
+        // a slow client mustn't hold the connection (SQLite only has one) so buffer each page and write it afterwards
+        boolean resumable = closest == null || matchType != MatchType.exact;
+        String pageResumeKey = resumeKey;
+        long remaining = resumable ? limit : Math.min(limit, pageSize);
+        while (true) {
+            Page page = new Page();
+            // on-demand DAOs close their handle when the method returns so use our own to keep the result sets open
+            try (Handle handle = db.jdbi.open()) {
+                run(handle.attach(Database.OriginDAO.class), handle.attach(Database.VisitDAO.class), page,
+                        pageResumeKey, Math.min(remaining, pageSize));
+            }
+            out.write(page.lines.toString());
+            remaining -= page.count;
+            if (page.nextKey == null) return;
+            if (remaining <= 0) {
+                if (showResumeKey && resumable) out.write("\n" + page.nextKey + "\n");
+                return;
+            }
+            pageResumeKey = page.nextKey;
+        }
+    }
+
+    private static class Page {
+        final StringBuilder lines = new StringBuilder();
+        long count;
+        /**
+         * Key of the last line if there are more lines to come, otherwise null.
+         */
+        String nextKey;
+    }
+
+    private void run(Database.OriginDAO origins, Database.VisitDAO visits, Page page, String resumeKey,
+                     long pageLimit) {
+        Map<String, String> surtHosts = new HashMap<>(); // origin -> surt host
+        Map<String, List<Origin>> groups = new TreeMap<>();
+        for (Origin origin : findOrigins(origins)) {
+            String surtHost = surtHost(new Url(origin.name));
+            surtHosts.put(origin.name, surtHost);
+            groups.computeIfAbsent(surtHost, k -> new ArrayList<>()).add(origin);
+        }
+
+        String fromPath;
+        String toPath;
+        if (matchType == MatchType.exact) {
+            fromPath = url.pathref();
+            toPath = fromPath + '\0';
+        } else if (matchType == MatchType.prefix) {
+            fromPath = url.pathref();
+            toPath = fromPath + Character.MAX_VALUE;
+        } else {
+            fromPath = "";
+            toPath = String.valueOf(Character.MAX_VALUE);
+        }
+
+        String resumeHost = null;
+        String resumePath = null;
+        long resumeMillis = -1;
+        if (resumeKey != null) {
+            int space = resumeKey.lastIndexOf(' ');
+            int paren = resumeKey.indexOf(')');
+            if (space < 0 || paren < 0 || paren > space) throw new IllegalArgumentException("invalid resumeKey");
+            resumeHost = resumeKey.substring(0, paren);
+            resumePath = resumeKey.substring(paren + 1, space);
+            resumeMillis = Long.parseLong(resumeKey.substring(space + 1));
+            String from = resumeHost;
+            groups.keySet().removeIf(host -> host.compareTo(from) < 0);
+        }
+
+        Database.CdxLine last = null;
+        boolean closestOrder = closest != null && matchType == MatchType.exact;
+        for (var group : groups.entrySet()) {
+            List<ResultIterator<Database.CdxLine>> iterators = new ArrayList<>();
+            try {
+                Comparator<Database.CdxLine> order;
+                if (closestOrder) {
+                    for (Origin origin : group.getValue()) {
+                        iterators.add(visits.cdxClosest(origin.id, url.pathId(), closest));
+                    }
+                    order = Comparator.comparing(line -> Math.abs(line.date.toEpochMilli() - closest.toEpochMilli()));
+                } else {
+                    boolean resuming = group.getKey().equals(resumeHost);
+                    String from = fromPath;
+                    long after = -1;
+                    if (resuming && resumePath.compareTo(fromPath) >= 0) {
+                        from = resumePath;
+                        after = resumeMillis;
+                    }
+                    for (Origin origin : group.getValue()) {
+                        iterators.add(visits.cdxRange(origin.id, from, after, toPath));
+                    }
+                    order = PATH_DATE_ORDER;
+                }
+                var merged = new MergingIterator(iterators, order);
+                while (merged.hasNext()) {
+                    Database.CdxLine line = merged.next();
+                    String[] fields = fields(line, group.getKey());
+                    if (!matches(fields)) continue;
+                    if (page.count >= pageLimit) {
+                        if (last != null) {
+                            page.nextKey = surtHosts.get(last.origin) + ")" + last.path + " " + last.date.toEpochMilli();
+                        }
+                        return;
+                    }
+                    page.lines.append(String.join(" ", fields)).append('\n');
+                    page.count++;
+                    last = line;
+                }
+            } finally {
+                for (var iterator : iterators) {
+                    iterator.close();
+                }
+            }
+        }
+    }
+
+    private boolean matches(String[] fields) {
+        for (var filter : filters) {
+            if (!filter.test(fields)) return false;
+        }
+        return true;
+    }
+
+    private static String[] fields(Database.CdxLine line, String surtHost) {
+        return new String[]{surtHost + ")" + line.path, Util.ARC_DATE.format(line.date), line.url(),
+                line.contentType, Integer.toString(line.status), line.digest(), Long.toString(line.length),
+                Long.toString(line.position), line.filename()};
+    }
+
+    private List<Origin> findOrigins(Database.OriginDAO originDAO) {
+        List<Origin> origins = new ArrayList<>();
+        String host = url.host();
+        if (matchType == MatchType.exact || matchType == MatchType.prefix) {
+            // SURTs ignore the scheme so look up both http and https
+            for (Url variant : List.of(url.withScheme("http"), url.withScheme("https"))) {
+                Origin origin = originDAO.find(variant.originId());
+                if (origin != null) origins.add(origin);
+            }
+        } else if (matchType == MatchType.host) {
+            for (String scheme : List.of("http://", "https://")) {
+                // ';' sorts after ':' so the range covers every port
+                for (Origin origin : originDAO.listInRange(scheme + host, scheme + host + ";")) {
+                    if (new Url(origin.name).host().equals(host)) origins.add(origin);
+                }
+            }
+        } else {
+            // no index on reversed hosts so this scans the origin table
+            for (Origin origin : originDAO.listLike("%" + host + "%")) {
+                String originHost = new Url(origin.name).host();
+                if (originHost.equals(host) || originHost.endsWith("." + host)) origins.add(origin);
+            }
+        }
+        return origins;
+    }
+
+    /**
+     * Merges iterators that are each already in order.
+     */
+    private static class MergingIterator implements Iterator<Database.CdxLine> {
+        private final PriorityQueue<Map.Entry<Database.CdxLine, Iterator<Database.CdxLine>>> queue;
+
+        MergingIterator(List<? extends Iterator<Database.CdxLine>> iterators, Comparator<Database.CdxLine> order) {
+            queue = new PriorityQueue<>(Math.max(1, iterators.size()), Map.Entry.comparingByKey(order));
+            for (var iterator : iterators) {
+                if (iterator.hasNext()) queue.add(Map.entry(iterator.next(), iterator));
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !queue.isEmpty();
+        }
+
+        @Override
+        public Database.CdxLine next() {
+            var entry = queue.remove();
+            if (entry.getValue().hasNext()) queue.add(Map.entry(entry.getValue().next(), entry.getValue()));
+            return entry.getKey();
+        }
+    }
+}
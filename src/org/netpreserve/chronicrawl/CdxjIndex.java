@@ -0,0 +1,495 @@
+package org.netpreserve.chronicrawl;
+
+import org.netpreserve.urlcanon.Canonicalizer;
+import org.netpreserve.urlcanon.ParsedUrl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToLongFunction;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * A CDXJ index maintained on disk as a small log-structured merge tree, so replay tools can look up captures without
+ * the database.
+ * <p>
+ * New lines are appended to a write-ahead log and held in a sorted in-memory table. When the table fills up it's
+ * written out as a sorted segment file and the log is truncated. A background thread merges segments of similar size
+ * together once there are enough of them, so each line is rewritten once per size tier rather than on every merge.
+ * Each segment is a plain sorted CDXJ file that can be binary searched, and a single fully merged segment is exactly
+ * what pywb and other tools expect.
+ * <p>
+ * Lines are keyed by a canonical SURT (see urlkey()) rather than the database's key so lookups match pywb's.
+ */
+class CdxjIndex implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(CdxjIndex.class);
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".cdxj";
+    private static final long MIN_TIER_BYTES = 64 * 1024;
+    private final Path dir;
+    private final int flushLines;
+    private final int mergeSegments;
+    private final FileChannel wal;
+    private final Object mergeLock = new Object();
+    private final ExecutorService merger = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "CDXJ merger");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private TreeSet<String> memtable = new TreeSet<>();
+    private volatile List<Segment> segments;
+    private long nextSegmentNumber;
+    private boolean mergeQueued;
+
+    /**
+     * @param flushLines    number of lines to buffer in memory before writing a segment
+     * @param mergeSegments merge segments together once there are this many
+     */
+    CdxjIndex(Path dir, int flushLines, int mergeSegments) throws IOException {
+        this.dir = dir;
+        this.flushLines = flushLines;
+        this.mergeSegments = mergeSegments;
+        Files.createDirectories(dir);
+
+        List<Segment> segments = new ArrayList<>();
+        try (var stream = Files.newDirectoryStream(dir)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                if (name.endsWith(".tmp")) {
+                    Files.delete(path); // partial output of an interrupted flush or merge
+                } else if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    long number = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                    nextSegmentNumber = Math.max(nextSegmentNumber, number + 1);
+                    segments.add(new Segment(path));
+                }
+            }
+        }
+        this.segments = List.copyOf(segments);
+
+        Path walPath = dir.resolve("wal.cdxj");
+        if (Files.exists(walPath)) {
+            try (var reader = Files.newBufferedReader(walPath, UTF_8)) {
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    if (!line.isEmpty()) memtable.add(line);
+                }
+            }
+        }
+        wal = FileChannel.open(walPath, CREATE, WRITE, APPEND);
+        synchronized (this) {
+            if (memtable.size() >= flushLines) flush();
+            if (this.segments.size() >= mergeSegments) queueMerge();
+        }
+    }
+
+    /**
+     * The urlkey for a URL as pywb generates it: the URL is aggressively canonicalized (lowercased, www stripped,
+     * query arguments sorted, scheme and fragment dropped) then written as a SURT like "com,example)/path?a=1&b=2".
+     */
+    static String urlkey(Url url) {
+        ParsedUrl parsed = ParsedUrl.parseUrl(url.toString());
+        Canonicalizer.AGGRESSIVE.canonicalize(parsed);
+        List<String> labels = Arrays.asList(parsed.getHost().split("\\."));
+        Collections.reverse(labels);
+        StringBuilder key = new StringBuilder(String.join(",", labels));
+        if (!parsed.getPort().isEmpty()) key.append(':').append(parsed.getPort());
+        key.append(')').append(parsed.getPath());
+        if (!parsed.getQuery().isEmpty()) key.append('?').append(parsed.getQuery());
+        return key.toString();
+    }
+
+    /**
+     * Adds a line. Lines must start with the sort key, for CDXJ that's "urlkey timestamp".
+     */
+    synchronized void add(String line) throws IOException {
+        wal.write(ByteBuffer.wrap((line + "\n").getBytes(UTF_8)));
+        memtable.add(line);
+        if (memtable.size() >= flushLines) flush();
+    }
+
+    /**
+     * Writes the in-memory table out as a new segment and truncates the log.
+     */
+    synchronized void flush() throws IOException {
+        if (memtable.isEmpty()) return;
+        Path path = dir.resolve(SEGMENT_PREFIX + String.format("%012d", nextSegmentNumber++) + SEGMENT_SUFFIX);
+        write(path, memtable.iterator());
+        var newSegments = new ArrayList<>(segments);
+        newSegments.add(new Segment(path));
+        segments = List.copyOf(newSegments);
+        memtable = new TreeSet<>();
+        wal.truncate(0);
+        wal.force(true);
+        if (segments.size() >= mergeSegments) queueMerge();
+    }
+
+    private void queueMerge() {
+        if (mergeQueued) return;
+        mergeQueued = true;
+        merger.execute(() -> {
+            try {
+                while (true) {
+                    List<Segment> inputs = pickTier(segments, segment -> segment.size, mergeSegments);
+                    if (inputs.isEmpty()) break;
+                    merge(inputs);
+                }
+            } catch (IOException | UncheckedIOException e) {
+                log.error("Error merging CDXJ segments", e);
+            } finally {
+                synchronized (this) {
+                    mergeQueued = false;
+                }
+            }
+        });
+    }
+
+    /**
+     * Picks the segments for the next background merge: the tier of smallest segments that has at least mergeSegments
+     * members, where a tier is a run of segments no more than twice the size of its smallest. Segments under
+     * MIN_TIER_BYTES count as that size so small leftover flushes still get merged. Returns an empty list if no tier
+     * is full.
+     */
+    static <T> List<T> pickTier(List<T> segments, ToLongFunction<T> size, int mergeSegments) {
+        List<T> sorted = new ArrayList<>(segments);
+        sorted.sort(Comparator.comparingLong(size));
+        List<T> tier = new ArrayList<>();
+        long tierMin = 0;
+        for (T segment : sorted) {
+            long bytes = Math.max(MIN_TIER_BYTES, size.applyAsLong(segment));
+            if (!tier.isEmpty() && bytes > tierMin * 2) {
+                if (tier.size() >= mergeSegments) return tier;
+                tier = new ArrayList<>();
+            }
+            if (tier.isEmpty()) tierMin = bytes;
+            tier.add(segment);
+        }
+        return tier.size() >= mergeSegments ? tier : List.of();
+    }
+
+    /**
+     * Merges all current segments into one regardless of their sizes. Flushes may add new segments concurrently, those are left alone.
+     */
+    void merge() throws IOException {
+        merge(segments);
+    }
+
+    private void merge(List<Segment> inputs) throws IOException {
+        synchronized (mergeLock) {
+            // a full merge may have raced with the background merger
+            if (inputs.size() < 2 || !segments.containsAll(inputs)) return;
+            Path path;
+            synchronized (this) {
+                path = dir.resolve(SEGMENT_PREFIX + String.format("%012d", nextSegmentNumber++) + SEGMENT_SUFFIX);
+            }
+            List<LineIterator> iterators = new ArrayList<>();
+            try {
+                for (Segment segment : inputs) {
+                    iterators.add(segment.iterator(0));
+                }
+                write(path, new MergingIterator(iterators));
+            } finally {
+                for (LineIterator iterator : iterators) iterator.close();
+            }
+            synchronized (this) {
+                var newSegments = new ArrayList<>(segments);
+                newSegments.removeAll(inputs);
+                newSegments.add(new Segment(path));
+                segments = List.copyOf(newSegments);
+            }
+            for (Segment segment : inputs) {
+                segment.retire();
+            }
+            log.debug("Merged {} CDXJ segments into {}", inputs.size(), path);
+        }
+    }
+
+    private static void write(Path path, Iterator<String> lines) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (var writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(tmp, CREATE_NEW, WRITE), UTF_8), 65536)) {
+            String previous = null;
+            while (lines.hasNext()) {
+                String line = lines.next();
+                if (line.equals(previous)) continue;
+                writer.write(line);
+                writer.write('\n');
+                previous = line;
+            }
+        }
+        try (var channel = FileChannel.open(tmp, WRITE)) {
+            channel.force(true);
+        }
+        Files.move(tmp, path, ATOMIC_MOVE);
+    }
+
+    /**
+     * Returns the lines with keys starting with the given prefix in sorted order.
+     */
+    List<String> query(String prefix) throws IOException {
+        List<String> results = new ArrayList<>();
+        query(prefix, results::add);
+        return results;
+    }
+
+    /**
+     * Passes the lines starting with the given prefix to the consumer in sorted order. Only one line per segment is
+     * held in memory at a time.
+     */
+    void query(String prefix, LineConsumer consumer) throws IOException {
+        List<Segment> snapshot = new ArrayList<>();
+        List<LineIterator> iterators = new ArrayList<>();
+        try {
+            for (Segment segment : segments) {
+                if (segment.acquire()) snapshot.add(segment);
+            }
+            List<String> fromMemory;
+            synchronized (this) {
+                fromMemory = new ArrayList<>(memtable.tailSet(prefix, true).headSet(prefix + Character.MAX_VALUE));
+            }
+            iterators.add(new ListLineIterator(fromMemory));
+            for (Segment segment : snapshot) {
+                iterators.add(segment.iterator(segment.lowerBound(prefix)));
+            }
+            var merged = new MergingIterator(iterators);
+            String previous = null;
+            while (merged.hasNext()) {
+                String line = merged.next();
+                if (!line.startsWith(prefix)) break;
+                if (line.equals(previous)) continue;
+                consumer.accept(line);
+                previous = line;
+            }
+        } finally {
+            for (LineIterator iterator : iterators) iterator.close();
+            for (Segment segment : snapshot) segment.release();
+        }
+    }
+
+    int segmentCount() {
+        return segments.size();
+    }
+
+    @Override
+    public void close() {
+        merger.shutdown();
+        try {
+            merger.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            try {
+                flush();
+                wal.close();
+            } catch (IOException e) {
+                log.error("Error closing CDXJ index", e);
+            }
+        }
+        for (Segment segment : segments) {
+            segment.release();
+        }
+    }
+
+    interface LineConsumer {
+        void accept(String line) throws IOException;
+    }
+
+    /**
+     * A sorted segment file. Reference counted so a merge can delete it while queries are still reading.
+     */
+    private static class Segment {
+        final Path path;
+        final FileChannel channel;
+        final long size;
+        final AtomicInteger refs = new AtomicInteger(1);
+        private volatile boolean delete;
+
+        Segment(Path path) throws IOException {
+            this.path = path;
+            this.channel = FileChannel.open(path, READ);
+            this.size = channel.size();
+        }
+
+        boolean acquire() {
+            while (true) {
+                int n = refs.get();
+                if (n == 0) return false;
+                if (refs.compareAndSet(n, n + 1)) return true;
+            }
+        }
+
+        void release() {
+            if (refs.decrementAndGet() == 0) {
+                try {
+                    channel.close();
+                    if (delete) Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    log.warn("Error closing segment {}", path, e);
+                }
+            }
+        }
+
+        void retire() {
+            delete = true;
+            release();
+        }
+
+        /**
+         * Binary searches for the position of the first line not less than key.
+         */
+        long lowerBound(String key) throws IOException {
+            long low = 0;
+            long high = channel.size();
+            while (low < high) {
+                long mid = (low + high) >>> 1;
+                long lineStart = nextLineStart(mid);
+                if (lineStart >= high) {
+                    high = mid;
+                    continue;
+                }
+                String line = iterator(lineStart).next();
+                if (line.compareTo(key) < 0) {
+                    low = lineStart + line.getBytes(UTF_8).length + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return nextLineStart(low);
+        }
+
+        /**
+         * Returns position if it's the start of a line, otherwise the start of the following line.
+         */
+        private long nextLineStart(long position) throws IOException {
+            if (position == 0) return 0;
+            ByteBuffer buffer = ByteBuffer.allocate(4096);
+            long pos = position - 1;
+            while (true) {
+                buffer.clear();
+                int n = channel.read(buffer, pos);
+                if (n <= 0) return channel.size();
+                for (int i = 0; i < n; i++) {
+                    if (buffer.get(i) == '\n') return pos + i + 1;
+                }
+                pos += n;
+            }
+        }
+
+        LineIterator iterator(long position) {
+            return new ChannelLineIterator(channel, position);
+        }
+    }
+
+    private interface LineIterator extends Iterator<String>, Closeable {
+        @Override
+        void close();
+    }
+
+    private static class ListLineIterator implements LineIterator {
+        private final Iterator<String> iterator;
+
+        ListLineIterator(List<String> lines) {
+            this.iterator = lines.iterator();
+        }
+
+        public boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        public String next() {
+            return iterator.next();
+        }
+
+        public void close() {
+        }
+    }
+
+    /**
+     * Reads lines using positional reads so many queries can share one channel.
+     */
+    private static class ChannelLineIterator implements LineIterator {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(16384);
+        private final ByteArrayOutputStream lineBuffer = new ByteArrayOutputStream();
+        private long position;
+        private String next;
+        private boolean eof;
+
+        ChannelLineIterator(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+            buffer.flip();
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null && !eof) next = readLine();
+            return next != null;
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            String line = next;
+            next = null;
+            return line;
+        }
+
+        private String readLine() {
+            try {
+                lineBuffer.reset();
+                while (true) {
+                    if (!buffer.hasRemaining()) {
+                        buffer.clear();
+                        int n = channel.read(buffer, position);
+                        buffer.flip();
+                        if (n <= 0) {
+                            eof = true;
+                            return lineBuffer.size() > 0 ? lineBuffer.toString(UTF_8) : null;
+                        }
+                        position += n;
+                    }
+                    byte b = buffer.get();
+                    if (b == '\n') return lineBuffer.toString(UTF_8);
+                    lineBuffer.write(b);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class MergingIterator implements Iterator<String> {
+        private final PriorityQueue<Map.Entry<String, Iterator<String>>> queue;
+
+        MergingIterator(List<? extends Iterator<String>> iterators) {
+            queue = new PriorityQueue<>(Math.max(1, iterators.size()), Map.Entry.comparingByKey());
+            for (var iterator : iterators) {
+                if (iterator.hasNext()) queue.add(Map.entry(iterator.next(), iterator));
+            }
+        }
+
+        public boolean hasNext() {
+            return !queue.isEmpty();
+        }
+
+        public String next() {
+            var entry = queue.remove();
+            if (entry.getValue().hasNext()) queue.add(Map.entry(entry.getValue().next(), entry.getValue()));
+            return entry.getKey();
+        }
+    }
+}
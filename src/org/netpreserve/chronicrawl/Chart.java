@@ -4,24 +4,53 @@ import javax.xml.stream.XMLOutputFactory;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamWriter;
 import java.io.StringWriter;
-import java.util.List;
+import java.util.Arrays;
 
 public class Chart {
-    public static String chart(List<Database.Metric> metrics) throws XMLStreamException {
-        for (var metric : metrics) {
-
-        }
+    /**
+     * Renders a bar chart of byte counts as SVG.
+     */
+    public static String chart(long[] values) throws XMLStreamException {
+        int chartHeight = 100;
+        int chartWidth = 800;
+        long max = Arrays.stream(values).max().orElse(0);
+        if (max == 0) max = 1;
 
         StringWriter sw = new StringWriter();
         XMLStreamWriter xml = XMLOutputFactory.newDefaultFactory().createXMLStreamWriter(sw);
         xml.writeStartDocument("UTF-8", "1.0");
         xml.writeStartElement("svg");
         xml.writeAttribute("xmlns", "http://www.w3.org/2000/svg");
-        for (var metric : metrics) {
-            xml.writeStartElement("rect");
-            xml.writeAttribute("height", Long.toString(metric.bytes));
-            xml.writeEndElement();
+        int x = 0;
+        int barWidth = Math.max(1, chartWidth / Math.max(1, values.length));
+        for (long value : values) {
+            int barHeight = (int) (value * chartHeight / max);
+            int y = chartHeight - barHeight;
+            if (barHeight > 0) {
+                xml.writeEmptyElement("rect");
+                xml.writeAttribute("fill", "#66f");
+                xml.writeAttribute("x", Integer.toString(x));
+                xml.writeAttribute("y", Integer.toString(y));
+                xml.writeAttribute("width", Integer.toString(barWidth));
+                xml.writeAttribute("height", Integer.toString(barHeight));
+                xml.writeCharacters("\n");
+            }
+            x += barWidth;
         }
+
+        int textHeight = 16;
+        xml.writeStartElement("text");
+        xml.writeAttribute("x", Integer.toString(chartWidth));
+        xml.writeAttribute("y", Integer.toString(textHeight));
+        xml.writeCharacters(max / 1024 + " KB");
+        xml.writeEndElement();
+
+        xml.writeStartElement("text");
+        xml.writeAttribute("x", Integer.toString(chartWidth));
+        xml.writeAttribute("y", Integer.toString(chartHeight));
+        xml.writeCharacters("0 KB");
+        xml.writeEndElement();
+
         xml.writeEndElement();
         xml.writeEndDocument();
         return sw.toString();
@@ -71,6 +71,12 @@ public class Config implements Iterable<Config.Entry> {
     @Section("User Interface")
     int uiPort = 8080;
 
+    /**
+     * Number of threads handling web interface requests (including pywb's cdx and record lookups)
+     */
+    @Section("User Interface")
+    int uiWorkerThreads = 8;
+
     /**
      * Name of the session cookie used by the Web UI
      */
@@ -83,6 +89,24 @@ public class Config implements Iterable<Config.Entry> {
     @Section("User Interface")
     long uiSessionExpirySecs = TimeUnit.DAYS.toSeconds(30);
 
+    /**
+     * Width of the time buckets recent crawl activity is counted in for the dashboard chart and /stats
+     */
+    @Section("User Interface")
+    int statsBucketMillis = 3000;
+
+    /**
+     * Number of time buckets of recent crawl activity to keep in memory
+     */
+    @Section("User Interface")
+    int statsBuckets = 1200;
+
+    /**
+     * Number of recent screenshots kept in memory for the home page
+     */
+    @Section("User Interface")
+    int screenshotBufferSize = 100;
+
     /**
      * User-Agent header to send to the server
      */
@@ -95,6 +119,39 @@ public class Config implements Iterable<Config.Entry> {
     @Section("Crawler")
     InetAddress bindAddress;
 
+    /**
+     * Comma-separated host=address[:port] pairs that override DNS for the crawler (not the browser's own requests).
+     * The host may be * or start with *. to match all subdomains, and the port if given replaces the URL's port.
+     * For example: *.staging.test=127.0.0.1:8000,example.org=10.0.0.5
+     */
+    @Section("Crawler")
+    String resolveOverrides = "";
+
+    /**
+     * How long a successful DNS lookup is reused. Java doesn't expose the record's own TTL so this applies to all
+     * hosts.
+     */
+    @Section("Crawler")
+    Duration dnsCacheTtl = Duration.ofMinutes(5);
+
+    /**
+     * How long a failed DNS lookup is remembered before the host is queried again.
+     */
+    @Section("Crawler")
+    Duration dnsNegativeTtl = Duration.ofMinutes(1);
+
+    /**
+     * Maximum number of hosts kept in the DNS cache.
+     */
+    @Section("Crawler")
+    int dnsCacheMaxEntries = 100000;
+
+    /**
+     * Number of threads looking up the hosts of newly discovered origins ahead of the crawler.
+     */
+    @Section("Crawler")
+    int dnsPrefetchThreads = 4;
+
     /**
      * Maximum number of bytes to read from robots.txt
      */
@@ -113,12 +170,134 @@ public class Config implements Iterable<Config.Entry> {
     @Section("Crawler")
     long maxDelayMillis = 30;
 
+    /**
+     * Adjust the delay between requests to each origin based on how the server responds: shorter while responses
+     * are healthy and fast, doubled on 429, 503 or 504 responses, connection failures and slowdowns.
+     */
+    @Section("Crawler")
+    boolean adaptiveDelay = true;
+
+    /**
+     * Shortest delay the adaptive delay will reduce to when robots.txt doesn't specify a crawl-delay.
+     */
+    @Section("Crawler")
+    long minDelayMillis = 0;
+
+    /**
+     * Amount the adaptive delay is reduced by after each healthy response.
+     */
+    @Section("Crawler")
+    long adaptiveStepMillis = 100;
+
+    /**
+     * Longest delay the adaptive delay will back off to, also the limit on honouring Retry-After.
+     */
+    @Section("Crawler")
+    long backoffMaxDelayMillis = 10 * 60 * 1000;
+
+    /**
+     * Maximum bytes per second read from servers across the whole crawl (0 for unlimited).
+     */
+    @Section("Crawler")
+    long bandwidthLimit = 0;
+
+    /**
+     * Maximum bytes per second read from any one origin (0 for unlimited).
+     */
+    @Section("Crawler")
+    long originBandwidthLimit = 0;
+
+    /**
+     * Comma-separated type=bytesPerSecond limits shared by all responses of a content type. The type may be exact,
+     * end in /* or be * alone, and the most specific match applies. For example: video/*=1000000,audio/*=500000
+     */
+    @Section("Crawler")
+    String contentTypeBandwidthLimits = "";
+
+    /**
+     * How long to wait for the TCP connection and again for the TLS handshake to complete (0 for forever).
+     */
+    @Section("Crawler")
+    Duration connectTimeout = Duration.ofSeconds(30);
+
+    /**
+     * How long to wait after sending the request for the server to start responding (0 for forever).
+     */
+    @Section("Crawler")
+    Duration firstByteTimeout = Duration.ofSeconds(60);
+
+    /**
+     * How long the server may go quiet part way through a response before the fetch is cut short (0 for forever).
+     */
+    @Section("Crawler")
+    Duration idleTimeout = Duration.ofSeconds(20);
+
+    /**
+     * Overall deadline for a fetch from connecting to the end of the response (0 for none). Responses still
+     * downloading when it passes are stored truncated.
+     */
+    @Section("Crawler")
+    Duration fetchTimeout = Duration.ofMinutes(20);
+
+    /**
+     * Maximum bytes to read of a response including its HTTP header (0 for unlimited). Longer responses are stored
+     * truncated.
+     */
+    @Section("Crawler")
+    long maxResponseBytes = 1024L * 1024 * 1024;
+
+    /**
+     * How origins are grouped for politeness. Requests to a group are spaced out by the crawl delay even when they
+     * are for different origins.
+     */
+    @Section("Crawler")
+    PolitenessGroup politenessGroup = PolitenessGroup.IP;
+
+    /**
+     * Maximum number of fetches in progress at once to each politeness group.
+     */
+    @Section("Crawler")
+    int politenessGroupConcurrency = 1;
+
+    /**
+     * Number of due origins considered each step when looking for one whose politeness group is free.
+     */
+    @Section("Crawler")
+    int politenessPeekOrigins = 50;
+
     /**
      * Maximum depth when following links
      */
     @Section("Crawler")
     int maxDepth = 10;
 
+    /**
+     * Number of locations rescheduled per database transaction when reapplying rules to an origin.
+     */
+    @Section("Crawler")
+    int reapplyRulesBatchSize = 1000;
+
+    /**
+     * Pause between batches when reapplying rules so the crawl's own writes aren't held up.
+     */
+    @Section("Crawler")
+    long reapplyRulesBatchDelayMillis = 50;
+
+    /**
+     * HTML responses larger than this are scanned for links with a streaming tokenizer instead of being parsed into
+     * a DOM. This uses far less memory on huge pages but skips the HTML5 tree building rules, so for example a base
+     * element only affects links that come after it.
+     */
+    @Section("Crawler")
+    long htmlStreamingThresholdBytes = 2 * 1024 * 1024;
+
+    /**
+     * Remember the links and resources found in each page and skip parsing and browsing when a later visit to the
+     * same location has the same payload digest.
+     */
+    @Section("Crawler")
+    boolean analysisCache = true;
+
     /**
      * Minimum duration between revisits. Only affects automatic scheduling not fixed scheduling rules.
      */
@@ -152,6 +331,81 @@ public class Config implements Iterable<Config.Entry> {
     @Section("Crawler")
     boolean scriptDeterminism = true;
 
+    /**
+     * Responses larger than this are streamed to the browser over a loopback connection rather than base64 encoded
+     * into a single devtools message.
+     */
+    @Section("Crawler")
+    long browserStreamThresholdBytes = 1024 * 1024;
+
+    /**
+     * Maximum number of responses streamed to the browser at once. Further large responses wait their turn.
+     */
+    @Section("Crawler")
+    int browserMaxStreams = 4;
+
+    /**
+     * Number of threads answering the browser's intercepted requests, shared by all tabs.
+     */
+    @Section("Crawler")
+    int browserRequestThreads = 8;
+
+    /**
+     * How often to check the browser is still responding. It's restarted if not.
+     */
+    @Section("Crawler")
+    long browserHeartbeatMillis = 5000;
+
+    /**
+     * Memory (outside the Java heap) for caching archived subresources replayed into the browser. 0 to disable.
+     */
+    @Section("Crawler")
+    long browserResponseCacheBytes = 64 * 1024 * 1024;
+
+    /**
+     * Captures of a subresource are cached per period of this length. Pages visited within the same period are given
+     * the same capture even if there's a closer one.
+     */
+    @Section("Crawler")
+    Duration browserResponseCacheBucket = Duration.ofDays(1);
+
+    /**
+     * Comma separated URL patterns of requests the browser pauses for the crawler to answer ('*' matches anything).
+     * Other requests aren't paused so they don't cost a round trip. The browser can't resolve any host but loopback
+     * so other http and https requests fail without reaching the live web, while data: and blob: URLs still work.
+     */
+    @Section("Crawler")
+    String browserInterceptPatterns = "http://*,https://*";
+
+    /**
+     * Comma separated resource types to intercept (e.g. Document,Stylesheet,Script,Image). Empty for all types.
+     * Requests of other types are failed.
+     */
+    @Section("Crawler")
+    String browserInterceptResourceTypes = "";
+
+    /**
+     * Comma separated hosts (including their subdomains) whose requests are failed as soon as they're paused, without
+     * looking for a capture or fetching them. Intended for ad and analytics services.
+     */
+    @Section("Crawler")
+    String browserBlockedHosts = "doubleclick.net,googlesyndication.com,googleadservices.com,google-analytics.com," +
+            "googletagmanager.com,googletagservices.com,adservice.google.com,amazon-adsystem.com,adnxs.com," +
+            "facebook.net,connect.facebook.net,scorecardresearch.com,quantserve.com,chartbeat.com,hotjar.com," +
+            "criteo.com,taboola.com,outbrain.com,moatads.com,rubiconproject.com,pubmatic.com,casalemedia.com";
+
+    /**
+     * Width in pixels of page screenshots. The browser scales the viewport down to this before encoding.
+     */
+    @Section("Crawler")
+    int screenshotWidth = 300;
+
+    /**
+     * JPEG quality (0-100) of page screenshots.
+     */
+    @Section("Crawler")
+    int screenshotQuality = 60;
+
 
     @Section("Crawler")
     boolean newHttpClient = false;
@@ -159,6 +413,12 @@ public class Config implements Iterable<Config.Entry> {
     @Section("External Archive")
     String externalCdxUrl = null;
 
+    /**
+     * Directory to save page screenshots to. When unset only the most recent are kept, in memory.
+     */
+    @Section("Storage")
+    String screenshotDir = null;
+
     /**
      * Digest algorithm to use when calculating payload digest
      */
@@ -201,6 +461,25 @@ public class Config implements Iterable<Config.Entry> {
     @Section("Storage")
     long dedupeMinLength = 64;
 
+    /**
+     * Directory to maintain a sorted CDXJ index of written records in, for example "data/cdxj". Empty (the default)
+     * disables the index.
+     */
+    @Section("Storage")
+    String cdxjDir = "";
+
+    /**
+     * Number of CDXJ lines to buffer in memory before writing them out as a new sorted segment
+     */
+    @Section("Storage")
+    int cdxjFlushLines = 10000;
+
+    /**
+     * Merge CDXJ segments together once there are this many of a similar size
+     */
+    @Section("Storage")
+    int cdxjMergeSegments = 8;
+
     /**
      * URL of the auth server (realm) to enable OpenID Connect authentication
      */
@@ -219,6 +498,12 @@ public class Config implements Iterable<Config.Entry> {
     @Section("User Interface")
     String oidcClientSecret;
 
+    /**
+     * Token that lets a Prometheus scraper read /metrics without logging in, sent as "Authorization: Bearer token"
+     */
+    @Section("User Interface")
+    String metricsToken;
+
     /**
      * Command to run pywb for optional replay.
      */
@@ -303,6 +588,7 @@ public class Config implements Iterable<Config.Entry> {
 
     @SuppressWarnings({"unchecked", "rawtypes"})
     private void set(Field field, String value) {
+        validate(field.getName(), value);
         try {
             if (field.getType().equals(Integer.TYPE)) {
                 field.setInt(this, Integer.parseInt(value));
@@ -334,6 +620,25 @@ public class Config implements Iterable<Config.Entry> {
         }
     }
 
+    /**
+     * Checks options that are only parsed when they're used, or that have a limited range, so a bad value is rejected
+     * when it's set rather than failing later.
+     */
+    private static void validate(String name, String value) {
+        switch (name) {
+            case "resolveOverrides":
+                Resolver.validateOverrides(value);
+                break;
+            case "contentTypeBandwidthLimits":
+                Throttle.validateContentTypeLimits(value);
+                break;
+            case "statsBucketMillis":
+            case "statsBuckets":
+                if (Integer.parseInt(value) <= 0) throw new IllegalArgumentException(name + " must be positive");
+                break;
+        }
+    }
+
     @Override
     public Iterator<Entry> iterator() {
         return Arrays.stream(getClass().getDeclaredFields())
@@ -9,55 +9,106 @@ import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
 import java.io.Closeable;
 import java.io.IOException;
-import java.io.UncheckedIOException;
+import java.nio.file.Paths;
 import java.security.NoSuchAlgorithmException;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class Crawl implements Closeable {
     private static final Logger log = LoggerFactory.getLogger(Crawl.class);
+    /**
+     * The frontier gauges count rows with a table scan, so they're recalculated at most this often.
+     */
+    private static final long COUNT_REFRESH_MILLIS = 60000;
+    private static final long PENDING_LOOKUP_RETRY_MILLIS = 500;
     final Config config;
     final Database db;
     final SSLSocketFactory sslSocketFactory;
-    private Browser browser;
+    final Resolver resolver;
+    final Politeness politeness;
+    final RateController rateController;
+    final Throttle throttle;
+    private final BrowserSupervisor browserSupervisor;
     final Storage storage;
     final Set<Exchange> exchanges = ConcurrentHashMap.newKeySet();
     final AtomicBoolean paused = new AtomicBoolean(true);
     final Pywb pywb;
     final CloseableHttpAsyncClient httpClient;
     final ExternalArchive externalArchive;
+    final ResponseCache responseCache;
+    final Screenshots screenshots;
+    final RollingStats stats;
+    final Map<Long, ReapplyRulesJob> reapplyRulesJobs = new ConcurrentHashMap<>();
+    private final List<Metrics.Gauge> gauges;
+    private final Map<Long, List<Rule>> rulesCache = new ConcurrentHashMap<>();
+    private final ExecutorService backgroundExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "Crawl background job");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public Crawl(Config config, Database db) throws IOException {
         this.config = config;
         this.db = db;
         storage = new Storage(config, db);
-        browser = new Browser();
-        pywb = new Pywb(config);
-        httpClient = HttpAsyncClients.createDefault();
         try {
-            sslSocketFactory = SSLContext.getDefault().getSocketFactory();
-        } catch (NoSuchAlgorithmException e) {
-            throw new IOException(e);
-        }
-        externalArchive = config.externalCdxUrl != null ? new ExternalArchive(config.externalCdxUrl) : null;
-    }
-
-    public synchronized Browser browser() {
-        if (!browser.alive()) {
-            log.error("Browser seems to have crashed, restarting it.");
-            browser.close();
+            responseCache = new ResponseCache(config.browserResponseCacheBytes, config.browserStreamThresholdBytes,
+                    config.browserResponseCacheBucket);
+            screenshots = new Screenshots(config.screenshotBufferSize,
+                    config.screenshotDir == null ? null : Paths.get(config.screenshotDir));
+            stats = new RollingStats(config.statsBucketMillis, config.statsBuckets);
+            browserSupervisor = new BrowserSupervisor(config, () -> paused.set(true));
+            pywb = new Pywb(config);
+            httpClient = HttpAsyncClients.createDefault();
             try {
-                browser = new Browser();
-            } catch (IOException e) {
-                log.error("Restarting browser failed. Pausing crawl.", e);
-                paused.set(true);
-                throw new UncheckedIOException(e);
+                sslSocketFactory = SSLContext.getDefault().getSocketFactory();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
             }
+            resolver = new Resolver(config);
+            politeness = new Politeness(config, resolver);
+            rateController = new RateController(config);
+            throttle = new Throttle(config);
+            externalArchive = config.externalCdxUrl != null ? new ExternalArchive(config.externalCdxUrl) : null;
+            gauges = List.of(
+                    Metrics.cachedGauge("chronicrawl_frontier_locations", "Locations due to be visited",
+                            COUNT_REFRESH_MILLIS, () -> db.locations.countDue(Instant.now())),
+                    Metrics.cachedGauge("chronicrawl_ready_origins", "Continuously crawled origins due a visit",
+                            COUNT_REFRESH_MILLIS, () -> db.origins.countReady(Instant.now())),
+                    Metrics.gauge("chronicrawl_active_exchanges", "Fetches currently in progress", exchanges::size));
+        } catch (IOException | RuntimeException e) {
+            storage.close(); // release the CDXJ index log
+            throw e;
         }
-        return browser;
+    }
+
+    public Browser browser() {
+        return browserSupervisor.browser();
+    }
+
+    /**
+     * Returns the compiled rules for an origin, loading them from the database on first use.
+     */
+    List<Rule> rules(long originId) {
+        return rulesCache.computeIfAbsent(originId, db.rules::listForOriginId);
+    }
+
+    /**
+     * Drops the cached rules for an origin and starts recalculating the next visit of its locations in the background.
+     * Any job still running for the same origin is cancelled.
+     */
+    ReapplyRulesJob reapplyRules(long originId) {
+        rulesCache.remove(originId);
+        ReapplyRulesJob job = new ReapplyRulesJob(db, config, originId, reapplyRulesJobs);
+        ReapplyRulesJob previous = reapplyRulesJobs.put(originId, job);
+        if (previous != null) previous.cancel();
+        backgroundExecutor.submit(job);
+        return job;
     }
 
     public void addSeed(String url) {
@@ -67,6 +118,7 @@ public class Crawl implements Closeable {
         db.origins.updateCrawlPolicy(crawlUrl.originId(), CrawlPolicy.CONTINUOUS);
         db.locations.tryInsert(crawlUrl.resolve("/robots.txt"), Location.Type.ROBOTS, null, 0, now);
         db.locations.tryInsert(crawlUrl, Location.Type.PAGE, null, 0, now);
+        resolver.prefetch(crawlUrl.host());
     }
 
     void enqueue(Location via, Instant date, Url targetUrl, Location.Type type) {
@@ -75,13 +127,18 @@ public class Crawl implements Closeable {
 
         if (db.origins.tryInsert(targetUrl.originId(), targetUrl.origin(), date, CrawlPolicy.TRANSCLUSIONS)) {
             db.locations.tryInsert(targetUrl.resolve("/robots.txt"), Location.Type.ROBOTS, null, 0, date);
+            resolver.prefetch(targetUrl.host());
         }
-        db.locations.tryInsert(targetUrl, type, via.url, via == null ? 0 : via.depth + 1, date);
+        db.locations.tryInsert(targetUrl, type, via.url(), via == null ? 0 : via.depth + 1, date);
     }
 
     @Override
     public void close() {
-        browser.close();
+        gauges.forEach(Metrics::unregister); // they'd keep this crawl and its database reachable
+        backgroundExecutor.shutdownNow();
+        resolver.close();
+        browserSupervisor.close();
+        screenshots.close();
         db.close();
         storage.close();
         pywb.close();
@@ -101,7 +158,7 @@ public class Crawl implements Closeable {
             }
             return;
         }
-        List<Origin> origins = db.origins.peek(1);
+        List<Origin> origins = db.origins.peek(config.politenessPeekOrigins);
         if (origins.isEmpty()) {
             try {
                 Thread.sleep(1000);
@@ -110,23 +167,58 @@ public class Crawl implements Closeable {
             }
             return;
         }
-        Origin origin = origins.get(0);
-        Instant now = Instant.now();
-        if (origin.nextVisit.isAfter(now)) {
+
+        // take the first due origin whose politeness group has a free slot
+        long now = System.currentTimeMillis();
+        long wakeAt = now + 1000;
+        Origin origin = null;
+        Politeness.Group group = null;
+        for (Origin candidate : origins) {
+            if (candidate.nextVisit.toEpochMilli() > now) {
+                wakeAt = Math.min(wakeAt, candidate.nextVisit.toEpochMilli());
+                break; // peek is ordered by next visit so the rest aren't due either
+            }
+            String key = politeness.key(candidate);
+            if (key == null) {
+                // its address is still being looked up, come back once it's known
+                long retryAt = now + PENDING_LOOKUP_RETRY_MILLIS;
+                db.origins.updateNextVisit(candidate.id, Instant.ofEpochMilli(retryAt));
+                wakeAt = Math.min(wakeAt, retryAt);
+                continue;
+            }
+            group = politeness.tryAcquire(key, now);
+            if (group != null) {
+                origin = candidate;
+                break;
+            }
+            // move it back in the queue so a run of origins in one busy group can't hide free ones behind it
+            long availableAt = politeness.availableAt(key, now);
+            db.origins.updateNextVisit(candidate.id, Instant.ofEpochMilli(availableAt));
+            wakeAt = Math.min(wakeAt, availableAt);
+        }
+        if (origin == null) {
             try {
-                Thread.sleep(Duration.between(now, origin.nextVisit).toMillis());
+                Thread.sleep(Math.max(1, wakeAt - now));
             } catch (InterruptedException e) {
                 e.printStackTrace();
-                return;
             }
-        }
-        Location location = db.locations.peek(origin.id);
-        if (location == null) {
-            db.origins.updateVisit(origin.id, Instant.now(), null);
             return;
         }
-        try (Exchange exchange = new Exchange(this, origin, location, "GET", Collections.emptyMap())) {
-            exchange.run();
+
+        long delayMillis = rateController.baselineDelayMillis(origin); // in case the exchange throws
+        try {
+            Location location = db.locations.peek(origin.id);
+            if (location == null) {
+                db.origins.updateVisit(origin.id, Instant.now(), null);
+                delayMillis = 0;
+                return;
+            }
+            try (Exchange exchange = new Exchange(this, origin, location, "GET", Collections.emptyMap())) {
+                exchange.run();
+                delayMillis = exchange.delayMillis;
+            }
+        } finally {
+            politeness.release(group, System.currentTimeMillis(), delayMillis);
         }
     }
 
@@ -140,7 +232,7 @@ public class Crawl implements Closeable {
         List<Visit> visits = db.visits.list(location.originId, location.pathId);
         if (externalArchive != null) {
             visits = new ArrayList<>(visits);
-            visits.addAll(externalArchive.list(location.url.toString()));
+            visits.addAll(externalArchive.list(location.url().toString()));
             visits.sort(Comparator.comparing((Visit v) -> v.date).reversed());
         }
         return visits;
@@ -0,0 +1,194 @@
+package org.netpreserve.chronicrawl;
+
+import org.netpreserve.chronicrawl.Analysis.ResourceType;
+
+import java.util.function.BiConsumer;
+
+/**
+ * Pulls url() and @import references out of CSS text without parsing it. Much cheaper than running a full
+ * SAC parser over every style attribute on a page. Strings and comments are skipped so that url( inside them isn't
+ * mistaken for a reference.
+ */
+class CssScanner {
+    private final String css;
+    private final BiConsumer<String, ResourceType> consumer;
+    private int pos;
+    private int depth;
+    private int fontFaceDepth = -1;
+    private boolean inImport;
+    private boolean fontFacePending;
+
+    private CssScanner(String css, BiConsumer<String, ResourceType> consumer) {
+        this.css = css;
+        this.consumer = consumer;
+    }
+
+    /**
+     * Reports each referenced URL (unresolved) to the consumer along with its resource type: Stylesheet for @import,
+     * Font within @font-face and Image otherwise.
+     */
+    static void scan(String css, BiConsumer<String, ResourceType> consumer) {
+        new CssScanner(css, consumer).run();
+    }
+
+    private void run() {
+        int length = css.length();
+        while (pos < length) {
+            char c = css.charAt(pos);
+            switch (c) {
+                case '/':
+                    if (pos + 1 < length && css.charAt(pos + 1) == '*') {
+                        int end = css.indexOf("*/", pos + 2);
+                        pos = end < 0 ? length : end + 2;
+                    } else {
+                        pos++;
+                    }
+                    break;
+                case '"':
+                case '\'':
+                    String string = readString(c);
+                    if (inImport) {
+                        emit(string);
+                    }
+                    break;
+                case '@':
+                    pos++;
+                    int start = pos;
+                    while (pos < length && isIdentChar(css.charAt(pos))) pos++;
+                    String keyword = css.substring(start, pos);
+                    if (keyword.equalsIgnoreCase("import")) {
+                        inImport = true;
+                    } else if (keyword.equalsIgnoreCase("font-face")) {
+                        fontFacePending = true;
+                    }
+                    break;
+                case '{':
+                    depth++;
+                    if (fontFacePending) {
+                        fontFaceDepth = depth;
+                        fontFacePending = false;
+                    }
+                    pos++;
+                    break;
+                case '}':
+                    if (depth == fontFaceDepth) fontFaceDepth = -1;
+                    if (depth > 0) depth--;
+                    pos++;
+                    break;
+                case ';':
+                    inImport = false;
+                    pos++;
+                    break;
+                case 'u':
+                case 'U':
+                    if (css.regionMatches(true, pos, "url(", 0, 4) && (pos == 0 || !isIdentChar(css.charAt(pos - 1)))) {
+                        pos += 4;
+                        readUrl();
+                    } else {
+                        pos++;
+                    }
+                    break;
+                default:
+                    pos++;
+            }
+        }
+    }
+
+    private void emit(String url) {
+        ResourceType type;
+        if (inImport) {
+            type = ResourceType.Stylesheet;
+            inImport = false;
+        } else if (fontFaceDepth >= 0) {
+            type = ResourceType.Font;
+        } else {
+            type = ResourceType.Image;
+        }
+        if (!url.isBlank()) consumer.accept(url, type);
+    }
+
+    private void readUrl() {
+        skipWhitespace();
+        if (pos >= css.length()) return;
+        char c = css.charAt(pos);
+        String url;
+        if (c == '"' || c == '\'') {
+            url = readString(c);
+            skipWhitespace();
+        } else {
+            int start = pos;
+            boolean escaped = false;
+            while (pos < css.length()) {
+                c = css.charAt(pos);
+                if (c == ')' || isWhitespace(c)) break;
+                if (c == '\\') {
+                    escaped = true;
+                    pos++;
+                }
+                pos++;
+            }
+            url = escaped ? unescape(css, start, Math.min(pos, css.length())) : css.substring(start, pos);
+            skipWhitespace();
+        }
+        if (pos < css.length() && css.charAt(pos) == ')') pos++;
+        emit(url);
+    }
+
+    /**
+     * Reads a quoted string starting at the opening quote and returns its unescaped contents.
+     */
+    private String readString(char quote) {
+        int start = ++pos;
+        boolean escaped = false;
+        while (pos < css.length()) {
+            char c = css.charAt(pos);
+            if (c == quote || c == '\n') break;
+            if (c == '\\') {
+                escaped = true;
+                pos++;
+            }
+            pos++;
+        }
+        int end = Math.min(pos, css.length());
+        pos = end + 1;
+        return escaped ? unescape(css, start, end) : css.substring(start, end);
+    }
+
+    private void skipWhitespace() {
+        while (pos < css.length() && isWhitespace(css.charAt(pos))) pos++;
+    }
+
+    private static String unescape(String s, int start, int end) {
+        StringBuilder sb = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c != '\\' || i + 1 >= end) {
+                sb.append(c);
+                continue;
+            }
+            c = s.charAt(++i);
+            if (c == '\n') continue; // line continuation
+            if (Character.digit(c, 16) < 0) {
+                sb.append(c);
+                continue;
+            }
+            int hexEnd = i;
+            while (hexEnd < end && hexEnd - i < 6 && Character.digit(s.charAt(hexEnd), 16) >= 0) hexEnd++;
+            int codePoint = Integer.parseInt(s.substring(i, hexEnd), 16);
+            sb.appendCodePoint(codePoint == 0 || codePoint > Character.MAX_CODE_POINT ||
+                    (codePoint >= 0xd800 && codePoint <= 0xdfff) ? 0xfffd : codePoint);
+            i = hexEnd - 1;
+            if (hexEnd < end && isWhitespace(s.charAt(hexEnd))) i++;
+        }
+        return sb.toString();
+    }
+
+    private static boolean isIdentChar(char c) {
+        return c == '-' || c == '_' || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                || c >= 0x80;
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+}
@@ -2,23 +2,32 @@ package org.netpreserve.chronicrawl;
 
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
+import org.jdbi.v3.core.Handle;
+import org.jdbi.v3.core.HandleCallback;
 import org.jdbi.v3.core.Jdbi;
 import org.jdbi.v3.core.argument.AbstractArgumentFactory;
 import org.jdbi.v3.core.argument.Argument;
 import org.jdbi.v3.core.config.ConfigRegistry;
+import org.jdbi.v3.core.extension.ExtensionMethod;
 import org.jdbi.v3.core.mapper.CaseStrategy;
 import org.jdbi.v3.core.mapper.MapMapper;
 import org.jdbi.v3.core.mapper.MapMappers;
+import org.jdbi.v3.core.result.ResultIterator;
 import org.jdbi.v3.core.statement.SqlLogger;
 import org.jdbi.v3.core.statement.StatementContext;
+import org.jdbi.v3.core.transaction.DelegatingTransactionHandler;
+import org.jdbi.v3.core.transaction.TransactionHandler;
+import org.jdbi.v3.core.transaction.TransactionIsolationLevel;
 import org.jdbi.v3.sqlobject.SqlObject;
 import org.jdbi.v3.sqlobject.SqlObjectPlugin;
 import org.jdbi.v3.sqlobject.config.KeyColumn;
 import org.jdbi.v3.sqlobject.config.RegisterConstructorMapper;
 import org.jdbi.v3.sqlobject.config.RegisterRowMapper;
 import org.jdbi.v3.sqlobject.config.ValueColumn;
+import org.jdbi.v3.sqlobject.statement.SqlBatch;
 import org.jdbi.v3.sqlobject.statement.SqlQuery;
 import org.jdbi.v3.sqlobject.statement.SqlUpdate;
+import org.jdbi.v3.sqlobject.transaction.Transaction;
 import org.netpreserve.jwarc.WarcDigest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -39,7 +48,7 @@ public class Database implements AutoCloseable {
     public final OriginDAO origins;
     public final RuleDAO rules;
     public final ScheduleDAO schedules;
-    public final ScreenshotCacheDAO screenshotCache;
+    public final AnalysisCacheDAO analysisCache;
     public final SitemapEntryDAO sitemapEntries;
     public final SessionDAO sessions;
     public final VisitDAO visits;
@@ -87,10 +96,19 @@ public class Database implements AutoCloseable {
                 return (i, stmt, ctx) -> stmt.setBytes(i, toBytes(value));
             }
         });
+        jdbi.setTransactionHandler(new EventTransactionHandler(jdbi.getTransactionHandler()));
         jdbi.setSqlLogger(new SqlLogger() {
             @Override
             public void logAfterExecution(StatementContext ctx) {
-                long elapsedMillis = ctx.getElapsedTime(ChronoUnit.MILLIS);
+                long elapsedNanos = ctx.getElapsedTime(ChronoUnit.NANOS);
+                ExtensionMethod extensionMethod = ctx.getExtensionMethod();
+                if (extensionMethod != null) {
+                    Metrics.sqlSeconds.observeNanos(elapsedNanos, extensionMethod.getType().getSimpleName(),
+                            extensionMethod.getMethod().getName());
+                } else {
+                    Metrics.sqlSeconds.observeNanos(elapsedNanos, "", "");
+                }
+                long elapsedMillis = elapsedNanos / 1000000;
                 if (config.logSlowQueriesMillis >= 0 && elapsedMillis >= config.logSlowQueriesMillis) {
                     log.warn("Slow SQL ({} ms): {} {}", elapsedMillis, ctx.getRawSql(), ctx.getBinding());
                 }
@@ -102,13 +120,51 @@ public class Database implements AutoCloseable {
         this.locations = jdbi.onDemand(LocationDAO.class);
         this.rules = jdbi.onDemand(RuleDAO.class);
         this.schedules = jdbi.onDemand(ScheduleDAO.class);
-        this.screenshotCache = jdbi.onDemand(ScreenshotCacheDAO.class);
+        this.analysisCache = jdbi.onDemand(AnalysisCacheDAO.class);
         this.sitemapEntries = jdbi.onDemand(SitemapEntryDAO.class);
         this.sessions = jdbi.onDemand(SessionDAO.class);
         this.visits = jdbi.onDemand(VisitDAO.class);
         this.warcs = jdbi.onDemand(WarcDAO.class);
     }
 
+    /**
+     * Emits a flight recorder event for each outermost transaction.
+     */
+    private static class EventTransactionHandler extends DelegatingTransactionHandler {
+        EventTransactionHandler(TransactionHandler delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public <R, X extends Exception> R inTransaction(Handle handle, HandleCallback<R, X> callback) throws X {
+            if (isInTransaction(handle)) return super.inTransaction(handle, callback);
+            var event = new JfrEvents.DatabaseTransactionEvent();
+            event.begin();
+            try {
+                R result = super.inTransaction(handle, callback);
+                event.committed = true;
+                return result;
+            } finally {
+                event.commit();
+            }
+        }
+
+        @Override
+        public <R, X extends Exception> R inTransaction(Handle handle, TransactionIsolationLevel level,
+                                                        HandleCallback<R, X> callback) throws X {
+            if (isInTransaction(handle)) return super.inTransaction(handle, level, callback);
+            var event = new JfrEvents.DatabaseTransactionEvent();
+            event.begin();
+            try {
+                R result = super.inTransaction(handle, level, callback);
+                event.committed = true;
+                return result;
+            } finally {
+                event.commit();
+            }
+        }
+    }
+
     public static byte[] toBytes(UUID uuid) {
         if (uuid == null) return null;
         ByteBuffer bb = ByteBuffer.allocate(16);
@@ -165,7 +221,8 @@ public class Database implements AutoCloseable {
     @RegisterConstructorMapper(Origin.class)
     public interface OriginDAO {
         String fields = "o.id, o.origin, o.discovered, o.last_visit, o.next_visit, " +
-                "o.robots_crawl_delay, o.robots_txt, (SELECT cp.name FROM crawl_policy cp WHERE cp.id = o.crawl_policy_id) as crawl_policy";
+                "o.robots_crawl_delay, o.robots_txt, (SELECT cp.name FROM crawl_policy cp WHERE cp.id = o.crawl_policy_id) as crawl_policy, " +
+                "o.delay_millis, o.response_millis";
 
         @SqlQuery("SELECT " + fields + " FROM origin o WHERE id = ?")
         Origin find(long originId);
@@ -179,6 +236,16 @@ public class Database implements AutoCloseable {
         @SqlQuery("SELECT origin FROM origin WHERE id = ?")
         String findOrigin(long id);
 
+        @SqlQuery("SELECT COUNT(*) FROM origin " +
+                "WHERE crawl_policy_id = (SELECT id FROM crawl_policy WHERE name = 'CONTINUOUS') AND next_visit <= ?")
+        long countReady(Instant now);
+
+        @SqlQuery("SELECT " + fields + " FROM origin o WHERE o.origin >= ? AND o.origin < ?")
+        List<Origin> listInRange(String from, String to);
+
+        @SqlQuery("SELECT " + fields + " FROM origin o WHERE o.origin LIKE ?")
+        List<Origin> listLike(String pattern);
+
         @SqlUpdate("INSERT INTO origin (id, origin, discovered, next_visit, crawl_policy_id) " +
                 "VALUES (?, ?, ?, ?, (SELECT id FROM crawl_policy WHERE name = ?))")
         void insert(long id, String origin, Instant discovered, Instant nextVisit, CrawlPolicy crawlPolicy);
@@ -202,6 +269,13 @@ public class Database implements AutoCloseable {
         @SqlUpdate("UPDATE origin SET next_visit = :nextVisit, last_visit = :lastVisit WHERE id = :originId")
         void updateVisit(long originId, Instant lastVisit, Instant nextVisit);
 
+        @SqlUpdate("UPDATE origin SET next_visit = :nextVisit WHERE id = :originId")
+        void updateNextVisit(long originId, Instant nextVisit);
+
+        @SqlUpdate("UPDATE origin SET next_visit = :nextVisit, last_visit = :lastVisit, delay_millis = :delayMillis, " +
+                "response_millis = :responseMillis WHERE id = :originId")
+        void updateVisitAndRate(long originId, Instant lastVisit, Instant nextVisit, long delayMillis, Long responseMillis);
+
         @SqlUpdate("UPDATE origin SET robots_crawl_delay = :crawlDelay, robots_txt = :robotsTxt WHERE id = :originId")
         void updateRobots(long originId, Short crawlDelay, byte[] robotsTxt);
 
@@ -279,6 +353,35 @@ public class Database implements AutoCloseable {
                 "LEFT JOIN origin o ON o.id = l.origin_id " +
                 "WHERE origin_id = ? AND path_id >= ? ORDER BY path_id ASC LIMIT ?")
         List<Location> paginate(long originId, long startPathId, int limit);
+
+        @SqlQuery("SELECT path_id, path, last_visit, next_visit FROM location " +
+                "WHERE origin_id = ? AND path_id >= ? ORDER BY path_id ASC LIMIT ?")
+        @RegisterConstructorMapper(VisitTimes.class)
+        List<VisitTimes> paginateVisitTimes(long originId, long startPathId, int limit);
+
+        @SqlQuery("SELECT COUNT(*) FROM location WHERE origin_id = ?")
+        long countForOrigin(long originId);
+
+        @SqlQuery("SELECT COUNT(*) FROM location WHERE next_visit <= ?")
+        long countDue(Instant now);
+
+        @SqlBatch("UPDATE location SET next_visit = :nextVisit WHERE origin_id = :originId AND path_id = :pathId")
+        @Transaction
+        void updateNextVisits(long originId, List<Long> pathId, List<Instant> nextVisit);
+    }
+
+    public static class VisitTimes {
+        public final long pathId;
+        public final String path;
+        public final Instant lastVisit;
+        public final Instant nextVisit;
+
+        public VisitTimes(long pathId, String path, Instant lastVisit, Instant nextVisit) {
+            this.pathId = pathId;
+            this.path = path;
+            this.lastVisit = lastVisit;
+            this.nextVisit = nextVisit;
+        }
     }
 
     @RegisterConstructorMapper(Rule.class)
@@ -362,30 +465,38 @@ public class Database implements AutoCloseable {
         @SqlQuery("SELECT *, (SELECT method FROM method WHERE method.id = v.method_id) AS method, " +
                 "(SELECT ct.content_type FROM content_type ct WHERE ct.id = v.content_type_id) AS content_type " +
                 "FROM visit v WHERE origin_id = ? AND path_id = ? AND response_payload_digest = ? " +
-                "AND revisit_of_date IS NULL LIMIT 1")
+                "AND revisit_of_date IS NULL AND truncated IS NULL LIMIT 1")
         Visit findByResponsePayloadDigest(long originId, long pathId, byte[] digest);
 
         @SqlUpdate("INSERT INTO visit (origin_id, path_id, date, method_id, status, content_length, " +
                 "content_type_id, warc_id, request_position, request_length, request_payload_digest, " +
-                "response_position, response_length, response_payload_digest, revisit_of_date) " +
+                "response_position, response_length, response_payload_digest, revisit_of_date, timings, truncated) " +
                 "VALUES (?, ?, ?, (SELECT id FROM method WHERE method = ?), ?, ?, " +
                 "COALESCE((SELECT id FROM content_type WHERE content_type = ?), " +
                 "(SELECT id FROM content_type WHERE content_type = 'application/octet-stream')), " +
-                "?, ?, ?, ?, ?, ?, ?, ?)")
+                "?, ?, ?, ?, ?, ?, ?, ?, ?, ?)")
         void _insert(long originId, long pathId, Instant date, String method, int fetchStatus, long contentLength,
                      String contentType, UUID warcId, long requestPosition, long requestLength, byte[] requestPayloadDigest,
-                     long responsePosition, long responseLength, byte[] responsePayloadDigest, Instant revisitOfDate);
+                     long responsePosition, long responseLength, byte[] responsePayloadDigest, Instant revisitOfDate,
+                     byte[] timings, String truncated);
 
         default void insert(Exchange exchange) {
             _insert(exchange.location.originId, exchange.location.pathId, exchange.date, exchange.method,
                             exchange.fetchStatus, exchange.contentLength, exchange.contentType, exchange.warcId,
                             exchange.requestPosition, exchange.requestLength, null, exchange.responsePosition,
                             exchange.responseLength, exchange.digest == null ? null : Arrays.copyOf(exchange.digest, 8),
-                            exchange.revisitOf == null ? null : exchange.revisitOf.date);
+                            exchange.revisitOf == null ? null : exchange.revisitOf.date, exchange.timings.encode(),
+                            exchange.truncated == null ? null : exchange.truncated.name().toLowerCase(Locale.ROOT));
         }
 
+        @SqlUpdate("UPDATE visit SET timings = :timings WHERE origin_id = :originId AND path_id = :pathId AND date = :date")
+        void updateTimings(long originId, long pathId, Instant date, byte[] timings);
+
+        @SqlQuery("SELECT timings FROM visit WHERE origin_id = ? AND timings IS NOT NULL ORDER BY date DESC LIMIT ?")
+        List<byte[]> listRecentTimings(long originId, int limit);
+
         @SqlQuery("SELECT date FROM visit WHERE origin_id = ? AND path_id = ? " +
-                "AND method_id = (SELECT id FROM method WHERE method = ?) AND STATUS > 0 AND STATUS <> 304 " +
+                "AND method_id = (SELECT id FROM method WHERE method = ?) AND STATUS > 0 AND STATUS <> 304 AND truncated IS NULL " +
                 "ORDER BY ABS(date - ?) DESC LIMIT 1")
         Long _findClosest(long originId, long pathId, String method, Instant closestDate);
 
@@ -394,17 +505,31 @@ public class Database implements AutoCloseable {
             return closest == null ? null : find(originId, pathId, Instant.ofEpochMilli(closest));
         }
 
-        @SqlQuery("SELECT v.date, (o.origin || l.path) as url, ct.content_type, v.status, " +
-                "v.response_payload_digest, v.response_length, v.response_position, v.warc_id " +
-                "FROM visit v " +
-                "LEFT JOIN location l ON l.origin_id = v.origin_id AND l.path_id = v.path_id " +
+        String cdxFields = "v.date, o.origin, l.path, ct.content_type, v.status, v.response_payload_digest, " +
+                "v.response_length, v.response_position, v.warc_id " +
+                "FROM location l " +
+                "JOIN visit v ON v.origin_id = l.origin_id AND v.path_id = l.path_id " +
                 "LEFT JOIN origin o ON o.id = l.origin_id " +
-                "LEFT JOIN content_type ct ON ct.id = v.content_type_id " +
-                "WHERE v.origin_id = ? AND v.path_id = ? AND " +
-                "v.method_id = (SELECT id FROM method WHERE method = 'GET') AND v.status > 0 AND v.status <> 304 " +
-                "AND v.response_payload_digest IS NOT NULL AND v.warc_id IS NOT NULL " +
-                "LIMIT 1000")
-        List<CdxLine> asCdxLines(long originId, long pathId);
+                "LEFT JOIN content_type ct ON ct.id = v.content_type_id ";
+        // truncated captures aren't offered for replay, a partial page would be served as if it were complete
+        String cdxConditions = "v.method_id = (SELECT id FROM method WHERE method = 'GET') AND v.status > 0 " +
+                "AND v.status <> 304 AND v.response_payload_digest IS NOT NULL AND v.warc_id IS NOT NULL " +
+                "AND v.truncated IS NULL";
+
+        /**
+         * Replayable captures of an origin with paths in [fromPath, toPath) ordered by path and date. Captures of
+         * fromPath itself are only included if they're later than afterDate.
+         */
+        @SqlQuery("SELECT " + cdxFields +
+                "WHERE l.origin_id = :originId AND l.path >= :fromPath AND l.path < :toPath " +
+                "AND NOT (l.path = :fromPath AND v.date <= :afterDate) AND " + cdxConditions + " " +
+                "ORDER BY l.path, v.date")
+        ResultIterator<CdxLine> cdxRange(long originId, String fromPath, long afterDate, String toPath);
+
+        @SqlQuery("SELECT " + cdxFields +
+                "WHERE l.origin_id = :originId AND l.path_id = :pathId AND " + cdxConditions + " " +
+                "ORDER BY ABS(v.date - :closest)")
+        ResultIterator<CdxLine> cdxClosest(long originId, long pathId, Instant closest);
 
         @SqlQuery("SELECT v.origin_id AS originId, v.path_id AS pathId, v.date, m.method, " +
                 "o.origin, l.path, v.status, ct.content_type, v.content_length " +
@@ -431,82 +556,62 @@ public class Database implements AutoCloseable {
                 "ORDER BY v.date DESC LIMIT ?")
         @RegisterRowMapper(MapMapper.class)
         List<Map<String, Object>> paginateCrawlLogPagesOnly(Instant after, int limit);
-
-        @SqlQuery("SELECT ROUND(date / :intervalMillis) * :intervalMillis AS millis, COUNT(*) AS visits, " +
-                "SUM(response_length) AS bytes FROM visit " +
-                "WHERE date >= :start AND date <= :end " +
-                "GROUP BY millis")
-        @RegisterConstructorMapper(Metric.class)
-        List<Metric> metrics(Instant start, Instant end, long intervalMillis);
     }
 
-    public static class Metric {
-        public final long millis;
-        public final long visits;
-        public final long bytes;
+    @RegisterConstructorMapper(CachedAnalysis.class)
+    public interface AnalysisCacheDAO {
+        @SqlQuery("SELECT date, title, has_script, resources, links FROM analysis_cache " +
+                "WHERE origin_id = ? AND path_id = ? AND payload_digest = ?")
+        CachedAnalysis find(long originId, long pathId, byte[] payloadDigest);
 
-        public Metric(long millis, long visits, long bytes) {
-            this.millis = millis;
-            this.visits = visits;
-            this.bytes = bytes;
-        }
-    }
+        @SqlUpdate("DELETE FROM analysis_cache WHERE origin_id = ? AND path_id = ?")
+        void _delete(long originId, long pathId);
 
-    @RegisterConstructorMapper(Screenshot.class)
-    public interface ScreenshotCacheDAO {
-        @SqlUpdate("INSERT INTO screenshot_cache (origin_id, path_id, date, screenshot) VALUES (?, ?, ?, ?)")
-        void _insert(long originId, long pathId, Instant date, byte[] screenshot);
+        @SqlUpdate("INSERT INTO analysis_cache (origin_id, path_id, payload_digest, date, title, has_script, resources, links) " +
+                "VALUES (?, ?, ?, ?, ?, ?, ?, ?)")
+        void _insert(long originId, long pathId, byte[] payloadDigest, Instant date, String title, boolean hasScript,
+                     byte[] resources, byte[] links);
 
-        default void insert(Url url, Instant date, byte[] screenshot) {
-            _insert(url.originId(), url.pathId(), date, screenshot);
+        @Transaction
+        default void insertOrReplace(long originId, long pathId, byte[] payloadDigest, Instant date, String title,
+                                     boolean hasScript, byte[] resources, byte[] links) {
+            _delete(originId, pathId);
+            _insert(originId, pathId, payloadDigest, date, title, hasScript, resources, links);
         }
-
-        @SqlUpdate("delete from screenshot_cache where date < (select min(date) from (select date from screenshot_cache order by date desc limit ?))")
-        void expire(int keep);
-
-        @SqlQuery("SELECT sc.origin_id, sc.path_id, sc.date, o.origin, l.path, sc.screenshot FROM screenshot_cache sc " +
-                "LEFT JOIN location l ON l.origin_id = sc.origin_id AND l.path_id = sc.path_id " +
-                "LEFT JOIN origin o ON o.id = sc.origin_id " +
-                "WHERE sc.date > ? " +
-                "ORDER BY sc.date DESC " +
-                "LIMIT ?")
-        List<Screenshot> getN(long after, int n);
     }
 
-    public static class Screenshot {
-        public final long originId;
-        public final long pathId;
+    public static class CachedAnalysis {
         public final Instant date;
-        public final Url url;
-        public final byte[] screenshot;
+        public final String title;
+        public final boolean hasScript;
+        public final byte[] resources;
+        public final byte[] links;
 
-        public Screenshot(long originId, long pathId, Instant date, String origin, String path, byte[] screenshot) {
-            this.originId = originId;
-            this.pathId = pathId;
+        public CachedAnalysis(Instant date, String title, boolean hasScript, byte[] resources, byte[] links) {
             this.date = date;
-            this.url = new Url(origin + path);
-            this.screenshot = screenshot;
-        }
-
-        public String screenshotDataUrl() {
-            return Util.makeJpegDataUrl(screenshot);
+            this.title = title;
+            this.hasScript = hasScript;
+            this.resources = resources;
+            this.links = links;
         }
     }
 
     public static class CdxLine {
-        private final Instant date;
-        private final String url;
-        private final String contentType;
-        private final int status;
-        private final byte[] payloadDigest;
-        private final long length;
-        private final long position;
-        private final UUID warcId;
-
-        public CdxLine(Instant date, String url, String contentType, int status, byte[] responsePayloadDigest,
-                       long responseLength, long responsePosition, UUID warcId) {
+        final Instant date;
+        final String origin;
+        final String path;
+        final String contentType;
+        final int status;
+        final byte[] payloadDigest;
+        final long length;
+        final long position;
+        final UUID warcId;
+
+        public CdxLine(Instant date, String origin, String path, String contentType, int status,
+                       byte[] responsePayloadDigest, long responseLength, long responsePosition, UUID warcId) {
             this.date = date;
-            this.url = url;
+            this.origin = origin;
+            this.path = path;
             this.contentType = contentType;
             this.status = status;
             byte[] digest  = responsePayloadDigest;
@@ -516,10 +621,21 @@ public class Database implements AutoCloseable {
             this.warcId = warcId;
         }
 
+        String url() {
+            return origin + path;
+        }
+
+        String digest() {
+            return payloadDigest == null ? "-" : new WarcDigest("sha1", payloadDigest).base32();
+        }
+
+        String filename() {
+            return "?id=" + warcId;
+        }
+
         public String toString() {
-            String digest = payloadDigest == null ? null : new WarcDigest("sha1", payloadDigest).base32();
-            return "- " + Util.ARC_DATE.format(date) + " " + url + " " + contentType + " " + status + " " + (digest == null ? "-" : digest) + " - - "
-                    + length + " " + position + " ?id=" + warcId;
+            return "- " + Util.ARC_DATE.format(date) + " " + url() + " " + contentType + " " + status + " " + digest() + " - - "
+                    + length + " " + position + " " + filename();
         }
     }
 
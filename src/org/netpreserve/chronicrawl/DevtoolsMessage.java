@@ -0,0 +1,211 @@
+package org.netpreserve.chronicrawl;
+
+import com.grack.nanojson.JsonObject;
+import com.grack.nanojson.JsonParser;
+import com.grack.nanojson.JsonParserException;
+
+/**
+ * A devtools protocol message with its routing fields (id, method, sessionId) peeked from the raw JSON text. The
+ * full JSON tree is only built if something asks for it, so messages nobody is interested in (and the
+ * multi-megabyte payloads of some responses) don't get parsed on the WebSocket thread.
+ */
+class DevtoolsMessage {
+    final String raw;
+    final long id;
+    final String method;
+    final String sessionId;
+    private JsonObject object;
+
+    private DevtoolsMessage(String raw, long id, String method, String sessionId) {
+        this.raw = raw;
+        this.id = id;
+        this.method = method;
+        this.sessionId = sessionId;
+    }
+
+    /**
+     * Scans the top level keys of a message for id, method and sessionId, skipping over all other values.
+     *
+     * @throws IllegalArgumentException if the message is not a well-formed JSON object
+     */
+    static DevtoolsMessage peek(String raw) {
+        var scanner = new Scanner(raw);
+        long id = -1;
+        String method = null;
+        String sessionId = null;
+        scanner.skipWhitespace();
+        scanner.expect('{');
+        scanner.skipWhitespace();
+        if (scanner.peek() == '}') return new DevtoolsMessage(raw, id, null, null);
+        while (true) {
+            scanner.skipWhitespace();
+            String key = scanner.readString();
+            scanner.skipWhitespace();
+            scanner.expect(':');
+            scanner.skipWhitespace();
+            switch (key) {
+                case "id":
+                    id = scanner.readLong();
+                    break;
+                case "method":
+                    method = scanner.readString();
+                    break;
+                case "sessionId":
+                    sessionId = scanner.readString();
+                    break;
+                default:
+                    scanner.skipValue();
+            }
+            scanner.skipWhitespace();
+            char c = scanner.next();
+            if (c == '}') break;
+            if (c != ',') throw scanner.error("expected , or }");
+        }
+        return new DevtoolsMessage(raw, id, method, sessionId);
+    }
+
+    boolean isEvent() {
+        return method != null;
+    }
+
+    /**
+     * The fully parsed message. Parsed on first call.
+     */
+    synchronized JsonObject object() {
+        if (object == null) {
+            try {
+                object = JsonParser.object().from(raw);
+            } catch (JsonParserException e) {
+                throw new IllegalArgumentException("Malformed devtools message", e);
+            }
+        }
+        return object;
+    }
+
+    @Override
+    public String toString() {
+        return raw.length() > 1024 ? raw.substring(0, 1024) + "..." : raw;
+    }
+
+    private static class Scanner {
+        private final String s;
+        private int pos;
+
+        Scanner(String s) {
+            this.s = s;
+        }
+
+        IllegalArgumentException error(String message) {
+            return new IllegalArgumentException("Malformed devtools message: " + message + " at " + pos);
+        }
+
+        char peek() {
+            if (pos >= s.length()) throw error("unexpected end of message");
+            return s.charAt(pos);
+        }
+
+        char next() {
+            char c = peek();
+            pos++;
+            return c;
+        }
+
+        void expect(char c) {
+            if (next() != c) throw error("expected " + c);
+        }
+
+        void skipWhitespace() {
+            while (pos < s.length()) {
+                char c = s.charAt(pos);
+                if (c != ' ' && c != '\t' && c != '\n' && c != '\r') break;
+                pos++;
+            }
+        }
+
+        long readLong() {
+            int start = pos;
+            if (peek() == '-') pos++;
+            while (pos < s.length() && s.charAt(pos) >= '0' && s.charAt(pos) <= '9') pos++;
+            try {
+                return Long.parseLong(s, start, pos, 10);
+            } catch (NumberFormatException e) {
+                throw error("expected integer");
+            }
+        }
+
+        String readString() {
+            expect('"');
+            int start = pos;
+            StringBuilder sb = null;
+            while (true) {
+                char c = next();
+                if (c == '"') break;
+                if (c == '\\') {
+                    if (sb == null) sb = new StringBuilder().append(s, start, pos - 1);
+                    char e = next();
+                    switch (e) {
+                        case 'b': sb.append('\b'); break;
+                        case 'f': sb.append('\f'); break;
+                        case 'n': sb.append('\n'); break;
+                        case 'r': sb.append('\r'); break;
+                        case 't': sb.append('\t'); break;
+                        case 'u':
+                            if (pos + 4 > s.length()) throw error("truncated escape");
+                            try {
+                                sb.append((char) Integer.parseInt(s, pos, pos + 4, 16));
+                            } catch (NumberFormatException ex) {
+                                throw error("bad unicode escape");
+                            }
+                            pos += 4;
+                            break;
+                        default: sb.append(e);
+                    }
+                } else if (sb != null) {
+                    sb.append(c);
+                }
+            }
+            return sb == null ? s.substring(start, pos - 1) : sb.toString();
+        }
+
+        void skipString() {
+            expect('"');
+            while (true) {
+                int quote = s.indexOf('"', pos);
+                if (quote < 0) throw error("unterminated string");
+                int backslashes = 0;
+                for (int i = quote - 1; i >= pos && s.charAt(i) == '\\'; i--) backslashes++;
+                pos = quote + 1;
+                if (backslashes % 2 == 0) return;
+            }
+        }
+
+        void skipValue() {
+            char c = peek();
+            if (c == '"') {
+                skipString();
+            } else if (c == '{' || c == '[') {
+                int depth = 0;
+                while (true) {
+                    c = peek();
+                    if (c == '"') {
+                        skipString();
+                        continue;
+                    }
+                    pos++;
+                    if (c == '{' || c == '[') {
+                        depth++;
+                    } else if (c == '}' || c == ']') {
+                        if (--depth == 0) return;
+                    }
+                }
+            } else {
+                // number, true, false or null
+                while (pos < s.length()) {
+                    c = s.charAt(pos);
+                    if (c == ',' || c == '}' || c == ']' || c == ' ' || c == '\n' || c == '\r' || c == '\t') break;
+                    pos++;
+                }
+            }
+        }
+    }
+}
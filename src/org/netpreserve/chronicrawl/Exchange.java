@@ -10,6 +10,7 @@ import javax.xml.stream.XMLStreamException;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
@@ -60,8 +61,34 @@ public class Exchange implements Closeable {
     URI prevResponseId;
     long contentLength;
     String contentType;
+    long fetchMillis;
+    /**
+     * Time spent sleeping in our own bandwidth throttle, which is left out of fetchMillis and the timings.
+     */
+    long throttledNanos;
+    /**
+     * Why the response was cut short, or null if it's complete.
+     */
+    WarcTruncationReason truncated;
+    /**
+     * How long to wait before the next request to this origin (and its politeness group).
+     */
+    long delayMillis;
+    final Timings timings = new Timings();
 
     public Exchange(Crawl crawl, Origin origin, Location location, String method, Map<String, String> extraHeaders) throws IOException {
+        this(crawl, origin, location, method, extraHeaders,
+                location.viaPathId == null ? null : crawl.db.locations.find(location.viaOriginId, location.viaPathId),
+                Rule.bestMatching(crawl.rules(origin.id), location));
+        crawl.exchanges.add(this);
+    }
+
+    /**
+     * Creates an exchange with its referring location and rule already looked up. It isn't registered with the
+     * crawl's active exchanges.
+     */
+    Exchange(Crawl crawl, Origin origin, Location location, String method, Map<String, String> extraHeaders,
+             Location via, Rule rule) throws IOException {
         this.crawl = crawl;
         this.origin = origin;
         this.location = location;
@@ -69,25 +96,47 @@ public class Exchange implements Closeable {
         this.extraHeaders = extraHeaders;
         Path tempFile = Files.createTempFile("chronicrawl", ".tmp");
         bufferFile = FileChannel.open(tempFile, READ, WRITE, DELETE_ON_CLOSE, TRUNCATE_EXISTING);
-        url = location.url;
-        this.via = location.viaPathId == null ? null : crawl.db.locations.find(location.viaOriginId, location.viaPathId);
-        crawl.exchanges.add(this);
-        List<Rule> rules = crawl.db.rules.listForOriginId(origin.id);
-        this.rule = Rule.bestMatching(rules, location);
+        url = location.url();
+        this.via = via;
+        this.rule = rule;
     }
 
     public void run() throws IOException {
+        var event = new JfrEvents.ExchangeEvent();
+        event.begin();
         if (crawl.config.robotsPolicy == RobotsPolicy.IGNORE ||
                 (crawl.config.robotsPolicy == RobotsPolicy.PAGES_ONLY && location.type != Location.Type.PAGE) ||
-                parseRobots(origin.name + "/robots.txt", origin.robotsTxt).isAllowed(location.url.toString())) {
+                parseRobots(origin.name + "/robots.txt", origin.robotsTxt).isAllowed(location.url().toString())) {
+            long start = System.nanoTime();
             fetch();
+            long fetchNanos = System.nanoTime() - start - throttledNanos;
+            fetchMillis = fetchNanos / 1000000;
+            Metrics.fetchSeconds.observeNanos(fetchNanos);
+            Metrics.fetchedBytes.add(bufferFile.size());
+            timings.start();
             crawl.storage.save(this);
+            timings.end(Timings.Phase.WARC);
         } else {
             fetchStatus = Status.ROBOTS_DISALLOWED;
         }
         finish();
-        if (fetchStatus > 0) {
+        // a truncated body would give us a partial link graph, sitemap or robots.txt so it's archived but not analysed
+        if (fetchStatus > 0 && truncated == null) {
+            timings.start();
             process();
+            timings.end(Timings.Phase.PROCESS);
+            // the visit row was inserted before processing (analysis replays it) so fill in the remaining phases now.
+            // Unprocessed visits skip this second update and just lack the DB phase.
+            crawl.db.visits.updateTimings(location.originId, location.pathId, date, timings.encode());
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.url = url.toString();
+            event.origin = origin.name;
+            event.status = fetchStatus;
+            event.bytes = responseLength;
+            event.setTimings(timings);
+            event.commit();
         }
     }
 
@@ -118,7 +167,7 @@ public class Exchange implements Closeable {
             }
         }
         if (via != null) {
-            builder.addHeader("Referer", via.url.toString());
+            builder.addHeader("Referer", via.url().toString());
         }
         for (var entry: extraHeaders.entrySet()) {
             if (!IGNORED_EXTRA_HEADERS.contains(entry.getKey().toLowerCase(Locale.ROOT))) {
@@ -129,21 +178,72 @@ public class Exchange implements Closeable {
         log.info("Fetching {}", url);
         httpRequest = builder.build();
 
-        try (Socket socket = url.connect(crawl.config.bindAddress, crawl.sslSocketFactory)) {
+        Config config = crawl.config;
+        long deadline = config.fetchTimeout.isZero() ? Long.MAX_VALUE : System.nanoTime() + config.fetchTimeout.toNanos();
+        timings.start();
+        try (Socket socket = url.connect(config.bindAddress, crawl.sslSocketFactory, crawl.resolver,
+                (int) Math.min(config.connectTimeout.toMillis(), Integer.MAX_VALUE), timings)) {
             ip = ((InetSocketAddress) socket.getRemoteSocketAddress()).getAddress();
             socket.getOutputStream().write(httpRequest.serializeHeader());
-            socket.getInputStream().transferTo(Channels.newOutputStream(bufferFile));
+            timings.end(Timings.Phase.SEND);
+            InputStream input = socket.getInputStream();
+            OutputStream output = Channels.newOutputStream(bufferFile);
+            Throttle.Transfer transfer = crawl.throttle.start(location.originId);
+            byte[] buffer = new byte[8192];
+            long received = 0;
+            try {
+                socket.setSoTimeout(readTimeoutMillis(config.firstByteTimeout, deadline, 0));
+                int n = input.read(buffer);
+                timings.end(Timings.Phase.FIRST_BYTE);
+                while (n >= 0) {
+                    if (config.maxResponseBytes > 0 && received + n > config.maxResponseBytes) {
+                        int partial = (int) (config.maxResponseBytes - received);
+                        output.write(buffer, 0, partial);
+                        received += partial;
+                        transfer.received(buffer, partial);
+                        truncated = WarcTruncationReason.LENGTH;
+                        break;
+                    }
+                    output.write(buffer, 0, n);
+                    received += n;
+                    transfer.received(buffer, n);
+                    socket.setSoTimeout(readTimeoutMillis(config.idleTimeout, deadline, transfer.throttledNanos()));
+                    n = input.read(buffer);
+                }
+            } catch (SocketTimeoutException e) {
+                if (received == 0) {
+                    log.debug("{} fetching {}", e, url);
+                    fetchStatus = Status.TIMEOUT;
+                    return;
+                }
+                truncated = WarcTruncationReason.TIME;
+            }
+            throttledNanos = transfer.throttledNanos();
+            timings.exclude(throttledNanos);
+            timings.end(Timings.Phase.TRANSFER);
         } catch (UnknownHostException e) {
             fetchStatus = Status.DNS_LOOKUP_FAILED;
             log.debug("{} fetching {}", e, url);
             return;
+        } catch (SocketTimeoutException e) {
+            // connect or TLS handshake timeout, read timeouts are handled above
+            log.debug("{} fetching {}", e, url);
+            fetchStatus = Status.TIMEOUT;
+            return;
         } catch (IOException e) {
             log.debug("{} fetching {}", e, url);
             fetchStatus = Status.CONNECT_FAILED;
             return;
         }
         bufferFile.position(0);
-        httpResponse = HttpResponse.parse(LengthedBody.create(bufferFile, ByteBuffer.allocate(8192).flip(), bufferFile.size()));
+        try {
+            httpResponse = HttpResponse.parse(LengthedBody.create(bufferFile, ByteBuffer.allocate(8192).flip(), bufferFile.size()));
+        } catch (ParsingException e) {
+            if (truncated == null) throw e;
+            log.debug("{} fetching {} truncated by {}", e, url, truncated);
+            fetchStatus = truncated == WarcTruncationReason.LENGTH ? Status.RESPONSE_TOO_LARGE : Status.TIMEOUT;
+            return;
+        }
         fetchStatus = httpResponse.status();
         long bodyLength = 0;
         try {
@@ -158,11 +258,23 @@ public class Exchange implements Closeable {
             }
             this.digest = digest.digest();
             this.contentLength = bodyLength;
+            timings.end(Timings.Phase.DIGEST);
         } catch (NoSuchAlgorithmException e) {
             throw new IOException("Calculating " + crawl.config.warcDigestAlgorithm + " digest", e);
         }
     }
 
+    /**
+     * The socket timeout for the next read: the given timeout or the time left until the deadline, whichever is
+     * sooner. The deadline is pushed back by the time we spent throttled.
+     */
+    private static int readTimeoutMillis(Duration timeout, long deadline, long throttledNanos) throws SocketTimeoutException {
+        long remaining = deadline == Long.MAX_VALUE ? Long.MAX_VALUE : (deadline + throttledNanos - System.nanoTime()) / 1000000;
+        if (remaining <= 0) throw new SocketTimeoutException("Fetch deadline passed");
+        long millis = timeout.isZero() ? remaining : Math.max(1, Math.min(timeout.toMillis(), remaining));
+        return millis == Long.MAX_VALUE ? 0 : (int) Math.min(millis, Integer.MAX_VALUE);
+    }
+
     private void process() {
         try {
             bufferFile.position(0);
@@ -196,28 +308,27 @@ public class Exchange implements Closeable {
             crawl.enqueue(location, date, link, Location.Type.PAGE);
         }
         if (analysis.screenshot != null) {
-            crawl.db.screenshotCache.expire(100);
-            crawl.db.screenshotCache.insert(url, date, analysis.screenshot);
+            crawl.screenshots.add(url, date, analysis.screenshot);
         }
     }
 
     private void processRobots() throws IOException {
         byte[] content = httpResponse.body().stream().readNBytes(crawl.config.maxRobotsBytes);
-        SimpleRobotRules rules = parseRobots(location.url.toString(), content);
+        SimpleRobotRules rules = parseRobots(location.url().toString(), content);
         Short crawlDelay = null;
         if (rules.getCrawlDelay() > 0) {
             crawlDelay = (short)rules.getCrawlDelay();
         }
         System.out.println("robots " + rules.getSitemaps());
         for (String sitemapUrl : rules.getSitemaps()) {
-            crawl.enqueue(location, date, location.url.resolve(sitemapUrl), Location.Type.SITEMAP);
+            crawl.enqueue(location, date, location.url().resolve(sitemapUrl), Location.Type.SITEMAP);
         }
-        crawl.db.origins.updateRobots(location.url.originId(), crawlDelay, content);
+        crawl.db.origins.updateRobots(location.originId, crawlDelay, content);
     }
 
     private void processSitemap() throws XMLStreamException, IOException {
         Sitemap.parse(httpResponse.body().stream(), entry -> {
-            Url entryUrl = location.url.resolve(entry.loc);
+            Url entryUrl = location.url().resolve(entry.loc);
             crawl.enqueue(location, date, entryUrl, entry.type);
             crawl.db.sitemapEntries.insertOrReplace(this.url, entryUrl, entry.changefreq, entry.priority, entry.lastmod == null ? null : entry.lastmod.toString());
         });
@@ -228,14 +339,26 @@ public class Exchange implements Closeable {
             contentType = httpResponse.contentType().base().toString();
         }
         Instant nextVisit = calcNextVisit();
+        RateController.State rate = crawl.rateController.update(origin, fetchStatus, fetchMillis);
+        if (fetchStatus == Status.ROBOTS_DISALLOWED) {
+            delayMillis = 0;
+        } else {
+            String retryAfter = httpResponse == null ? null : httpResponse.headers().first("Retry-After").orElse(null);
+            delayMillis = Math.max(rate.delayMillis, crawl.rateController.retryAfterMillis(retryAfter, date));
+        }
+        timings.start();
         crawl.db.jdbi.inTransaction(h -> {
-            crawl.db.origins.updateVisit(origin.id, date, date.plusMillis(calcDelayMillis()));
-            crawl.db.locations.updateVisitData(location.url.originId(), location.url.pathId(), date, nextVisit);
+            crawl.db.origins.updateVisitAndRate(origin.id, date, date.plusMillis(delayMillis), rate.delayMillis,
+                    rate.responseMillis);
+            crawl.db.locations.updateVisitData(location.originId, location.pathId, date, nextVisit);
             crawl.db.visits.insert(this);
             return null;
         });
+        timings.end(Timings.Phase.DB);
+        crawl.stats.record(System.currentTimeMillis(), fetchStatus, responseLength, fetchMillis);
+        Metrics.fetches.inc(Integer.toString(fetchStatus));
         System.out.printf("%s %5d %10s %s %s %s %s\n", date, fetchStatus, contentLength,
-                location.url, location.type, via != null ? via.url : "-", contentType != null ? contentType : "-");
+                location.url(), location.type, via != null ? via.url() : "-", contentType != null ? contentType : "-");
         System.out.flush();
 
     }
@@ -286,16 +409,9 @@ public class Exchange implements Closeable {
         return date.plus(crawl.config.initialRevisitOther);
      }
 
-    private long calcDelayMillis() {
-        if (fetchStatus == Status.ROBOTS_DISALLOWED) return 0;
-        long delay = origin.robotsCrawlDelay != null ? origin.robotsCrawlDelay * 1000 : 5000;
-        if (delay > crawl.config.maxDelayMillis) delay = crawl.config.maxDelayMillis;
-        return delay;
-    }
-
     @Override
     public void close() throws IOException {
         bufferFile.close();
-        crawl.exchanges.remove(this);
+        if (crawl != null) crawl.exchanges.remove(this);
     }
 }
@@ -48,7 +48,7 @@ public class ExternalArchive {
                     int status = Integer.parseInt(fields[4]);
                     visits.add(new Visit(targetUrl.originId(), targetUrl.pathId(), date, "GET", status, mime, null, null,
                             0, 0, null, responseOffset, responseLength,
-                            digest, null));
+                            digest, null, null, null));
                 }
             } catch (IOException e) {
                 log.error("CDX query failed: " + uri, e);
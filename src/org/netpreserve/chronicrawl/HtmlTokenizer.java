@@ -0,0 +1,292 @@
+package org.netpreserve.chronicrawl;
+
+import org.jsoup.internal.StringUtil;
+import org.jsoup.parser.Parser;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A forgiving single-pass HTML tokenizer that reports start and end tags without building a document tree. Memory
+ * use is bounded by the largest single tag rather than the size of the page, which makes it suitable for extracting
+ * links from very large pages.
+ * <p>
+ * This is not a full HTML5 tokenizer: it understands comments, doctypes, quoted and unquoted attributes and the raw
+ * text elements (script, style etc) which is all that's needed to find URLs.
+ */
+class HtmlTokenizer {
+    /**
+     * Attribute values longer than this are dropped. They're almost always inline data: URIs.
+     */
+    static final int MAX_ATTRIBUTE_LENGTH = 64 * 1024;
+
+    /**
+     * Text of style and title elements is truncated to this length.
+     */
+    static final int MAX_TEXT_LENGTH = 1024 * 1024;
+
+    private final Reader reader;
+    private final Handler handler;
+    private final char[] buffer = new char[8192];
+    private final StringBuilder sb = new StringBuilder();
+    private int pos;
+    private int limit;
+
+    HtmlTokenizer(Reader reader, Handler handler) {
+        this.reader = reader;
+        this.handler = handler;
+    }
+
+    interface Handler {
+        /**
+         * Called for each start tag. Tag and attribute names are lowercased and attribute values have had entities
+         * decoded. For style and title elements the text content is also supplied, otherwise text is null.
+         */
+        void startTag(String name, Map<String, String> attributes, String text);
+
+        void endTag(String name);
+    }
+
+    void run() throws IOException {
+        while (true) {
+            int c = read();
+            if (c < 0) return;
+            if (c != '<') continue;
+            c = peek();
+            if (c == '!') {
+                pos++;
+                if (readIfIgnoreCase("--")) {
+                    skipComment();
+                } else {
+                    skipPast('>');
+                }
+            } else if (c == '?') {
+                skipPast('>');
+            } else if (c == '/') {
+                pos++;
+                if (isAsciiLetter(peek())) {
+                    String name = readTagName();
+                    skipPast('>');
+                    handler.endTag(name);
+                } else {
+                    skipPast('>');
+                }
+            } else if (isAsciiLetter(c)) {
+                readStartTag();
+            }
+        }
+    }
+
+    private void readStartTag() throws IOException {
+        String name = readTagName();
+        Map<String, String> attributes = new HashMap<>();
+        while (true) {
+            skipWhitespaceAndSlashes();
+            int c = peek();
+            if (c < 0) return;
+            if (c == '>') {
+                pos++;
+                break;
+            }
+            String attrName = readAttributeName();
+            skipWhitespace();
+            String value = "";
+            if (peek() == '=') {
+                pos++;
+                skipWhitespace();
+                value = readAttributeValue();
+            }
+            if (value != null && !attributes.containsKey(attrName)) {
+                attributes.put(attrName, value);
+            }
+        }
+
+        String text = null;
+        switch (name) {
+            case "style":
+                text = readRawText(name, true);
+                break;
+            case "title":
+                text = readRawText(name, true);
+                text = text == null ? null : StringUtil.normaliseWhitespace(Parser.unescapeEntities(text, false)).trim();
+                break;
+            case "script":
+            case "textarea":
+            case "xmp":
+            case "iframe":
+            case "noembed":
+            case "noframes":
+            case "plaintext":
+                readRawText(name, false);
+                break;
+        }
+        handler.startTag(name, attributes, text);
+    }
+
+    /**
+     * Consumes everything up to and including the matching end tag. Returns the text if keep is true.
+     */
+    private String readRawText(String tagName, boolean keep) throws IOException {
+        sb.setLength(0);
+        while (true) {
+            int c = read();
+            if (c < 0) break;
+            if (c == '<' && peek() == '/') {
+                pos++;
+                if (readIfIgnoreCase(tagName)) {
+                    int next = peek();
+                    if (next < 0 || next == '>' || next == '/' || isWhitespace(next)) {
+                        skipPast('>');
+                        handler.endTag(tagName);
+                        break;
+                    }
+                    if (keep) sb.append("</").append(tagName);
+                } else if (keep) {
+                    sb.append("</");
+                }
+                continue;
+            }
+            if (keep && sb.length() < MAX_TEXT_LENGTH) sb.append((char) c);
+        }
+        return keep ? sb.toString() : null;
+    }
+
+    private String readTagName() throws IOException {
+        sb.setLength(0);
+        while (true) {
+            int c = peek();
+            if (c < 0 || c == '>' || c == '/' || isWhitespace(c)) break;
+            pos++;
+            if (sb.length() < 256) sb.append((char) c);
+        }
+        return sb.toString().toLowerCase(Locale.ROOT);
+    }
+
+    private String readAttributeName() throws IOException {
+        sb.setLength(0);
+        // the first character may be '=' per the spec
+        sb.append((char) read());
+        while (true) {
+            int c = peek();
+            if (c < 0 || c == '>' || c == '/' || c == '=' || isWhitespace(c)) break;
+            pos++;
+            if (sb.length() < 256) sb.append((char) c);
+        }
+        return sb.toString().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Returns the decoded value or null if it was too long.
+     */
+    private String readAttributeValue() throws IOException {
+        sb.setLength(0);
+        int quote = peek();
+        boolean tooLong = false;
+        boolean hasEntity = false;
+        if (quote == '"' || quote == '\'') {
+            pos++;
+            while (true) {
+                int c = read();
+                if (c < 0 || c == quote) break;
+                if (sb.length() < MAX_ATTRIBUTE_LENGTH) {
+                    sb.append((char) c);
+                } else {
+                    tooLong = true;
+                }
+                if (c == '&') hasEntity = true;
+            }
+        } else {
+            while (true) {
+                int c = peek();
+                if (c < 0 || c == '>' || isWhitespace(c)) break;
+                pos++;
+                if (sb.length() < MAX_ATTRIBUTE_LENGTH) {
+                    sb.append((char) c);
+                } else {
+                    tooLong = true;
+                }
+                if (c == '&') hasEntity = true;
+            }
+        }
+        if (tooLong) return null;
+        String value = sb.toString();
+        return hasEntity ? Parser.unescapeEntities(value, true) : value;
+    }
+
+    private void skipWhitespace() throws IOException {
+        while (isWhitespace(peek())) pos++;
+    }
+
+    private void skipWhitespaceAndSlashes() throws IOException {
+        while (true) {
+            int c = peek();
+            if (c != '/' && !isWhitespace(c)) break;
+            pos++;
+        }
+    }
+
+    private void skipPast(char terminator) throws IOException {
+        while (true) {
+            int c = read();
+            if (c < 0 || c == terminator) return;
+        }
+    }
+
+    private void skipComment() throws IOException {
+        int dashes = 0;
+        while (true) {
+            int c = read();
+            if (c < 0 || (c == '>' && dashes >= 2)) return;
+            dashes = c == '-' ? dashes + 1 : 0;
+        }
+    }
+
+    /**
+     * Consumes s if it's next in the input. Otherwise consumes nothing. s must be shorter than the buffer.
+     */
+    private boolean readIfIgnoreCase(String s) throws IOException {
+        if (!fill(s.length())) return false;
+        for (int i = 0; i < s.length(); i++) {
+            if (Character.toLowerCase(buffer[pos + i]) != s.charAt(i)) return false;
+        }
+        pos += s.length();
+        return true;
+    }
+
+    private int read() throws IOException {
+        if (pos >= limit && !fill(1)) return -1;
+        return buffer[pos++];
+    }
+
+    private int peek() throws IOException {
+        if (pos >= limit && !fill(1)) return -1;
+        return buffer[pos];
+    }
+
+    /**
+     * Ensures at least n chars are available in the buffer. Returns false on end of input.
+     */
+    private boolean fill(int n) throws IOException {
+        if (limit - pos >= n) return true;
+        System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+        limit -= pos;
+        pos = 0;
+        while (limit < n) {
+            int count = reader.read(buffer, limit, buffer.length - limit);
+            if (count < 0) return false;
+            limit += count;
+        }
+        return true;
+    }
+
+    private static boolean isAsciiLetter(int c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+}
@@ -0,0 +1,135 @@
+package org.netpreserve.chronicrawl;
+
+import jdk.jfr.*;
+
+/**
+ * Java Flight Recorder events so a continuous recording (-XX:StartFlightRecording or jcmd JFR.start) can line up
+ * slow fetches, WARC writes, database transactions and devtools calls against GC pauses and I/O stalls. Events are
+ * disabled until a recording enables them, at which point they cost a couple of timestamps and field writes.
+ */
+final class JfrEvents {
+    private JfrEvents() {
+    }
+
+    @Name("chronicrawl.Exchange")
+    @Label("Exchange")
+    @Description("Fetching, storing and processing one URL")
+    @Category("Chronicrawl")
+    static class ExchangeEvent extends Event {
+        @Label("URL")
+        String url;
+
+        @Label("Origin")
+        String origin;
+
+        @Label("Status")
+        int status;
+
+        @Label("Response Size")
+        @DataAmount
+        long bytes;
+
+        @Label("DNS Lookup")
+        @Timespan
+        long dns;
+
+        @Label("TCP Connect")
+        @Timespan
+        long connect;
+
+        @Label("TLS Handshake")
+        @Timespan
+        long tls;
+
+        @Label("Send Request")
+        @Timespan
+        long send;
+
+        @Label("Time To First Byte")
+        @Timespan
+        long firstByte;
+
+        @Label("Transfer")
+        @Timespan
+        long transfer;
+
+        @Label("Parse And Digest")
+        @Timespan
+        long digest;
+
+        @Label("WARC Write")
+        @Timespan
+        long warc;
+
+        @Label("Database Commit")
+        @Timespan
+        long db;
+
+        @Label("Processing")
+        @Timespan
+        long process;
+
+        void setTimings(Timings timings) {
+            dns = timings.nanos(Timings.Phase.DNS);
+            connect = timings.nanos(Timings.Phase.CONNECT);
+            tls = timings.nanos(Timings.Phase.TLS);
+            send = timings.nanos(Timings.Phase.SEND);
+            firstByte = timings.nanos(Timings.Phase.FIRST_BYTE);
+            transfer = timings.nanos(Timings.Phase.TRANSFER);
+            digest = timings.nanos(Timings.Phase.DIGEST);
+            warc = timings.nanos(Timings.Phase.WARC);
+            db = timings.nanos(Timings.Phase.DB);
+            process = timings.nanos(Timings.Phase.PROCESS);
+        }
+    }
+
+    @Name("chronicrawl.WarcWrite")
+    @Label("WARC Write")
+    @Description("Writing one record to a WARC file")
+    @Category("Chronicrawl")
+    static class WarcWriteEvent extends Event {
+        @Label("Record Type")
+        String type;
+
+        @Label("Target URI")
+        String url;
+
+        @Label("File")
+        String file;
+
+        @Label("Offset")
+        long offset;
+
+        @Label("Record Size")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("chronicrawl.DatabaseTransaction")
+    @Label("Database Transaction")
+    @Description("A database transaction from begin to commit or rollback")
+    @Category("Chronicrawl")
+    static class DatabaseTransactionEvent extends Event {
+        @Label("Committed")
+        boolean committed;
+    }
+
+    @Name("chronicrawl.BrowserCall")
+    @Label("Browser Call")
+    @Description("Round trip of a devtools protocol call to the browser")
+    @Category("Chronicrawl")
+    static class BrowserCallEvent extends Event {
+        @Label("Method")
+        String method;
+
+        @Label("Session Id")
+        String sessionId;
+
+        @Label("Request Size")
+        @DataAmount
+        long requestBytes;
+
+        @Label("Error")
+        String error;
+    }
+}
@@ -7,7 +7,9 @@ import java.time.Instant;
 public class Location {
     public final long originId;
     public final long pathId;
-    public final Url url;
+    private final String origin;
+    private final String path;
+    private Url url;
     public final Type type;
     public final int depth;
     public final Long viaOriginId;
@@ -21,7 +23,8 @@ public class Location {
                     Instant discovered, Instant lastVisit, Instant nextVisit) {
         this.originId = originId;
         this.pathId = pathId;
-        this.url = new Url(origin + path);
+        this.origin = origin;
+        this.path = path;
         this.type = locationType;
         this.depth = depth;
         this.viaOriginId = viaOriginId;
@@ -34,6 +37,8 @@ public class Location {
     public Location(Url url) {
         originId = url.originId();
         pathId = url.pathId();
+        origin = url.origin();
+        path = url.pathref();
         this.url = url;
         type = Type.PAGE;
         depth = 0;
@@ -44,6 +49,13 @@ public class Location {
         nextVisit = null;
     }
 
+    public Url url() {
+        if (url == null) {
+            url = Url.fromCanonical(origin, path, originId, pathId);
+        }
+        return url;
+    }
+
     public String href() {
         return "location?o=" + originId + "&p=" + pathId;
     }
@@ -0,0 +1,305 @@
+package org.netpreserve.chronicrawl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide counters, gauges and histograms served at /metrics in the Prometheus text exposition format.
+ * <p>
+ * The metrics are static so the browser, database and storage layers can record them without threading a registry
+ * through every constructor. Recording is just an atomic add so it's cheap enough for hot paths.
+ */
+class Metrics {
+    private static final Logger log = LoggerFactory.getLogger(Metrics.class);
+    private static final Map<String, Metric> registry = new ConcurrentSkipListMap<>();
+    private static final double[] LATENCY_BUCKETS = {0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5,
+            5, 10, 30, 60};
+
+    static final Counter fetches = register(new Counter("chronicrawl_fetches_total",
+            "Fetches by HTTP status, or negative status for crawler errors", "status"));
+    static final Counter fetchedBytes = register(new Counter("chronicrawl_fetched_bytes_total",
+            "Bytes received from servers including HTTP headers"));
+    static final Histogram fetchSeconds = register(new Histogram("chronicrawl_fetch_duration_seconds",
+            "Time to connect, send the request and read the whole response", LATENCY_BUCKETS));
+    static final Counter bandwidthThrottleMillis = register(new Counter("chronicrawl_bandwidth_throttle_milliseconds_total",
+            "Time fetches spent waiting on bandwidth limits by the scope that imposed the wait", "scope"));
+    static final Counter dnsLookups = register(new Counter("chronicrawl_dns_lookups_total",
+            "Host lookups by result: hit, pending (joined an in-flight lookup), miss or failure", "result"));
+    static final Histogram dnsLookupSeconds = register(new Histogram("chronicrawl_dns_lookup_duration_seconds",
+            "Time taken by DNS queries that missed the cache", LATENCY_BUCKETS));
+    static final Gauge browserTabs = register(new Gauge("chronicrawl_browser_tabs",
+            "Browser tabs currently open"));
+    static final Histogram browserCallSeconds = register(new Histogram("chronicrawl_browser_call_duration_seconds",
+            "Round trip time of devtools protocol calls", LATENCY_BUCKETS, "method"));
+    static final Counter browserCallErrors = register(new Counter("chronicrawl_browser_call_errors_total",
+            "Devtools protocol calls that returned an error or timed out", "method"));
+    static final Counter warcRecords = register(new Counter("chronicrawl_warc_records_total",
+            "WARC records written by type", "type"));
+    static final Counter warcBytes = register(new Counter("chronicrawl_warc_bytes_total",
+            "Bytes written to WARC files"));
+    static final Histogram warcWriteSeconds = register(new Histogram("chronicrawl_warc_write_duration_seconds",
+            "Time to write the records of one exchange, including any dedupe lookup", LATENCY_BUCKETS));
+    static final Histogram sqlSeconds = register(new Histogram("chronicrawl_sql_duration_seconds",
+            "SQL statement execution time by DAO method", LATENCY_BUCKETS, "dao", "method"));
+
+    /**
+     * Registers a metric, replacing any previous one with the same name.
+     */
+    static <T extends Metric> T register(T metric) {
+        registry.put(metric.name, metric);
+        return metric;
+    }
+
+    /**
+     * Removes a metric, unless it has already been replaced by another one with the same name.
+     */
+    static void unregister(Metric metric) {
+        registry.remove(metric.name, metric);
+    }
+
+    /**
+     * Registers a gauge whose value is calculated when the metrics are scraped.
+     */
+    static Gauge gauge(String name, String help, LongSupplier supplier) {
+        return register(new Gauge(name, help) {
+            @Override
+            long value() {
+                return supplier.getAsLong();
+            }
+        });
+    }
+
+    /**
+     * Registers a gauge that's expensive to calculate. The value is recalculated when scraped at most once per
+     * refresh interval, scrapes in between see the previous value.
+     */
+    static Gauge cachedGauge(String name, String help, long refreshMillis, LongSupplier supplier) {
+        return register(new Gauge(name, help) {
+            private long value;
+            private long calculatedAt;
+            private boolean calculated;
+
+            @Override
+            synchronized long value() {
+                long now = System.nanoTime();
+                if (!calculated || now - calculatedAt >= refreshMillis * 1000000) {
+                    value = supplier.getAsLong();
+                    calculatedAt = now;
+                    calculated = true;
+                }
+                return value;
+            }
+        });
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text format.
+     */
+    static String scrape() {
+        StringBuilder out = new StringBuilder();
+        for (Metric metric : registry.values()) {
+            try {
+                StringBuilder lines = new StringBuilder();
+                metric.write(lines);
+                out.append("# HELP ").append(metric.name).append(' ').append(metric.help).append('\n');
+                out.append("# TYPE ").append(metric.name).append(' ').append(metric.type()).append('\n');
+                out.append(lines);
+            } catch (RuntimeException e) {
+                log.warn("Error reading metric {}", metric.name, e);
+            }
+        }
+        return out.toString();
+    }
+
+    abstract static class Metric {
+        final String name;
+        final String help;
+        final String[] labelNames;
+
+        Metric(String name, String help, String... labelNames) {
+            this.name = name;
+            this.help = help;
+            this.labelNames = labelNames;
+        }
+
+        abstract String type();
+
+        static List<List<String>> sortedKeys(Map<List<String>, ?> children) {
+            List<List<String>> keys = new ArrayList<>(children.keySet());
+            keys.sort(Comparator.comparing(Object::toString));
+            return keys;
+        }
+
+        abstract void write(StringBuilder out);
+
+        List<String> key(String[] labelValues) {
+            if (labelValues.length != labelNames.length) {
+                throw new IllegalArgumentException(name + " expects labels " + Arrays.toString(labelNames));
+            }
+            return List.of(labelValues);
+        }
+
+        void writeLabels(StringBuilder out, List<String> labelValues, String extraName, String extraValue) {
+            if (labelValues.isEmpty() && extraName == null) return;
+            out.append('{');
+            for (int i = 0; i < labelValues.size(); i++) {
+                if (i > 0) out.append(',');
+                out.append(labelNames[i]).append("=\"");
+                escape(out, labelValues.get(i));
+                out.append('"');
+            }
+            if (extraName != null) {
+                if (!labelValues.isEmpty()) out.append(',');
+                out.append(extraName).append("=\"").append(extraValue).append('"');
+            }
+            out.append('}');
+        }
+
+        private static void escape(StringBuilder out, String value) {
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '\\' || c == '"') out.append('\\').append(c);
+                else if (c == '\n') out.append("\\n");
+                else out.append(c);
+            }
+        }
+    }
+
+    static class Counter extends Metric {
+        private final Map<List<String>, LongAdder> children = new ConcurrentHashMap<>();
+
+        Counter(String name, String help, String... labelNames) {
+            super(name, help, labelNames);
+        }
+
+        void inc(String... labelValues) {
+            add(1, labelValues);
+        }
+
+        void add(long amount, String... labelValues) {
+            children.computeIfAbsent(key(labelValues), k -> new LongAdder()).add(amount);
+        }
+
+        long get(String... labelValues) {
+            LongAdder adder = children.get(key(labelValues));
+            return adder == null ? 0 : adder.sum();
+        }
+
+        @Override
+        String type() {
+            return "counter";
+        }
+
+        @Override
+        void write(StringBuilder out) {
+            for (List<String> key : sortedKeys(children)) {
+                out.append(name);
+                writeLabels(out, key, null, null);
+                out.append(' ').append(children.get(key).sum()).append('\n');
+            }
+        }
+    }
+
+    static class Gauge extends Metric {
+        private final AtomicLong value = new AtomicLong();
+
+        Gauge(String name, String help) {
+            super(name, help);
+        }
+
+        void inc() {
+            value.incrementAndGet();
+        }
+
+        void dec() {
+            value.decrementAndGet();
+        }
+
+        long value() {
+            return value.get();
+        }
+
+        @Override
+        String type() {
+            return "gauge";
+        }
+
+        @Override
+        void write(StringBuilder out) {
+            out.append(name).append(' ').append(value()).append('\n');
+        }
+    }
+
+    static class Histogram extends Metric {
+        private final double[] bounds;
+        private final Map<List<String>, Child> children = new ConcurrentHashMap<>();
+
+        Histogram(String name, String help, double[] bounds, String... labelNames) {
+            super(name, help, labelNames);
+            this.bounds = bounds;
+        }
+
+        void observeNanos(long nanos, String... labelValues) {
+            observe(nanos / 1e9, labelValues);
+        }
+
+        void observe(double value, String... labelValues) {
+            Child child = children.computeIfAbsent(key(labelValues), k -> new Child(bounds.length));
+            int i = 0;
+            while (i < bounds.length && value > bounds[i]) i++;
+            child.buckets[i].increment();
+            child.sum.add(value);
+        }
+
+        long count(String... labelValues) {
+            Child child = children.get(key(labelValues));
+            if (child == null) return 0;
+            long count = 0;
+            for (LongAdder bucket : child.buckets) count += bucket.sum();
+            return count;
+        }
+
+        @Override
+        String type() {
+            return "histogram";
+        }
+
+        @Override
+        void write(StringBuilder out) {
+            for (List<String> key : sortedKeys(children)) {
+                Child child = children.get(key);
+                long cumulative = 0;
+                for (int i = 0; i <= bounds.length; i++) {
+                    cumulative += child.buckets[i].sum();
+                    out.append(name).append("_bucket");
+                    writeLabels(out, key, "le", i < bounds.length ? Double.toString(bounds[i]) : "+Inf");
+                    out.append(' ').append(cumulative).append('\n');
+                }
+                out.append(name).append("_sum");
+                writeLabels(out, key, null, null);
+                out.append(' ').append(child.sum.sum()).append('\n');
+                out.append(name).append("_count");
+                writeLabels(out, key, null, null);
+                out.append(' ').append(cumulative).append('\n');
+            }
+        }
+
+        private static class Child {
+            final LongAdder[] buckets;
+            final DoubleAdder sum = new DoubleAdder();
+
+            Child(int bounds) {
+                buckets = new LongAdder[bounds + 1];
+                for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+            }
+        }
+    }
+}
@@ -16,10 +16,18 @@ public class Origin {
     public final Long robotsCrawlDelay;
     public final byte[] robotsTxt;
     public final CrawlPolicy crawlPolicy;
+    /**
+     * Delay between requests learned by the RateController, or null if nothing has been fetched yet.
+     */
+    public final Long delayMillis;
+    /**
+     * Moving average of the time taken to fetch a response.
+     */
+    public final Long responseMillis;
 
     @JdbiConstructor
     public Origin(long id, String origin, Instant discovered, Instant lastVisit, Instant nextVisit, Long robotsCrawlDelay,
-                  byte[] robotsTxt, CrawlPolicy crawlPolicy) {
+                  byte[] robotsTxt, CrawlPolicy crawlPolicy, Long delayMillis, Long responseMillis) {
         this.id = id;
         this.name = origin;
         this.discovered = discovered;
@@ -28,6 +36,8 @@ public class Origin {
         this.robotsCrawlDelay = robotsCrawlDelay;
         this.robotsTxt = robotsTxt;
         this.crawlPolicy = crawlPolicy;
+        this.delayMillis = delayMillis;
+        this.responseMillis = responseMillis;
     }
 
     public String href() {
@@ -0,0 +1,86 @@
+package org.netpreserve.chronicrawl;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Spaces out requests to groups of origins that are likely served by the same machine. The database only tracks
+ * when each origin is next due, so without this hundreds of virtual hosts on one shared hosting server could be
+ * fetched back to back. Each group allows at most politenessGroupConcurrency fetches at once and after each fetch
+ * waits out the origin's crawl delay before allowing another.
+ */
+class Politeness {
+    private static final int MAX_IDLE_GROUPS = 10000;
+    private static final long BUSY_RETRY_MILLIS = 100;
+    private final Config config;
+    private final Resolver resolver;
+    private final Map<String, Group> groups = new HashMap<>();
+
+    Politeness(Config config, Resolver resolver) {
+        this.config = config;
+        this.resolver = resolver;
+    }
+
+    /**
+     * Returns the group an origin belongs to. This is called for every candidate the crawler considers so for IP
+     * grouping it only consults the DNS cache and returns null while the address is still being looked up, as the
+     * origin can't be placed in a group until then. Hosts whose lookup failed are grouped by name so the fetch goes
+     * ahead and records the failure.
+     */
+    String key(Origin origin) {
+        String host = new Url(origin.name).host().toLowerCase(Locale.ROOT);
+        switch (config.politenessGroup) {
+            case HOST:
+                return host;
+            case IP:
+                InetAddress address = resolver.cachedAddress(host);
+                if (address != null) return address.getHostAddress();
+                return resolver.isCached(host) ? host : null;
+            default:
+                return origin.name;
+        }
+    }
+
+    /**
+     * Reserves a fetch slot in a group, or returns null if the group is busy or still waiting out its delay.
+     */
+    synchronized Group tryAcquire(String key, long nowMillis) {
+        Group group = groups.computeIfAbsent(key, Group::new);
+        if (group.active >= config.politenessGroupConcurrency || group.nextFetchMillis > nowMillis) return null;
+        group.active++;
+        return group;
+    }
+
+    /**
+     * Returns a guess at the earliest time the group might next have a free slot.
+     */
+    synchronized long availableAt(String key, long nowMillis) {
+        Group group = groups.get(key);
+        if (group == null) return nowMillis;
+        if (group.active >= config.politenessGroupConcurrency) return Math.max(nowMillis + BUSY_RETRY_MILLIS, group.nextFetchMillis);
+        return group.nextFetchMillis;
+    }
+
+    /**
+     * Frees the slot and holds back the group's next fetch for delayMillis.
+     */
+    synchronized void release(Group group, long nowMillis, long delayMillis) {
+        group.active--;
+        group.nextFetchMillis = Math.max(group.nextFetchMillis, nowMillis + delayMillis);
+        if (groups.size() > MAX_IDLE_GROUPS) {
+            groups.values().removeIf(g -> g.active == 0 && g.nextFetchMillis <= nowMillis);
+        }
+    }
+
+    static class Group {
+        final String key;
+        int active;
+        long nextFetchMillis;
+
+        Group(String key) {
+            this.key = key;
+        }
+    }
+}
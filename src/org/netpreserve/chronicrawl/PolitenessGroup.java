@@ -0,0 +1,20 @@
+package org.netpreserve.chronicrawl;
+
+/**
+ * What origins are grouped by when spacing out requests.
+ */
+public enum PolitenessGroup {
+    /**
+     * Each origin (scheme, host and port) on its own.
+     */
+    ORIGIN,
+    /**
+     * Origins with the same hostname, so http and https or different ports share a budget.
+     */
+    HOST,
+    /**
+     * Origins whose hostname resolves to the same IP address, so virtual hosts on a shared server share a budget.
+     * Falls back to the hostname if it can't be resolved.
+     */
+    IP
+}
@@ -0,0 +1,102 @@
+package org.netpreserve.chronicrawl;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Adapts the delay between requests to an origin to how its server is coping. The delay shrinks by a fixed step
+ * after each healthy response and doubles when the server signals trouble (429, 503 or 504, a failed connection or
+ * a response more than twice as slow as its recent average), so fast sites speed up gradually while struggling ones
+ * are backed off quickly.
+ * <p>
+ * The delay never drops below the robots.txt crawl-delay (itself capped by maxDelayMillis) or minDelayMillis and
+ * never rises above backoffMaxDelayMillis. A Retry-After header postpones the next request without changing the
+ * learned delay.
+ */
+class RateController {
+    private static final double RESPONSE_TIME_WEIGHT = 0.2;
+    private static final double SLOW_RESPONSE_FACTOR = 2.0;
+    private static final long SLOW_RESPONSE_MIN_MILLIS = 250;
+    private static final long MIN_BACKOFF_MILLIS = 1000;
+    private final Config config;
+
+    RateController(Config config) {
+        this.config = config;
+    }
+
+    /**
+     * The delay used before anything has been learned about an origin, or always when adaptiveDelay is off.
+     */
+    long baselineDelayMillis(Origin origin) {
+        long delay = origin.robotsCrawlDelay != null ? origin.robotsCrawlDelay * 1000 : 5000;
+        return Math.min(delay, config.maxDelayMillis);
+    }
+
+    private long floorMillis(Origin origin) {
+        long floor = origin.robotsCrawlDelay != null ? origin.robotsCrawlDelay * 1000 : config.minDelayMillis;
+        return Math.min(floor, config.maxDelayMillis);
+    }
+
+    /**
+     * Calculates the origin's new delay and average response time after a fetch.
+     */
+    State update(Origin origin, int status, long fetchMillis) {
+        long delay = origin.delayMillis != null ? origin.delayMillis : baselineDelayMillis(origin);
+        Long responseMillis = origin.responseMillis;
+        if (!config.adaptiveDelay) return new State(baselineDelayMillis(origin), responseMillis);
+        if (status == Status.ROBOTS_DISALLOWED || status == Status.DNS_LOOKUP_FAILED) {
+            return new State(delay, responseMillis); // we never talked to the server
+        }
+        if (status == Status.RESPONSE_TOO_LARGE) {
+            return new State(delay, responseMillis); // our size limit, not the server's fault
+        }
+
+        boolean slow = status > 0 && responseMillis != null && fetchMillis > SLOW_RESPONSE_MIN_MILLIS &&
+                fetchMillis > responseMillis * SLOW_RESPONSE_FACTOR;
+        if (status < 0 || status == 429 || status == 503 || status == 504 || slow) {
+            delay = Math.min(Math.max(delay * 2, MIN_BACKOFF_MILLIS), config.backoffMaxDelayMillis);
+        } else if (responseMillis == null || fetchMillis <= responseMillis) {
+            delay = delay - config.adaptiveStepMillis;
+        }
+        delay = Math.max(delay, floorMillis(origin));
+
+        if (status > 0) {
+            responseMillis = responseMillis == null ? fetchMillis :
+                    Math.round(responseMillis + RESPONSE_TIME_WEIGHT * (fetchMillis - responseMillis));
+        }
+        return new State(delay, responseMillis);
+    }
+
+    /**
+     * Parses a Retry-After header value, either delay-seconds or an HTTP-date, into a delay capped at
+     * backoffMaxDelayMillis. Returns 0 if the value is missing or invalid.
+     */
+    long retryAfterMillis(String value, Instant now) {
+        if (value == null) return 0;
+        value = value.strip();
+        long millis;
+        try {
+            millis = Math.min(Long.parseLong(value), Long.MAX_VALUE / 1000) * 1000;
+        } catch (NumberFormatException e) {
+            try {
+                millis = Duration.between(now, ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME)).toMillis();
+            } catch (DateTimeParseException e2) {
+                return 0;
+            }
+        }
+        return Math.max(0, Math.min(millis, config.backoffMaxDelayMillis));
+    }
+
+    static class State {
+        final long delayMillis;
+        final Long responseMillis;
+
+        State(long delayMillis, Long responseMillis) {
+            this.delayMillis = delayMillis;
+            this.responseMillis = responseMillis;
+        }
+    }
+}
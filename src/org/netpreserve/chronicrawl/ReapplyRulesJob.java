@@ -0,0 +1,106 @@
+package org.netpreserve.chronicrawl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Recalculates next_visit for every visited location of an origin after its rules change. Runs in the background
+ * in batches, sleeping between them so the crawl's own writes can get at the database.
+ * <p>
+ * Jobs are listed by origin in a shared map for the UI. When one finishes it removes the other finished jobs, so only
+ * running jobs and the latest result are kept rather than one entry for every origin ever edited.
+ */
+public class ReapplyRulesJob implements Runnable {
+    private static final Logger log = LoggerFactory.getLogger(ReapplyRulesJob.class);
+    private final Database db;
+    private final Config config;
+    private final Map<Long, ReapplyRulesJob> jobs;
+    public final long originId;
+    private volatile long total = -1;
+    private volatile long processed;
+    private volatile long updated;
+    private volatile Instant finished;
+    private volatile boolean cancelled;
+
+    ReapplyRulesJob(Database db, Config config, long originId, Map<Long, ReapplyRulesJob> jobs) {
+        this.db = db;
+        this.config = config;
+        this.originId = originId;
+        this.jobs = jobs;
+    }
+
+    @Override
+    public void run() {
+        try {
+            List<Rule> rules = db.rules.listForOriginId(originId);
+            Map<Long, Schedule> schedules = new HashMap<>();
+            total = db.locations.countForOrigin(originId);
+            long start = Long.MIN_VALUE;
+            while (!cancelled) {
+                List<Database.VisitTimes> batch = db.locations.paginateVisitTimes(originId, start,
+                        config.reapplyRulesBatchSize);
+                if (batch.isEmpty()) break;
+                List<Long> pathIds = new ArrayList<>();
+                List<Instant> nextVisits = new ArrayList<>();
+                for (var location : batch) {
+                    if (location.lastVisit == null) continue;
+                    Rule rule = Rule.bestMatching(rules, location.path);
+                    if (rule == null || rule.scheduleId == null) continue;
+                    Schedule schedule = schedules.computeIfAbsent(rule.scheduleId, db.schedules::find);
+                    if (schedule == null) continue;
+                    Instant nextVisit = schedule.apply(location.lastVisit);
+                    if (Objects.equals(location.nextVisit, nextVisit)) continue;
+                    pathIds.add(location.pathId);
+                    nextVisits.add(nextVisit);
+                }
+                if (!pathIds.isEmpty()) {
+                    db.locations.updateNextVisits(originId, pathIds, nextVisits);
+                    updated += pathIds.size();
+                }
+                processed += batch.size();
+                start = batch.get(batch.size() - 1).pathId + 1;
+                if (config.reapplyRulesBatchDelayMillis > 0) {
+                    Thread.sleep(config.reapplyRulesBatchDelayMillis);
+                }
+            }
+        } catch (InterruptedException e) {
+            cancelled = true;
+        } catch (Exception e) {
+            log.error("Reapplying rules to origin " + originId + " failed", e);
+        } finally {
+            finished = Instant.now();
+            jobs.values().removeIf(other -> other != this && other.isFinished());
+        }
+    }
+
+    void cancel() {
+        cancelled = true;
+    }
+
+    public long total() {
+        return total;
+    }
+
+    public long processed() {
+        return processed;
+    }
+
+    public long updated() {
+        return updated;
+    }
+
+    public boolean isFinished() {
+        return finished != null;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+}
@@ -0,0 +1,254 @@
+package org.netpreserve.chronicrawl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.*;
+
+/**
+ * Works out which address to connect to for a host. Lookups go to the system resolver unless the resolveOverrides
+ * option maps the host somewhere else, which lets a crawl be pointed at a staging or simulated copy of a site
+ * without touching /etc/hosts.
+ * <p>
+ * Results, including failures, are cached for dnsCacheTtl and dnsNegativeTtl respectively. Hosts of newly
+ * discovered origins are looked up in the background by {@link #prefetch(String)} so by the time the crawler gets
+ * around to connecting the address is usually already known. Concurrent lookups of the same host share one query.
+ */
+class Resolver implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(Resolver.class);
+    private final Config config;
+    private final Lookup lookup;
+    private final Map<String, CompletableFuture<Entry>> cache = new ConcurrentHashMap<>();
+    private final ThreadPoolExecutor prefetchExecutor;
+    private volatile Overrides overrides;
+
+    Resolver(Config config) {
+        this(config, InetAddress::getAllByName);
+    }
+
+    Resolver(Config config, Lookup lookup) {
+        this.config = config;
+        this.lookup = lookup;
+        // prefetching is best effort so rather than queue without limit we drop hosts when far behind
+        prefetchExecutor = new ThreadPoolExecutor(config.dnsPrefetchThreads, config.dnsPrefetchThreads,
+                0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(10000), r -> {
+            Thread thread = new Thread(r, "DNS prefetch");
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.DiscardPolicy());
+    }
+
+    InetSocketAddress resolve(String host, int port) throws UnknownHostException {
+        InetSocketAddress override = overrides().find(host);
+        if (override != null) {
+            return new InetSocketAddress(override.getAddress(), override.getPort() == 0 ? port : override.getPort());
+        }
+        Entry entry = lookup(host.toLowerCase(Locale.ROOT));
+        if (entry.address == null) throw new UnknownHostException(host);
+        return new InetSocketAddress(entry.address, port);
+    }
+
+    /**
+     * Returns the host's address if it's overridden or already in the cache, otherwise starts looking it up in the
+     * background and returns null. Never blocks.
+     */
+    InetAddress cachedAddress(String host) {
+        InetSocketAddress override = overrides().find(host);
+        if (override != null) return override.getAddress();
+        CompletableFuture<Entry> future = cache.get(host.toLowerCase(Locale.ROOT));
+        if (future != null && future.isDone() && !isExpired(future)) return future.join().address;
+        prefetch(host);
+        return null;
+    }
+
+    /**
+     * Returns true if a lookup of the host has finished and not yet expired, even if it failed.
+     */
+    boolean isCached(String host) {
+        if (overrides().find(host) != null) return true;
+        CompletableFuture<Entry> future = cache.get(host.toLowerCase(Locale.ROOT));
+        return future != null && future.isDone() && !isExpired(future);
+    }
+
+    /**
+     * Starts looking up a host in the background unless it's already cached.
+     */
+    void prefetch(String host) {
+        String key = host.toLowerCase(Locale.ROOT);
+        CompletableFuture<Entry> future = cache.get(key);
+        if (future != null && !isExpired(future)) return;
+        if (overrides().find(host) != null) return;
+        prefetchExecutor.execute(() -> lookup(key));
+    }
+
+    private Entry lookup(String host) {
+        while (true) {
+            CompletableFuture<Entry> future = cache.get(host);
+            if (future != null && !isExpired(future)) {
+                Metrics.dnsLookups.inc(future.isDone() ? "hit" : "pending");
+                return future.join();
+            }
+            CompletableFuture<Entry> ours = new CompletableFuture<>();
+            boolean claimed = future == null ? cache.putIfAbsent(host, ours) == null : cache.replace(host, future, ours);
+            if (!claimed) continue; // another thread started a lookup first, wait for theirs
+            if (future == null && cache.size() > config.dnsCacheMaxEntries) evict();
+            Entry entry;
+            try {
+                entry = query(host);
+            } catch (RuntimeException e) {
+                cache.remove(host, ours);
+                ours.completeExceptionally(e);
+                throw e;
+            }
+            ours.complete(entry);
+            return entry;
+        }
+    }
+
+    private Entry query(String host) {
+        long start = System.nanoTime();
+        try {
+            InetAddress address = lookup.lookup(host)[0];
+            Metrics.dnsLookups.inc("miss");
+            return new Entry(address, start + config.dnsCacheTtl.toNanos());
+        } catch (UnknownHostException e) {
+            Metrics.dnsLookups.inc("failure");
+            log.debug("DNS lookup failed for {}", host);
+            return new Entry(null, start + config.dnsNegativeTtl.toNanos());
+        } finally {
+            Metrics.dnsLookupSeconds.observeNanos(System.nanoTime() - start);
+        }
+    }
+
+    private static boolean isExpired(CompletableFuture<Entry> future) {
+        return future.isDone() && (future.isCompletedExceptionally() || future.join().expiry - System.nanoTime() < 0);
+    }
+
+    /**
+     * Evicts expired entries and then arbitrary ones until the cache is down to three quarters of its maximum size.
+     * Evicting in a batch means the scan happens once per quarter of the cache's worth of misses rather than on every
+     * miss once the cache is full.
+     */
+    private synchronized void evict() {
+        int max = config.dnsCacheMaxEntries;
+        if (cache.size() <= max) return; // another thread evicted while we waited
+        int lowWater = max - max / 4;
+        cache.values().removeIf(Resolver::isExpired);
+        var iterator = cache.keySet().iterator();
+        while (cache.size() > lowWater && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    int cacheSize() {
+        return cache.size();
+    }
+
+    @Override
+    public void close() {
+        prefetchExecutor.shutdownNow();
+    }
+
+    private Overrides overrides() {
+        Overrides overrides = this.overrides;
+        String spec = Objects.requireNonNullElse(config.resolveOverrides, "");
+        if (overrides == null || !overrides.spec.equals(spec)) {
+            // the option can be changed from the settings page so reparse whenever it does
+            overrides = new Overrides(spec);
+            this.overrides = overrides;
+        }
+        return overrides;
+    }
+
+    /**
+     * Throws IllegalArgumentException if the value isn't a valid resolveOverrides option.
+     */
+    static void validateOverrides(String spec) {
+        new Overrides(Objects.requireNonNullElse(spec, ""));
+    }
+
+    @FunctionalInterface
+    interface Lookup {
+        InetAddress[] lookup(String host) throws UnknownHostException;
+    }
+
+    private static class Entry {
+        final InetAddress address;
+        final long expiry;
+
+        Entry(InetAddress address, long expiry) {
+            this.address = address;
+            this.expiry = expiry;
+        }
+    }
+
+    private static class Overrides {
+        final String spec;
+        final Map<String, InetSocketAddress> hosts = new HashMap<>();
+        final List<String> suffixes = new ArrayList<>();
+        final List<InetSocketAddress> suffixTargets = new ArrayList<>();
+
+        Overrides(String spec) {
+            this.spec = spec;
+            for (String entry : spec.split(",")) {
+                entry = entry.strip();
+                if (entry.isEmpty()) continue;
+                int equals = entry.indexOf('=');
+                if (equals < 0) throw new IllegalArgumentException("Expected host=address[:port] in resolveOverrides not " + entry);
+                String pattern = entry.substring(0, equals).strip().toLowerCase(Locale.ROOT);
+                InetSocketAddress target = parseTarget(entry.substring(equals + 1).strip());
+                if (pattern.equals("*")) {
+                    suffixes.add("");
+                    suffixTargets.add(target);
+                } else if (pattern.startsWith("*.")) {
+                    suffixes.add(pattern.substring(1));
+                    suffixTargets.add(target);
+                } else {
+                    hosts.put(pattern, target);
+                }
+            }
+        }
+
+        private static InetSocketAddress parseTarget(String target) {
+            String address = target;
+            int port = 0;
+            int colon = target.lastIndexOf(':');
+            if (target.startsWith("[")) {
+                int bracket = target.indexOf(']');
+                if (bracket < 0) throw new IllegalArgumentException("Missing ] in override target " + target);
+                address = target.substring(1, bracket);
+                if (bracket + 1 < target.length()) port = Integer.parseInt(target.substring(bracket + 2));
+            } else if (colon >= 0 && colon == target.indexOf(':')) {
+                address = target.substring(0, colon);
+                port = Integer.parseInt(target.substring(colon + 1));
+            }
+            try {
+                return new InetSocketAddress(InetAddress.getByName(address), port);
+            } catch (UnknownHostException e) {
+                throw new IllegalArgumentException("Unable to resolve override target " + target, e);
+            }
+        }
+
+        InetSocketAddress find(String host) {
+            if (hosts.isEmpty() && suffixes.isEmpty()) return null;
+            host = host.toLowerCase(Locale.ROOT);
+            InetSocketAddress target = hosts.get(host);
+            if (target != null) return target;
+            for (int i = 0; i < suffixes.size(); i++) {
+                if (host.endsWith(suffixes.get(i))) return suffixTargets.get(i);
+            }
+            return null;
+        }
+    }
+}
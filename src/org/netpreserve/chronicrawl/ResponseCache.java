@@ -0,0 +1,120 @@
+package org.netpreserve.chronicrawl;
+
+import org.netpreserve.jwarc.HttpResponse;
+import org.netpreserve.jwarc.WarcResponse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+
+/**
+ * Size-bounded LRU cache of archived subresource responses for replaying into the browser. Sites tend to share the
+ * same stylesheets, scripts and fonts across every page so this saves a database query and a WARC read for each.
+ * Bodies are held in direct buffers to keep them out of the heap.
+ * <p>
+ * Entries are keyed by URL, method and capture date bucket. Any visit date within the same bucket gets the same
+ * response, even if the database holds a closer capture, so the bucket size trades accuracy for hit rate.
+ */
+class ResponseCache {
+    private final long capacityBytes;
+    private final long maxEntryBytes;
+    private final long bucketMillis;
+    private final LinkedHashMap<String, Entry> map = new LinkedHashMap<>(16, 0.75f, true);
+    private long sizeBytes;
+    private long hits;
+    private long misses;
+
+    ResponseCache(long capacityBytes, long maxEntryBytes, Duration bucket) {
+        this.capacityBytes = capacityBytes;
+        this.maxEntryBytes = Math.min(maxEntryBytes, capacityBytes / 8);
+        this.bucketMillis = Math.max(1, bucket.toMillis());
+    }
+
+    private String key(Url url, String method, Instant date) {
+        return url.originId() + " " + url.pathId() + " " + method + " " + date.toEpochMilli() / bucketMillis;
+    }
+
+    synchronized Entry get(Url url, String method, Instant date) {
+        if (capacityBytes <= 0) return null;
+        Entry entry = map.get(key(url, method, date));
+        if (entry == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return entry;
+    }
+
+    /**
+     * Reads the response into a new entry and caches it. Returns null without consuming the body if it's too large to
+     * cache.
+     */
+    Entry put(Url url, String method, Instant date, Visit visit, WarcResponse response) throws IOException {
+        if (capacityBytes <= 0 || response.body().size() > maxEntryBytes) return null;
+        Entry entry = new Entry(visit, response.http());
+        synchronized (this) {
+            Entry previous = map.put(key(url, method, date), entry);
+            if (previous != null) sizeBytes -= previous.sizeBytes();
+            sizeBytes += entry.sizeBytes();
+            var iterator = map.values().iterator();
+            while (sizeBytes > capacityBytes && iterator.hasNext()) {
+                sizeBytes -= iterator.next().sizeBytes();
+                iterator.remove();
+            }
+        }
+        return entry;
+    }
+
+    synchronized long sizeBytes() {
+        return sizeBytes;
+    }
+
+    synchronized long hits() {
+        return hits;
+    }
+
+    synchronized long misses() {
+        return misses;
+    }
+
+    static class Entry {
+        final Visit visit;
+        final int status;
+        final String reason;
+        final List<Map.Entry<String, String>> headers = new ArrayList<>();
+        private final ByteBuffer body;
+        private final long headerBytes;
+
+        Entry(Visit visit, HttpResponse http) throws IOException {
+            this.visit = visit;
+            this.status = http.status();
+            this.reason = http.reason().trim();
+            long headerBytes = 64 + reason.length();
+            for (var entry : http.headers().map().entrySet()) {
+                for (var value : entry.getValue()) {
+                    headers.add(new AbstractMap.SimpleEntry<>(entry.getKey(), value));
+                    headerBytes += 64 + entry.getKey().length() + value.length();
+                }
+            }
+            this.headerBytes = headerBytes;
+            try (InputStream stream = http.body().stream()) {
+                byte[] bytes = stream.readAllBytes();
+                body = ByteBuffer.allocateDirect(bytes.length).put(bytes).flip();
+            }
+        }
+
+        /**
+         * A read-only view of the body, safe to consume concurrently with other readers.
+         */
+        ByteBuffer body() {
+            return body.asReadOnlyBuffer();
+        }
+
+        long sizeBytes() {
+            return headerBytes + body.capacity();
+        }
+    }
+}
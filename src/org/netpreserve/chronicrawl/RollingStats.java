@@ -0,0 +1,110 @@
+package org.netpreserve.chronicrawl;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Recent crawl activity counted into fixed time buckets in a ring, so the dashboard doesn't need to query the visit
+ * table. Recording is lock-free: a bucket is claimed for a new time slot with a compare-and-set on its slot number and
+ * then counters are just atomically added to.
+ */
+class RollingStats {
+    static final int VISITS = 0;
+    static final int BYTES = 1;
+    static final int STATUS_1XX = 2; // STATUS_2XX etc follow
+    static final int ERRORS = 7;
+    static final int LATENCY_SUM = 8;
+    static final int LATENCY_MAX = 9;
+    private static final int FIELDS = 10;
+    private static final long RESETTING = Long.MIN_VALUE;
+
+    final long bucketMillis;
+    private final int buckets;
+    private final AtomicLongArray slots;
+    private final AtomicLongArray counters;
+
+    RollingStats(long bucketMillis, int buckets) {
+        this.bucketMillis = bucketMillis;
+        this.buckets = buckets;
+        this.slots = new AtomicLongArray(buckets);
+        this.counters = new AtomicLongArray(buckets * FIELDS);
+        for (int i = 0; i < buckets; i++) {
+            slots.set(i, -1);
+        }
+    }
+
+    /**
+     * Records a finished fetch.
+     *
+     * @param status        HTTP status or a negative {@link Status} code
+     * @param bytes         bytes written to the WARC for the response
+     * @param latencyMillis time taken to fetch the response
+     */
+    void record(long nowMillis, int status, long bytes, long latencyMillis) {
+        long slot = nowMillis / bucketMillis;
+        int index = claim(slot);
+        if (index < 0) return;
+        int base = index * FIELDS;
+        counters.incrementAndGet(base + VISITS);
+        counters.addAndGet(base + BYTES, bytes);
+        if (status >= 100 && status < 600) {
+            counters.incrementAndGet(base + STATUS_1XX + status / 100 - 1);
+        } else {
+            counters.incrementAndGet(base + ERRORS);
+        }
+        counters.addAndGet(base + LATENCY_SUM, latencyMillis);
+        counters.accumulateAndGet(base + LATENCY_MAX, latencyMillis, Math::max);
+    }
+
+    /**
+     * Returns the index of the bucket for a time slot, zeroing it if it last held an older slot. Returns -1 if the
+     * slot is too old to record.
+     */
+    private int claim(long slot) {
+        int index = (int) (slot % buckets);
+        while (true) {
+            long current = slots.get(index);
+            if (current == slot) return index;
+            if (current == RESETTING) { // another thread is zeroing it, which is quick so just spin
+                Thread.onSpinWait();
+                continue;
+            }
+            if (current > slot) return -1; // so late the bucket has been reused for a newer slot
+            if (slots.compareAndSet(index, current, RESETTING)) {
+                for (int i = 0; i < FIELDS; i++) {
+                    counters.set(index * FIELDS + i, 0);
+                }
+                slots.set(index, slot);
+                return index;
+            }
+        }
+    }
+
+    /**
+     * Returns the value of a field for each bucket in the window ending at nowMillis, oldest first. Buckets with no
+     * activity are zero.
+     */
+    long[] series(long nowMillis, int field, int count) {
+        count = Math.min(count, buckets);
+        long[] values = new long[count];
+        long lastSlot = nowMillis / bucketMillis;
+        for (int i = 0; i < count; i++) {
+            long slot = lastSlot - count + 1 + i;
+            int index = (int) (slot % buckets);
+            if (slots.get(index) == slot) values[i] = counters.get(index * FIELDS + field);
+        }
+        return values;
+    }
+
+    /**
+     * Totals each field over the given number of most recent buckets. LATENCY_MAX is the maximum rather than the sum.
+     */
+    long[] totals(long nowMillis, int count) {
+        long[] totals = new long[FIELDS];
+        for (int field = 0; field < FIELDS; field++) {
+            for (long value : series(nowMillis, field, count)) {
+                totals[field] = field == LATENCY_MAX ? Math.max(totals[field], value) : totals[field] + value;
+            }
+        }
+        return totals;
+    }
+}
@@ -4,9 +4,7 @@ import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.time.Instant;
 import java.util.List;
-import java.util.Objects;
 import java.util.regex.Pattern;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
@@ -31,8 +29,11 @@ public class Rule {
     }
 
     public static Rule bestMatching(List<Rule> rules, Location location) {
+        return bestMatching(rules, location.url().pathref());
+    }
+
+    public static Rule bestMatching(List<Rule> rules, String pathref) {
         Rule best = null;
-        String pathref = location.url.pathref();
         for (Rule rule : rules) {
             if (rule.matches(pathref) && (best == null || best.pattern.length() < rule.pattern.length())) {
                 best = rule;
@@ -44,25 +45,4 @@ public class Rule {
     public String href() {
         return "rule?o=" + originId + "&p=" + URLEncoder.encode(pattern, UTF_8);
     }
-
-    public static void reapplyRulesToOrigin(Database db, long originId) {
-        List<Rule> rules = db.rules.listForOriginId(originId);
-        long start = Long.MIN_VALUE;
-        while (true) {
-            List<Location> locations = db.locations.paginate(originId, start, 100);
-            if (locations.isEmpty()) break;
-            for (var location : locations) {
-                if (location.lastVisit == null) continue;
-                Rule rule = bestMatching(rules, location);
-                if (rule == null) continue;
-                if (rule.scheduleId == null) continue;
-                Schedule schedule = db.schedules.find(rule.scheduleId);
-                if (schedule == null) continue;
-                Instant nextVisit = schedule.apply(location.lastVisit);
-                if (Objects.equals(location.nextVisit, nextVisit)) continue;
-                db.locations.updateVisitData(location.originId, location.pathId, location.lastVisit, nextVisit);
-            }
-            start = locations.get(locations.size() - 1).pathId + 1;
-        }
-    }
 }
\ No newline at end of file
@@ -0,0 +1,114 @@
+package org.netpreserve.chronicrawl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * The most recent page screenshots, kept in memory for the home page. Optionally also written to files in the
+ * background so the crawl thread never waits on the disk.
+ */
+class Screenshots implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(Screenshots.class);
+    private static final DateTimeFormatter DAY_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd").withZone(ZoneOffset.UTC);
+    private final Screenshot[] ring;
+    private final Path dir;
+    private final ExecutorService writer;
+    private int next;
+
+    /**
+     * @param capacity number of screenshots to keep in memory
+     * @param dir      directory to also save screenshots to, or null to keep them only in memory
+     */
+    Screenshots(int capacity, Path dir) {
+        this.ring = new Screenshot[capacity];
+        this.dir = dir;
+        if (dir != null) {
+            writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(Math.max(1, capacity)),
+                    r -> {
+                        Thread thread = new Thread(r, "Screenshot writer");
+                        thread.setDaemon(true);
+                        return thread;
+                    }, new ThreadPoolExecutor.DiscardPolicy());
+        } else {
+            writer = null;
+        }
+    }
+
+    void add(Url url, Instant date, byte[] jpeg) {
+        var screenshot = new Screenshot(url, date, jpeg);
+        if (ring.length > 0) {
+            synchronized (this) {
+                ring[next] = screenshot;
+                next = (next + 1) % ring.length;
+            }
+        }
+        if (writer != null) writer.execute(() -> save(screenshot));
+    }
+
+    /**
+     * Returns up to n screenshots taken after the given time, newest first.
+     */
+    synchronized List<Screenshot> getN(long afterMillis, int n) {
+        List<Screenshot> list = new ArrayList<>();
+        for (int i = 1; i <= ring.length && list.size() < n; i++) {
+            Screenshot screenshot = ring[Math.floorMod(next - i, ring.length)];
+            if (screenshot == null || screenshot.date.toEpochMilli() <= afterMillis) break;
+            list.add(screenshot);
+        }
+        return list;
+    }
+
+    Path path(Url url, Instant date) {
+        return dir.resolve(DAY_FORMAT.format(date))
+                .resolve(url.originId() + "-" + url.pathId() + "-" + date.toEpochMilli() + ".jpg");
+    }
+
+    private void save(Screenshot screenshot) {
+        Path path = path(screenshot.url, screenshot.date);
+        try {
+            Files.createDirectories(path.getParent());
+            Files.write(path, screenshot.jpeg);
+        } catch (IOException e) {
+            log.warn("Unable to save screenshot {}", path, e);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (writer == null) return;
+        writer.shutdown();
+        try {
+            writer.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static class Screenshot {
+        public final Url url;
+        public final Instant date;
+        public final byte[] jpeg;
+
+        Screenshot(Url url, Instant date, byte[] jpeg) {
+            this.url = url;
+            this.date = date;
+            this.jpeg = jpeg;
+        }
+
+        public String screenshotDataUrl() {
+            return Util.makeJpegDataUrl(jpeg);
+        }
+    }
+}
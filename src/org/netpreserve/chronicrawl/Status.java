@@ -4,6 +4,14 @@ public class Status {
     public static final int NOT_MODIFIED = 304;
     public static final int DNS_LOOKUP_FAILED = -1;
     public static final int CONNECT_FAILED = -2;
+    /**
+     * The fetch deadline passed before a complete response header was received.
+     */
+    public static final int TIMEOUT = -4;
+    /**
+     * The response header alone exceeded maxResponseBytes.
+     */
+    public static final int RESPONSE_TOO_LARGE = -10;
     public static final int ROBOTS_DISALLOWED = -9998;
     public static final int UNEXPECTED_RUNTIME_EXCEPTION = -5;
 
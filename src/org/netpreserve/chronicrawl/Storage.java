@@ -1,6 +1,7 @@
 package org.netpreserve.chronicrawl;
 
 import com.github.f4b6a3.uuid.UuidCreator;
+import com.grack.nanojson.JsonWriter;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Node;
 import org.jsoup.nodes.TextNode;
@@ -34,10 +35,14 @@ public class Storage implements Closeable {
     private WarcWriter warcWriter;
     private static int serial = 0;
     private UUID warcId;
+    private String warcFilename;
+    final CdxjIndex cdxjIndex;
 
     public Storage(Config config, Database db) throws IOException {
         this.config = config;
         this.db = db;
+        this.cdxjIndex = config.cdxjDir == null || config.cdxjDir.isEmpty() ? null :
+                new CdxjIndex(Paths.get(config.cdxjDir), config.cdxjFlushLines, config.cdxjMergeSegments);
     }
 
     private synchronized void openNextFile() throws IOException {
@@ -51,6 +56,7 @@ public class Storage implements Closeable {
         Files.createDirectories(warcPath.getParent());
         warcWriter = new WarcWriter(FileChannel.open(warcPath, WRITE, CREATE_NEW));
         warcId = UuidCreator.getTimeOrdered();
+        warcFilename = warcPath.getFileName().toString();
         Instant date = Instant.now();
         warcWriter.write(new Warcinfo.Builder()
                 .version(MessageVersion.WARC_1_1)
@@ -70,6 +76,7 @@ public class Storage implements Closeable {
 
     synchronized void save(Exchange exchange) throws IOException {
         if (exchange.fetchStatus > 0 && exchange.httpRequest != null) {
+            long start = System.nanoTime();
             UUID requestId = UuidCreator.getTimeOrdered();
             WarcRequest request = new WarcRequest.Builder(exchange.url.toURI())
                     .version(MessageVersion.WARC_1_1)
@@ -83,7 +90,7 @@ public class Storage implements Closeable {
             }
             exchange.warcId = warcId;
             exchange.requestPosition = warcWriter.position();
-            warcWriter.write(request);
+            write(request);
             exchange.requestLength = warcWriter.position() - exchange.requestPosition;
 
             if (exchange.httpResponse != null) {
@@ -91,13 +98,52 @@ public class Storage implements Closeable {
                 UUID responseId = UuidCreator.getTimeOrdered();
                 WarcCaptureRecord response = buildResponse(responseId, exchange, request);
                 exchange.responsePosition = warcWriter.position();
-                warcWriter.write(response);
+                write(response);
                 exchange.responseLength = warcWriter.position() - exchange.responsePosition;
                 exchange.responseId = responseId;
+                // like /cdx the index leaves out truncated captures so replay doesn't serve them as complete
+                if (cdxjIndex != null && exchange.truncated == null) cdxjIndex.add(cdxjLine(exchange, response));
             }
+            Metrics.warcWriteSeconds.observeNanos(System.nanoTime() - start);
         }
     }
 
+    private void write(WarcTargetRecord record) throws IOException {
+        var event = new JfrEvents.WarcWriteEvent();
+        event.begin();
+        long position = warcWriter.position();
+        warcWriter.write(record);
+        long length = warcWriter.position() - position;
+        Metrics.warcRecords.inc(record.type());
+        Metrics.warcBytes.add(length);
+        event.end();
+        if (event.shouldCommit()) {
+            event.type = record.type();
+            event.url = record.target();
+            event.file = warcFilename;
+            event.offset = position;
+            event.bytes = length;
+            event.commit();
+        }
+    }
+
+    private String cdxjLine(Exchange exchange, WarcCaptureRecord response) {
+        var json = JsonWriter.string().object()
+                .value("url", exchange.url.toString())
+                .value("mime", response instanceof WarcRevisit ? "warc/revisit" :
+                        exchange.httpResponse.contentType().base().toString())
+                .value("status", Integer.toString(exchange.httpResponse.status()));
+        if (exchange.digest != null) {
+            json.value("digest", new WarcDigest(config.warcDigestAlgorithm, exchange.digest).base32());
+        }
+        String fields = json.value("length", Long.toString(exchange.responseLength))
+                .value("offset", Long.toString(exchange.responsePosition))
+                .value("filename", warcFilename)
+                .end().done();
+        return CdxjIndex.urlkey(exchange.url) + " " +
+                Util.ARC_DATE.format(exchange.date) + " " + fields;
+    }
+
     private WarcCaptureRecord buildResponse(UUID responseId, Exchange exchange, WarcRequest request) throws IOException {
         if (config.dedupeServer && exchange.httpResponse.status() == 304 && exchange.prevVisit != null) {
                 exchange.revisitOf = exchange.prevVisit;
@@ -113,7 +159,8 @@ public class Storage implements Closeable {
         }
 
         WarcDigest payloadDigest = new WarcDigest(config.warcDigestAlgorithm, exchange.digest);
-        if (config.dedupeDigest && exchange.contentLength >= config.dedupeMinLength) {
+        // a truncated payload can't stand in for a complete one, or vice versa
+        if (config.dedupeDigest && exchange.truncated == null && exchange.contentLength >= config.dedupeMinLength) {
             Visit duplicate = db.visits.findByResponsePayloadDigest(exchange.location.originId, exchange.location.pathId, exchange.digest);
             if (duplicate != null) {
                 try {
@@ -137,15 +184,16 @@ public class Storage implements Closeable {
             }
         }
 
-        return new WarcResponse.Builder(exchange.url.toURI())
+        var builder = new WarcResponse.Builder(exchange.url.toURI())
                 .version(MessageVersion.WARC_1_1)
                 .recordId(responseId)
                 .date(exchange.date)
                 .body(MediaType.HTTP_RESPONSE, exchange.bufferFile, exchange.bufferFile.size())
                 .concurrentTo(request.id())
                 .ipAddress(exchange.ip)
-                .payloadDigest(payloadDigest)
-                .build();
+                .payloadDigest(payloadDigest);
+        if (exchange.truncated != null) builder.truncated(exchange.truncated);
+        return builder.build();
     }
 
     WarcResponse readResponseHeader(Visit visit) throws IOException {
@@ -161,23 +209,43 @@ public class Storage implements Closeable {
     }
 
     void readResponse(Visit visit, ResponseConsumer consumer) throws IOException {
-        try (FileChannel channel = openWarc(visit.warcId)) {
+        try (StoredResponse stored = openResponse(visit)) {
+            consumer.accept(stored.record, stored.response);
+        }
+    }
+
+    /**
+     * Opens a visit's response record, following a revisit to the response it refers to. The caller owns the result
+     * and must close it once it's finished reading the response body.
+     */
+    StoredResponse openResponse(Visit visit) throws IOException {
+        FileChannel channel = openWarc(visit.warcId);
+        try {
             channel.position(visit.responsePosition);
-            try (WarcReader warcReader = new WarcReader(channel)) {
-                WarcRecord record = warcReader.next().orElse(null);
-                if (record == null) throw new IOException("Record was missing");
-                if (record instanceof WarcRevisit) {
-                    WarcRevisit revisit = (WarcRevisit) record;
-                    Url url = new Url(revisit.refersToTargetURI().orElseThrow(IOException::new).toString());
-                    Visit visit1 = db.visits.find(url.originId(), url.pathId(), revisit.refersToDate().orElseThrow());
-                    if (visit1 == null) throw new IOException("Revisit refers to missing record");
-                    readResponse(visit1, (r, rs) -> consumer.accept(revisit, rs));
-                } else if (record instanceof WarcResponse) {
-                    consumer.accept((WarcResponse) record, (WarcResponse) record);
-                } else {
-                    throw new IOException(record.id() + " is a " + record.type() + " record not response or revisit");
-                }
+            WarcRecord record = new WarcReader(channel).next().orElse(null);
+            if (record == null) throw new IOException("Record was missing");
+            if (record instanceof WarcRevisit) {
+                WarcRevisit revisit = (WarcRevisit) record;
+                Url url = new Url(revisit.refersToTargetURI().orElseThrow(IOException::new).toString());
+                Visit visit1 = db.visits.find(url.originId(), url.pathId(), revisit.refersToDate().orElseThrow());
+                if (visit1 == null) throw new IOException("Revisit refers to missing record");
+                StoredResponse original = openResponse(visit1);
+                return new StoredResponse(revisit, original.response, () -> {
+                    try {
+                        original.close();
+                    } finally {
+                        channel.close();
+                    }
+                });
+            } else if (record instanceof WarcResponse) {
+                WarcResponse response = (WarcResponse) record;
+                return new StoredResponse(response, response, channel);
+            } else {
+                throw new IOException(record.id() + " is a " + record.type() + " record not response or revisit");
             }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
         }
     }
 
@@ -222,6 +290,29 @@ public class Storage implements Closeable {
         return sb.toString();
     }
 
+    /**
+     * A response record along with the open WARC file it's read from.
+     */
+    static class StoredResponse implements Closeable {
+        /**
+         * The visit's own record, either the response or a revisit of it.
+         */
+        final WarcTargetRecord record;
+        final WarcResponse response;
+        private final Closeable source;
+
+        StoredResponse(WarcTargetRecord record, WarcResponse response, Closeable source) {
+            this.record = record;
+            this.response = response;
+            this.source = source;
+        }
+
+        @Override
+        public void close() throws IOException {
+            source.close();
+        }
+    }
+
     public interface ResponseConsumer {
         void accept(WarcTargetRecord record, WarcResponse response) throws IOException;
     }
@@ -248,5 +339,6 @@ public class Storage implements Closeable {
         } catch (IOException e) {
             log.error("Error closing storage", e);
         }
+        if (cdxjIndex != null) cdxjIndex.close();
     }
 }
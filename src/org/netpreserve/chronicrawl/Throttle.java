@@ -0,0 +1,203 @@
+package org.netpreserve.chronicrawl;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+/**
+ * Token bucket bandwidth limits on bytes read from servers, applied globally (bandwidthLimit), to each origin
+ * (originBandwidthLimit) and to responses by content type (contentTypeBandwidthLimits). Each bucket holds up to one
+ * second of tokens so short bursts aren't penalised. A read that overdraws a bucket is let through and the reader
+ * then sleeps until the debt is repaid, which keeps the read loop simple and the long run rate exact.
+ * <p>
+ * The global and origin limits are read from the config on every call so changes from the settings page apply to
+ * downloads already in progress. A response's content type limit is looked up once when its header has been read,
+ * so changes to contentTypeBandwidthLimits only apply to responses that start after them.
+ */
+class Throttle {
+    private static final int MAX_IDLE_BUCKETS = 10000;
+    private static final int MAX_HEADER_BYTES = 64 * 1024;
+    private final Config config;
+    private final Bucket global = new Bucket();
+    private final Map<Long, Bucket> origins = new ConcurrentHashMap<>();
+    private final Map<String, Bucket> contentTypes = new ConcurrentHashMap<>();
+    private volatile ContentTypeLimits contentTypeLimits;
+
+    Throttle(Config config) {
+        this.config = config;
+    }
+
+    /**
+     * Starts metering a response from the given origin.
+     */
+    Transfer start(long originId) {
+        if (origins.size() > MAX_IDLE_BUCKETS) {
+            long now = System.nanoTime();
+            origins.values().removeIf(bucket -> bucket.isIdle(now, config.originBandwidthLimit));
+        }
+        return new Transfer(originId);
+    }
+
+    private ContentTypeLimits contentTypeLimits() {
+        ContentTypeLimits limits = this.contentTypeLimits;
+        String spec = Objects.requireNonNullElse(config.contentTypeBandwidthLimits, "");
+        if (limits == null || !limits.spec.equals(spec)) {
+            limits = new ContentTypeLimits(spec);
+            this.contentTypeLimits = limits;
+        }
+        return limits;
+    }
+
+    /**
+     * Throws IllegalArgumentException if the value isn't a valid contentTypeBandwidthLimits option.
+     */
+    static void validateContentTypeLimits(String spec) {
+        new ContentTypeLimits(Objects.requireNonNullElse(spec, ""));
+    }
+
+    /**
+     * Sniffs the Content-Type from the response header as it arrives.
+     */
+    static String sniffContentType(String header) {
+        for (String line : header.split("\r?\n")) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).strip().equalsIgnoreCase("Content-Type")) {
+                String value = line.substring(colon + 1);
+                int semicolon = value.indexOf(';');
+                if (semicolon >= 0) value = value.substring(0, semicolon);
+                return value.strip().toLowerCase(Locale.ROOT);
+            }
+        }
+        return null;
+    }
+
+    class Transfer {
+        private final Bucket origin;
+        private StringBuilder header = new StringBuilder();
+        private String contentTypePattern;
+        private long contentTypeLimit;
+        private long throttledNanos;
+
+        private Transfer(long originId) {
+            this.origin = origins.computeIfAbsent(originId, id -> new Bucket());
+        }
+
+        /**
+         * Accounts for bytes just read, sleeping if that took any bucket over its limit.
+         */
+        void received(byte[] buffer, int length) throws InterruptedIOException {
+            if (header != null) sniff(buffer, length);
+            long now = System.nanoTime();
+            long waitNanos = global.take(now, config.bandwidthLimit, length);
+            String scope = "global";
+            long originWait = origin.take(now, config.originBandwidthLimit, length);
+            if (originWait > waitNanos) {
+                waitNanos = originWait;
+                scope = "origin";
+            }
+            if (contentTypePattern != null) {
+                long typeWait = contentTypes.computeIfAbsent(contentTypePattern, p -> new Bucket())
+                        .take(now, contentTypeLimit, length);
+                if (typeWait > waitNanos) {
+                    waitNanos = typeWait;
+                    scope = "content_type";
+                }
+            }
+            if (waitNanos <= 0) return;
+            Metrics.bandwidthThrottleMillis.add(waitNanos / 1000000, scope);
+            try {
+                Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttled");
+            } finally {
+                throttledNanos += System.nanoTime() - now;
+            }
+        }
+
+        /**
+         * Total time spent sleeping so far. This is our own doing rather than the server's so callers exclude it
+         * from response times and fetch deadlines.
+         */
+        long throttledNanos() {
+            return throttledNanos;
+        }
+
+        private void sniff(byte[] buffer, int length) {
+            int start = Math.max(0, header.length() - 3);
+            header.append(new String(buffer, 0, Math.min(length, MAX_HEADER_BYTES - header.length()), ISO_8859_1));
+            int end = header.indexOf("\r\n\r\n", start);
+            if (end < 0 && header.length() < MAX_HEADER_BYTES) return;
+            String contentType = sniffContentType(end < 0 ? header.toString() : header.substring(0, end));
+            header = null;
+            if (contentType == null) return;
+            ContentTypeLimits limits = contentTypeLimits();
+            contentTypePattern = limits.match(contentType);
+            if (contentTypePattern != null) contentTypeLimit = limits.limits.get(contentTypePattern);
+        }
+    }
+
+    private static class ContentTypeLimits {
+        final String spec;
+        final Map<String, Long> limits = new ConcurrentHashMap<>();
+
+        ContentTypeLimits(String spec) {
+            this.spec = spec;
+            for (String entry : spec.split(",")) {
+                entry = entry.strip();
+                if (entry.isEmpty()) continue;
+                int equals = entry.indexOf('=');
+                if (equals < 0) throw new IllegalArgumentException("Expected type=bytesPerSecond in contentTypeBandwidthLimits not " + entry);
+                limits.put(entry.substring(0, equals).strip().toLowerCase(Locale.ROOT),
+                        Long.parseLong(entry.substring(equals + 1).strip()));
+            }
+        }
+
+        /**
+         * Returns the most specific pattern matching the content type: the exact type, then type/*, then *.
+         */
+        String match(String contentType) {
+            if (limits.isEmpty()) return null;
+            List<String> candidates = new ArrayList<>(3);
+            candidates.add(contentType);
+            int slash = contentType.indexOf('/');
+            if (slash > 0) candidates.add(contentType.substring(0, slash) + "/*");
+            candidates.add("*");
+            for (String candidate : candidates) {
+                if (limits.containsKey(candidate)) return candidate;
+            }
+            return null;
+        }
+    }
+
+    static class Bucket {
+        private double tokens = Double.NaN; // full
+        private long refilledAt;
+
+        /**
+         * Takes tokens for the given number of bytes and returns how many nanoseconds the caller should wait for the
+         * bucket to come back out of debt. A limit of zero or less means unlimited.
+         */
+        synchronized long take(long now, long bytesPerSecond, int bytes) {
+            if (bytesPerSecond <= 0) {
+                tokens = Double.NaN;
+                return 0;
+            }
+            tokens = Double.isNaN(tokens) ? bytesPerSecond :
+                    Math.min(bytesPerSecond, tokens + (now - refilledAt) * bytesPerSecond / 1e9);
+            refilledAt = now;
+            tokens -= bytes;
+            return tokens >= 0 ? 0 : (long) (-tokens * 1e9 / bytesPerSecond);
+        }
+
+        synchronized boolean isIdle(long now, long bytesPerSecond) {
+            return bytesPerSecond <= 0 || Double.isNaN(tokens) || tokens + (now - refilledAt) * bytesPerSecond / 1e9 >= bytesPerSecond;
+        }
+    }
+}
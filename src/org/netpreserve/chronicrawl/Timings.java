@@ -0,0 +1,141 @@
+package org.netpreserve.chronicrawl;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Breakdown of where the time went during an exchange, measured with the monotonic clock. Each phase runs from the
+ * end of the previous one (or the last call to start()) so the phases add up to the total, less any excluded
+ * waits.
+ * <p>
+ * Stored with the visit as unsigned varints of microseconds in phase order, with trailing zeros dropped. New phases
+ * must be added at the end so older visits still decode.
+ */
+public class Timings {
+    public enum Phase {
+        DNS("DNS lookup"),
+        CONNECT("TCP connect"),
+        TLS("TLS handshake"),
+        SEND("Send request"),
+        FIRST_BYTE("Time to first byte"),
+        TRANSFER("Transfer"),
+        DIGEST("Parse and digest"),
+        WARC("WARC write"),
+        DB("Database commit"),
+        PROCESS("Processing and analysis");
+
+        public final String label;
+
+        Phase(String label) {
+            this.label = label;
+        }
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+    private final long[] nanos = new long[PHASES.length];
+    private long mark = System.nanoTime();
+
+    /**
+     * Starts timing from now, discarding any time since the last phase ended.
+     */
+    void start() {
+        mark = System.nanoTime();
+    }
+
+    /**
+     * Attributes the time since the last phase ended to the given phase.
+     */
+    void end(Phase phase) {
+        long now = System.nanoTime();
+        nanos[phase.ordinal()] += now - mark;
+        mark = now;
+    }
+
+    /**
+     * Leaves the given time out of the current phase, such as time spent deliberately waiting rather than on the
+     * exchange itself.
+     */
+    void exclude(long nanos) {
+        mark += nanos;
+    }
+
+    long nanos(Phase phase) {
+        return nanos[phase.ordinal()];
+    }
+
+    byte[] encode() {
+        int length = PHASES.length;
+        while (length > 0 && nanos[length - 1] < 1000) length--;
+        var out = new ByteArrayOutputStream(length * 2);
+        for (int i = 0; i < length; i++) {
+            long value = nanos[i] / 1000;
+            while ((value & ~0x7fL) != 0) {
+                out.write((int) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+        return out.toByteArray();
+    }
+
+    static long[] decodeMicros(byte[] encoded) {
+        long[] micros = new long[PHASES.length];
+        int phase = 0;
+        long value = 0;
+        int shift = 0;
+        for (int i = 0; i < encoded.length && phase < micros.length; i++) {
+            byte b = encoded[i];
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                micros[phase++] = value;
+                value = 0;
+                shift = 0;
+            } else {
+                shift += 7;
+            }
+        }
+        return micros;
+    }
+
+    /**
+     * Mean and maximum milliseconds per phase over the given encoded timings.
+     */
+    static List<Row> summarise(List<byte[]> encodedTimings) {
+        long[] sums = new long[PHASES.length];
+        long[] maxes = new long[PHASES.length];
+        long totalSum = 0;
+        long totalMax = 0;
+        for (byte[] encoded : encodedTimings) {
+            long[] micros = decodeMicros(encoded);
+            long total = 0;
+            for (int i = 0; i < micros.length; i++) {
+                sums[i] += micros[i];
+                maxes[i] = Math.max(maxes[i], micros[i]);
+                total += micros[i];
+            }
+            totalSum += total;
+            totalMax = Math.max(totalMax, total);
+        }
+        int count = Math.max(1, encodedTimings.size());
+        List<Row> rows = new ArrayList<>();
+        for (Phase phase : PHASES) {
+            int i = phase.ordinal();
+            rows.add(new Row(phase.label, sums[i] / 1000.0 / count, maxes[i] / 1000.0));
+        }
+        rows.add(new Row("Total", totalSum / 1000.0 / count, totalMax / 1000.0));
+        return rows;
+    }
+
+    public static class Row {
+        public final String phase;
+        public final double meanMillis;
+        public final double maxMillis;
+
+        Row(String phase, double meanMillis, double maxMillis) {
+            this.phase = phase;
+            this.meanMillis = meanMillis;
+            this.maxMillis = maxMillis;
+        }
+    }
+}
@@ -6,17 +6,25 @@ import org.netpreserve.urlcanon.Canonicalizer;
 import org.netpreserve.urlcanon.ParsedUrl;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.net.*;
-
-import static java.nio.charset.StandardCharsets.UTF_8;
+import java.util.Arrays;
 
 public class Url implements Comparable<Url> {
     private static final XXHash64 xxhash = XXHashFactory.fastestJavaInstance().hash64();
+    private static final ThreadLocal<HashBuffer> hashBuffer = ThreadLocal.withInitial(HashBuffer::new);
     private final ParsedUrl parsed;
     private String ssurt;
+    // lazily computed, 0 means not yet known (a real hash of 0 just gets recomputed)
+    private String string;
+    private String origin;
+    private String pathref;
+    private long id;
+    private long originId;
+    private long pathId;
 
     public Url(String url) {
         this.parsed = ParsedUrl.parseUrl(url);
@@ -27,26 +35,57 @@ public class Url implements Comparable<Url> {
         this.parsed = parsed;
     }
 
+    /**
+     * Reconstructs a URL from an origin and pathref that were already canonicalized before being stored. Skips
+     * canonicalization and reuses the stored ids rather than rehashing.
+     */
+    static Url fromCanonical(String origin, String pathref, long originId, long pathId) {
+        Url url = new Url(ParsedUrl.parseUrl(origin + pathref));
+        url.origin = origin;
+        url.pathref = pathref;
+        url.originId = originId;
+        url.pathId = pathId;
+        return url;
+    }
+
     public long id() {
-        return hash(toString());
+        if (id == 0) {
+            id = hash(toString());
+        }
+        return id;
     }
 
     public long originId() {
-        return hash(origin());
+        if (originId == 0) {
+            originId = origin != null ? hash(origin) : hashBuffer.get().reset()
+                    .append(parsed.getScheme())
+                    .append(parsed.getColonAfterScheme())
+                    .append(parsed.getSlashes())
+                    .append(parsed.getHost())
+                    .append(parsed.getColonBeforePort())
+                    .append(parsed.getPort())
+                    .hash();
+        }
+        return originId;
     }
 
     public String origin() {
-        return parsed.getScheme() + parsed.getColonAfterScheme() + parsed.getSlashes() + parsed.getHost() +
-                parsed.getColonBeforePort() + parsed.getPort();
+        if (origin == null) {
+            origin = parsed.getScheme() + parsed.getColonAfterScheme() + parsed.getSlashes() + parsed.getHost() +
+                    parsed.getColonBeforePort() + parsed.getPort();
+        }
+        return origin;
     }
 
     public String toString() {
-        return parsed.toString();
+        if (string == null) {
+            string = parsed.toString();
+        }
+        return string;
     }
 
     static long hash(String s) {
-        byte[] data = s.getBytes(UTF_8);
-        return xxhash.hash(data, 0, data.length, 0);
+        return hashBuffer.get().reset().append(s).hash();
     }
 
     public Url resolve(String other) {
@@ -58,11 +97,21 @@ public class Url implements Comparable<Url> {
     }
 
     public String pathref() {
-        return parsed.getPath() + parsed.getQuestionMark() + parsed.getQuery();
+        if (pathref == null) {
+            pathref = parsed.getPath() + parsed.getQuestionMark() + parsed.getQuery();
+        }
+        return pathref;
     }
 
     public long pathId() {
-        return hash(pathref());
+        if (pathId == 0) {
+            pathId = pathref != null ? hash(pathref) : hashBuffer.get().reset()
+                    .append(parsed.getPath())
+                    .append(parsed.getQuestionMark())
+                    .append(parsed.getQuery())
+                    .hash();
+        }
+        return pathId;
     }
 
     public URL toURL() {
@@ -97,7 +146,7 @@ public class Url implements Comparable<Url> {
     }
 
     public String target() {
-        return parsed.getPath() + parsed.getQuestionMark() + parsed.getQuery();
+        return pathref();
     }
 
     public String hostInfo() {
@@ -105,13 +154,43 @@ public class Url implements Comparable<Url> {
     }
 
     public Socket connect(InetAddress bindAddress, SSLSocketFactory sslSocketFactory) throws IOException {
+        return connect(bindAddress, sslSocketFactory, null, 0, new Timings());
+    }
+
+    /**
+     * Connects to the server, recording the DNS lookup, TCP connect and TLS handshake as separate timing phases.
+     * If resolver is null the system resolver is used. The timeout applies separately to the TCP connect and the TLS
+     * handshake, zero meaning wait forever.
+     */
+    Socket connect(InetAddress bindAddress, SSLSocketFactory sslSocketFactory, Resolver resolver, int timeoutMillis,
+                   Timings timings) throws IOException {
+        boolean tls;
         if ("http".equalsIgnoreCase(scheme())) {
-            return new Socket(host(), port() < 0 ? 80 : port(), bindAddress, 0);
+            tls = false;
         } else if ("https".equalsIgnoreCase(scheme())) {
-            return sslSocketFactory.createSocket(host(), port() < 0 ? 443 : port());
+            tls = true;
         } else {
             throw new IllegalArgumentException("Unsupported URI scheme: " + scheme());
         }
+        int port = port() < 0 ? (tls ? 443 : 80) : port();
+        InetSocketAddress address = resolver == null ? new InetSocketAddress(InetAddress.getByName(host()), port) :
+                resolver.resolve(host(), port);
+        timings.end(Timings.Phase.DNS);
+        Socket socket = new Socket();
+        try {
+            if (bindAddress != null) socket.bind(new InetSocketAddress(bindAddress, 0));
+            socket.connect(address, timeoutMillis);
+            timings.end(Timings.Phase.CONNECT);
+            if (!tls) return socket;
+            socket.setSoTimeout(timeoutMillis);
+            SSLSocket sslSocket = (SSLSocket) sslSocketFactory.createSocket(socket, host(), port, true);
+            sslSocket.startHandshake();
+            timings.end(Timings.Phase.TLS);
+            return sslSocket;
+        } catch (IOException | RuntimeException e) {
+            socket.close();
+            throw e;
+        }
     }
 
     public Url withScheme(String scheme) {
@@ -138,4 +217,65 @@ public class Url implements Comparable<Url> {
     public int compareTo(Url o) {
         return ssurt().compareTo(o.ssurt());
     }
+
+    /**
+     * Reusable per-thread buffer that UTF-8 encodes strings for hashing without allocating intermediate arrays.
+     * Produces the same bytes as String.getBytes(UTF_8) including replacing unpaired surrogates with '?'.
+     */
+    private static class HashBuffer {
+        private byte[] data = new byte[256];
+        private char[] chars = new char[256];
+        private int length;
+
+        HashBuffer reset() {
+            length = 0;
+            return this;
+        }
+
+        HashBuffer append(String s) {
+            int n = s.length();
+            if (data.length - length < n * 3) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + n * 3));
+            }
+            if (chars.length < n) {
+                chars = new char[Math.max(chars.length * 2, n)];
+            }
+            char[] chars = this.chars;
+            s.getChars(0, n, chars, 0);
+            byte[] data = this.data;
+            int pos = length;
+            int i = 0;
+            // fast path for the common all-ASCII case
+            while (i < n && chars[i] < 0x80) {
+                data[pos++] = (byte) chars[i++];
+            }
+            for (; i < n; i++) {
+                char c = chars[i];
+                if (c < 0x80) {
+                    data[pos++] = (byte) c;
+                } else if (c < 0x800) {
+                    data[pos++] = (byte) (0xc0 | (c >> 6));
+                    data[pos++] = (byte) (0x80 | (c & 0x3f));
+                } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(chars[i + 1])) {
+                    int cp = Character.toCodePoint(c, chars[++i]);
+                    data[pos++] = (byte) (0xf0 | (cp >> 18));
+                    data[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                    data[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                    data[pos++] = (byte) (0x80 | (cp & 0x3f));
+                } else if (Character.isSurrogate(c)) {
+                    data[pos++] = '?';
+                } else {
+                    data[pos++] = (byte) (0xe0 | (c >> 12));
+                    data[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    data[pos++] = (byte) (0x80 | (c & 0x3f));
+                }
+            }
+            length = pos;
+            return this;
+        }
+
+        long hash() {
+            return xxhash.hash(data, 0, length, 0);
+        }
+    }
 }
@@ -3,6 +3,7 @@ package org.netpreserve.chronicrawl;
 import org.apache.commons.codec.binary.Hex;
 
 import java.time.Instant;
+import java.util.List;
 import java.util.UUID;
 
 public class Visit {
@@ -21,8 +22,10 @@ public class Visit {
     public final long responseLength;
     public final byte[] responsePayloadDigest;
     public final Instant revisitOfDate;
+    public final byte[] timings;
+    public final String truncated;
 
-    public Visit(long originId, long pathId, Instant date, String method, int status, String contentType, Long contentLength, UUID warcId, long requestPosition, long requestLength, byte[] requestPayloadDigest, long responsePosition, long responseLength, byte[] responsePayloadDigest, Instant revisitOfDate) {
+    public Visit(long originId, long pathId, Instant date, String method, int status, String contentType, Long contentLength, UUID warcId, long requestPosition, long requestLength, byte[] requestPayloadDigest, long responsePosition, long responseLength, byte[] responsePayloadDigest, Instant revisitOfDate, byte[] timings, String truncated) {
         this.originId = originId;
         this.pathId = pathId;
         this.date = date;
@@ -38,12 +41,18 @@ public class Visit {
         this.responseLength = responseLength;
         this.responsePayloadDigest = responsePayloadDigest;
         this.revisitOfDate = revisitOfDate;
+        this.timings = timings;
+        this.truncated = truncated;
     }
 
     public String href() {
         return "visit?o=" + originId + "&p=" + pathId + "&d=" + date.toEpochMilli();
     }
 
+    public List<Timings.Row> timingRows() {
+        return timings == null ? null : Timings.summarise(List.of(timings));
+    }
+
     public String digestPreview() {
         if (responsePayloadDigest == null) return "";
         return new Hex().encodeHexString(responsePayloadDigest).substring(0, 8);
@@ -0,0 +1,579 @@
+package org.netpreserve.chronicrawl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Minimal HTTP/1.1 server. A single selector thread accepts connections and reads requests, complete requests are
+ * handled on a bounded pool of worker threads. Idle keep-alive connections cost no thread at all which matters as
+ * pywb makes a cdx and record request for every replayed resource.
+ */
+class WebServer implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(WebServer.class);
+    private static final int MAX_HEADER_BYTES = 64 * 1024;
+    private static final int MAX_BODY_BYTES = 8 * 1024 * 1024;
+    private static final long IDLE_TIMEOUT_MILLIS = 60_000;
+    private static final long WRITE_TIMEOUT_MILLIS = 60_000;
+    private static final byte[] CRLF = "\r\n".getBytes(ISO_8859_1);
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(ISO_8859_1);
+    private static final ThreadLocal<Selector> writeSelector = ThreadLocal.withInitial(() -> {
+        try {
+            return Selector.open();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    });
+
+    static final int OK = 200;
+    static final int SEE_OTHER = 303;
+    static final int BAD_REQUEST = 400;
+    static final int FORBIDDEN = 403;
+    static final int NOT_FOUND = 404;
+    static final int INTERNAL_ERROR = 500;
+    static final int SERVICE_UNAVAILABLE = 503;
+
+    private final Handler handler;
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final ThreadPoolExecutor workers;
+    private final Thread thread;
+    private final Set<Connection> connections = new HashSet<>();
+    private final Queue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean closed;
+
+    interface Handler {
+        Response handle(Request request) throws Exception;
+    }
+
+    interface StreamBody {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    WebServer(InetSocketAddress address, int workerThreads, Handler handler) throws IOException {
+        this.handler = handler;
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        workers = new ThreadPoolExecutor(workerThreads, workerThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(workerThreads * 16), r -> {
+                    Thread thread = new Thread(r, "Web worker");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        thread = new Thread(this::run, "Web selector");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    int port() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    private void run() {
+        while (!closed) {
+            try {
+                selector.select(1000);
+                for (Runnable task = selectorTasks.poll(); task != null; task = selectorTasks.poll()) {
+                    task.run();
+                }
+                for (var iterator = selector.selectedKeys().iterator(); iterator.hasNext(); ) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        ((Connection) key.attachment()).read();
+                    }
+                }
+                closeIdleConnections();
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (Exception e) {
+                log.error("Web selector error", e);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) return;
+        channel.configureBlocking(false);
+        var connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        connections.add(connection);
+    }
+
+    private void closeIdleConnections() {
+        long now = System.currentTimeMillis();
+        for (var iterator = connections.iterator(); iterator.hasNext(); ) {
+            Connection connection = iterator.next();
+            if (!connection.channel.isOpen()) {
+                iterator.remove();
+            } else if (!connection.busy && now - connection.lastActive > IDLE_TIMEOUT_MILLIS) {
+                connection.close();
+                iterator.remove();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        workers.shutdownNow();
+        for (Connection connection : connections) {
+            connection.close();
+        }
+        try {
+            serverChannel.close();
+            selector.close();
+        } catch (IOException e) {
+            log.warn("Error closing web server", e);
+        }
+    }
+
+    private class Connection {
+        final SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        long lastActive = System.currentTimeMillis();
+        boolean busy;
+        boolean continueSent;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Called on the selector thread when the socket is readable.
+         */
+        void read() {
+            try {
+                if (!buffer.hasRemaining()) {
+                    if (buffer.capacity() >= MAX_HEADER_BYTES + MAX_BODY_BYTES) throw new BadRequest("Request too large");
+                    buffer = ByteBuffer.allocate(buffer.capacity() * 2).put(buffer.flip());
+                }
+                if (channel.read(buffer) < 0) {
+                    close();
+                    return;
+                }
+                lastActive = System.currentTimeMillis();
+                dispatch();
+            } catch (BadRequest e) {
+                reject(BAD_REQUEST, e.getMessage());
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /**
+         * If a whole request has been buffered hands it to a worker, pausing reads until the response is written.
+         */
+        void dispatch() throws IOException {
+            Request request = parse();
+            if (request == null) return;
+            busy = true;
+            key.interestOps(0);
+            try {
+                workers.execute(() -> respond(request));
+            } catch (RejectedExecutionException e) {
+                reject(SERVICE_UNAVAILABLE, "Server busy");
+            }
+        }
+
+        private void reject(int status, String message) {
+            try {
+                var response = Response.text(status, message);
+                response.headers.add(Map.entry("Connection", "close"));
+                channel.write(response.headerBytes(false)); // best effort, the socket buffer should easily hold it
+                channel.write(ByteBuffer.wrap(response.body));
+            } catch (IOException e) {
+                // client is gone anyway
+            }
+            close();
+        }
+
+        /**
+         * Parses the request at the start of the buffer. Returns null if it hasn't fully arrived yet.
+         */
+        private Request parse() throws IOException {
+            byte[] data = buffer.array();
+            int end = indexOfHeaderEnd(data, buffer.position());
+            if (end < 0) {
+                if (buffer.position() >= MAX_HEADER_BYTES) throw new BadRequest("Request header too large");
+                return null;
+            }
+            String[] lines = new String(data, 0, end, ISO_8859_1).split("\r\n");
+            String[] requestLine = lines[0].split(" ");
+            if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) throw new BadRequest("Bad request line");
+            Map<String, String> headers = new HashMap<>();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon <= 0) throw new BadRequest("Bad header line");
+                String name = lines[i].substring(0, colon).strip().toLowerCase(Locale.ROOT);
+                String value = lines[i].substring(colon + 1).strip();
+                headers.merge(name, value, (a, b) -> a + ", " + b);
+            }
+            if (headers.containsKey("transfer-encoding")) throw new BadRequest("Chunked requests are not supported");
+            int contentLength;
+            try {
+                contentLength = Integer.parseInt(headers.getOrDefault("content-length", "0"));
+            } catch (NumberFormatException e) {
+                throw new BadRequest("Bad content-length");
+            }
+            if (contentLength < 0 || contentLength > MAX_BODY_BYTES) throw new BadRequest("Bad content-length");
+            int bodyStart = end + 4;
+            if (buffer.position() < bodyStart + contentLength) {
+                if (!continueSent && "100-continue".equalsIgnoreCase(headers.get("expect"))) {
+                    continueSent = true;
+                    channel.write(ByteBuffer.wrap("HTTP/1.1 100 Continue\r\n\r\n".getBytes(ISO_8859_1)));
+                }
+                return null;
+            }
+            byte[] body = Arrays.copyOfRange(data, bodyStart, bodyStart + contentLength);
+            buffer.flip().position(bodyStart + contentLength);
+            buffer.compact();
+            continueSent = false;
+
+            boolean keepAlive = requestLine[2].equals("HTTP/1.1") ?
+                    !"close".equalsIgnoreCase(headers.get("connection")) :
+                    "keep-alive".equalsIgnoreCase(headers.get("connection"));
+            return new Request(requestLine[0], requestLine[1], requestLine[2], headers, body, keepAlive);
+        }
+
+        /**
+         * Runs on a worker thread.
+         */
+        private void respond(Request request) {
+            Response response;
+            try {
+                response = handler.handle(request);
+            } catch (Exception e) {
+                log.error("Unhandled exception serving {}", request.path, e);
+                response = Response.text(INTERNAL_ERROR, "Internal server error");
+            }
+            // HTTP/1.0 clients don't understand chunked encoding so the end of a stream is marked by closing instead
+            boolean chunked = response.stream != null && request.version.equals("HTTP/1.1");
+            boolean keepAlive = request.keepAlive && (response.stream == null || chunked);
+            try {
+                if (!keepAlive) response.headers.add(Map.entry("Connection", "close"));
+                write(response.headerBytes(chunked));
+                if (request.method.equals("HEAD")) {
+                    // headers only
+                } else if (response.file != null) {
+                    long position = response.filePosition;
+                    long end = position + response.contentLength;
+                    while (position < end) {
+                        long n = response.file.transferTo(position, end - position, channel);
+                        if (n == 0) {
+                            if (position >= response.file.size()) throw new IOException("File truncated");
+                            awaitWritable();
+                        }
+                        position += n;
+                    }
+                } else if (response.stream != null) {
+                    try (var out = new BodyOutputStream(chunked)) {
+                        response.stream.writeTo(out);
+                    }
+                } else {
+                    write(ByteBuffer.wrap(response.body));
+                }
+            } catch (IOException e) {
+                log.debug("Error writing response to {}", request.path, e);
+                keepAlive = false;
+            } catch (RuntimeException e) {
+                // too late to send an error status, cutting off the response is the best we can do
+                log.error("Exception streaming response to {}", request.path, e);
+                keepAlive = false;
+            } finally {
+                response.close();
+            }
+            if (keepAlive) {
+                selectorTasks.add(() -> {
+                    busy = false;
+                    lastActive = System.currentTimeMillis();
+                    try {
+                        key.interestOps(SelectionKey.OP_READ);
+                        dispatch(); // a pipelined request may already be buffered
+                    } catch (CancelledKeyException | IOException e) {
+                        close();
+                    }
+                });
+                selector.wakeup();
+            } else {
+                close();
+            }
+        }
+
+        private void write(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (channel.write(buffer) == 0) awaitWritable();
+            }
+        }
+
+        /**
+         * The socket is non-blocking as it's also registered with the main selector so wait on a per-thread one.
+         */
+        private void awaitWritable() throws IOException {
+            Selector selector = writeSelector.get();
+            SelectionKey writeKey = channel.register(selector, SelectionKey.OP_WRITE);
+            try {
+                if (selector.select(WRITE_TIMEOUT_MILLIS) == 0) throw new SocketTimeoutException("Write timed out");
+            } finally {
+                writeKey.cancel();
+                selector.selectNow();
+            }
+        }
+
+        /**
+         * Writes a streamed body, buffering so each write (or chunk, when using the chunked transfer coding) is a
+         * reasonable size.
+         */
+        private class BodyOutputStream extends OutputStream {
+            private final ByteBuffer buffer = ByteBuffer.allocate(16384);
+            private final boolean chunked;
+
+            BodyOutputStream(boolean chunked) {
+                this.chunked = chunked;
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                if (!buffer.hasRemaining()) flush();
+                buffer.put((byte) b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                while (len > 0) {
+                    if (!buffer.hasRemaining()) flush();
+                    int n = Math.min(len, buffer.remaining());
+                    buffer.put(b, off, n);
+                    off += n;
+                    len -= n;
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (buffer.position() == 0) return;
+                if (chunked) {
+                    Connection.this.write(ByteBuffer.wrap((Integer.toHexString(buffer.position()) + "\r\n").getBytes(ISO_8859_1)));
+                }
+                Connection.this.write(buffer.flip());
+                if (chunked) Connection.this.write(ByteBuffer.wrap(CRLF));
+                buffer.clear();
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+                if (chunked) Connection.this.write(ByteBuffer.wrap(LAST_CHUNK));
+            }
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private static int indexOfHeaderEnd(byte[] data, int limit) {
+        for (int i = 0; i + 3 < limit; i++) {
+            if (data[i] == '\r' && data[i + 1] == '\n' && data[i + 2] == '\r' && data[i + 3] == '\n') return i;
+        }
+        return -1;
+    }
+
+    private static class BadRequest extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        BadRequest(String message) {
+            super(message);
+        }
+    }
+
+    static class Request {
+        final String method;
+        /**
+         * The percent-decoded path, without the query string.
+         */
+        final String path;
+        /**
+         * The protocol version from the request line, e.g. "HTTP/1.1".
+         */
+        final String version;
+        /**
+         * The raw query string or null if there wasn't one.
+         */
+        final String query;
+        /**
+         * Request headers with lowercase names. Repeated headers are joined with commas.
+         */
+        final Map<String, String> headers;
+        /**
+         * Query string and url-encoded form body parameters.
+         */
+        final Map<String, List<String>> parameters = new HashMap<>();
+        final boolean keepAlive;
+        private Map<String, String> cookies;
+
+        Request(String method, String target, String version, Map<String, String> headers, byte[] body,
+                boolean keepAlive) {
+            this.method = method;
+            this.version = version;
+            this.headers = headers;
+            this.keepAlive = keepAlive;
+            int question = target.indexOf('?');
+            this.path = URLDecoder.decode(question < 0 ? target : target.substring(0, question), UTF_8);
+            this.query = question < 0 ? null : target.substring(question + 1);
+            parseParameters(query);
+            if (body.length > 0 && headers.getOrDefault("content-type", "").startsWith("application/x-www-form-urlencoded")) {
+                parseParameters(new String(body, UTF_8));
+            }
+        }
+
+        private void parseParameters(String s) {
+            if (s == null || s.isEmpty()) return;
+            for (String pair : s.split("&")) {
+                if (pair.isEmpty()) continue;
+                int equals = pair.indexOf('=');
+                String name = URLDecoder.decode(equals < 0 ? pair : pair.substring(0, equals), UTF_8);
+                String value = equals < 0 ? "" : URLDecoder.decode(pair.substring(equals + 1), UTF_8);
+                parameters.computeIfAbsent(name, k -> new ArrayList<>()).add(value);
+            }
+        }
+
+        String cookie(String name) {
+            if (cookies == null) {
+                cookies = new HashMap<>();
+                String header = headers.get("cookie");
+                if (header != null) {
+                    for (String pair : header.split(";")) {
+                        int equals = pair.indexOf('=');
+                        if (equals > 0) cookies.putIfAbsent(pair.substring(0, equals).strip(), pair.substring(equals + 1).strip());
+                    }
+                }
+            }
+            return cookies.get(name);
+        }
+    }
+
+    static class Response implements Closeable {
+        final int status;
+        final List<Map.Entry<String, String>> headers = new ArrayList<>();
+        final byte[] body;
+        final FileChannel file;
+        final long filePosition;
+        final long contentLength;
+        final StreamBody stream;
+
+        private Response(int status, String contentType, byte[] body, FileChannel file, long filePosition,
+                         long contentLength, StreamBody stream) {
+            this.status = status;
+            this.body = body;
+            this.file = file;
+            this.filePosition = filePosition;
+            this.contentLength = contentLength;
+            this.stream = stream;
+            if (contentType != null) headers.add(Map.entry("Content-Type", contentType));
+        }
+
+        static Response of(int status, String contentType, String body) {
+            byte[] bytes = body == null ? new byte[0] : body.getBytes(UTF_8);
+            return new Response(status, contentType, bytes, null, 0, bytes.length, null);
+        }
+
+        static Response text(int status, String body) {
+            return of(status, "text/plain; charset=utf-8", body);
+        }
+
+        static Response html(String body) {
+            return of(OK, "text/html; charset=utf-8", body);
+        }
+
+        /**
+         * A response sending part of a file. The file is sent with transferTo() and closed once written.
+         */
+        static Response file(String contentType, FileChannel file, long position, long length) {
+            return new Response(OK, contentType, null, file, position, length, null);
+        }
+
+        /**
+         * A response of unknown length, generated on the worker thread while it's sent with chunked encoding (or
+         * ended by closing the connection for HTTP/1.0 clients).
+         */
+        static Response stream(String contentType, StreamBody stream) {
+            return new Response(OK, contentType, null, null, 0, -1, stream);
+        }
+
+        Response addHeader(String name, String value) {
+            headers.add(Map.entry(name, value));
+            return this;
+        }
+
+        ByteBuffer headerBytes(boolean chunked) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("HTTP/1.1 ").append(status).append(' ').append(reason(status)).append("\r\n");
+            for (var header : headers) {
+                sb.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+            }
+            if (stream == null) {
+                sb.append("Content-Length: ").append(contentLength).append("\r\n");
+            } else if (chunked) {
+                sb.append("Transfer-Encoding: chunked\r\n");
+            }
+            sb.append("\r\n");
+            return ByteBuffer.wrap(sb.toString().getBytes(UTF_8));
+        }
+
+        private static String reason(int status) {
+            switch (status) {
+                case OK: return "OK";
+                case SEE_OTHER: return "See Other";
+                case BAD_REQUEST: return "Bad Request";
+                case FORBIDDEN: return "Forbidden";
+                case NOT_FOUND: return "Not Found";
+                case INTERNAL_ERROR: return "Internal Server Error";
+                case SERVICE_UNAVAILABLE: return "Service Unavailable";
+                default: return "Unknown";
+            }
+        }
+
+        @Override
+        public void close() {
+            if (file == null) return;
+            try {
+                file.close();
+            } catch (IOException e) {
+                log.warn("Error closing file", e);
+            }
+        }
+    }
+}
@@ -3,52 +3,45 @@ package org.netpreserve.chronicrawl;
 import com.grack.nanojson.*;
 import com.mitchellbosecke.pebble.PebbleEngine;
 import com.mitchellbosecke.pebble.template.PebbleTemplate;
-import fi.iki.elonen.NanoHTTPD;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.xml.stream.XMLOutputFactory;
-import javax.xml.stream.XMLStreamWriter;
 import java.io.*;
 import java.net.*;
-import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
 import java.security.SecureRandom;
 import java.sql.Timestamp;
+import java.time.DateTimeException;
 import java.time.Instant;
 import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import static fi.iki.elonen.NanoHTTPD.Response.Status.*;
+import static org.netpreserve.chronicrawl.WebServer.*;
 import static java.lang.Integer.parseInt;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.unbescape.html.HtmlEscape.escapeHtml5;
 
-public class Webapp extends NanoHTTPD implements Closeable {
+public class Webapp implements Closeable {
     private static final Logger log = LoggerFactory.getLogger(Webapp.class);
     private static final PebbleEngine pebble = new PebbleEngine.Builder()
             .strictVariables(true)
             .build();
     private static final SecureRandom random = new SecureRandom();
 
-    static { // suppress annoying Broken pipe exception logging
-        java.util.logging.Logger.getLogger(NanoHTTPD.class.getName()).setFilter(r -> !(r.getThrown() instanceof SocketException)
-                || !r.getThrown().getMessage().contains("Broken pipe"));
-    }
-
     private final Crawl crawl;
     private final Database db;
     private final String contextPath;
+    private final WebServer server;
     private JsonObject oidcConfig;
 
     public Webapp(Crawl crawl, int port) throws IOException {
-        super(port);
         this.crawl = crawl;
         this.db = crawl.db;
         this.contextPath = crawl.config.uiContextPath.replaceFirst("/+$", "");
-        start();
+        this.server = new WebServer(new InetSocketAddress(port), crawl.config.uiWorkerThreads, this::serve);
         log.info("Started Chronicrawl web interface on " + port);
     }
 
@@ -64,36 +57,36 @@ public class Webapp extends NanoHTTPD implements Closeable {
         return oidcConfig;
     }
 
-    @Override
-    public Response serve(IHTTPSession request) {
+    int port() {
+        return server.port();
+    }
+
+    private Response serve(Request request) {
         Response response;
         try {
-            request.parseBody(null);
             response = new RequestContext(request).serve();
         } catch (BadRequest e) {
-            response = newFixedLengthResponse(BAD_REQUEST, "text/plain", e.getMessage());
+            response = Response.text(BAD_REQUEST, e.getMessage());
         } catch (NotFound e) {
-            response = newFixedLengthResponse(NOT_FOUND, "text/plain", "404 Not found");
+            response = Response.text(NOT_FOUND, "404 Not found");
         } catch (MissingRoleException e) {
-            response = newFixedLengthResponse(FORBIDDEN, NanoHTTPD.MIME_PLAINTEXT, e.getMessage());
-        } catch (ResponseException e) {
-            response = newFixedLengthResponse(e.getStatus(), NanoHTTPD.MIME_PLAINTEXT, e.getMessage());
+            response = Response.text(FORBIDDEN, e.getMessage());
         } catch (Exception e) {
-            log.error(request.getUri(), e);
+            log.error(request.path, e);
             StringWriter sw = new StringWriter();
             e.printStackTrace(new PrintWriter(sw));
             String stackTrace = html(sw.toString())
                     .replaceAll("(at .*)", "<span class=at>$1</span>")
                     .replaceAll("(at org\\.netpreserve\\..*)", "<span class=our>$1</span>");
 
-            response = newFixedLengthResponse(INTERNAL_ERROR, "text/html",
+            response = Response.of(INTERNAL_ERROR, "text/html; charset=utf-8",
                     "<!doctype html><style>pre { white-space: pre-wrap; }" +
                             ".err { color: #000; }" +
                             ".at { color: #444; }" +
                             ".our { color: #050; }</style>\n<pre>" +
                             "<span class=err>" + html(e.getMessage()) + "</span>\n\n" + stackTrace + "</pre>");
         }
-        log.info(request.getMethod() + " " + request.getUri() + (request.getQueryParameterString() == null ? "" : "?" + request.getQueryParameterString()) + " " + response.getStatus());
+        log.info(request.method + " " + request.path + (request.query == null ? "" : "?" + request.query) + " " + response.status);
         return response;
     }
     private static String html(String s) {
@@ -117,39 +110,42 @@ public class Webapp extends NanoHTTPD implements Closeable {
     }
 
     private class RequestContext {
-        final IHTTPSession request;
+        final Request request;
         private String role;
         private Session session;
 
-        private RequestContext(IHTTPSession request) {
+        private RequestContext(Request request) {
             this.request = request;
         }
 
         private Response serve() throws Exception {
-            if (!request.getUri().startsWith(contextPath + "/")) return seeOther(contextPath + "/");
-            String relpath = request.getUri().substring(contextPath.length());
+            if (!request.path.startsWith(contextPath + "/")) return seeOther(contextPath + "/");
+            String relpath = request.path.substring(contextPath.length());
 
             String pywbAuthPrefix = "/auth/" + crawl.pywb.authKey + "/";
             if (relpath.startsWith(pywbAuthPrefix)) {
                 relpath = relpath.substring(pywbAuthPrefix.length() - 1);
                 role = "pywb";
+            } else if (relpath.equals("/metrics") && hasMetricsToken()) {
+                role = "metrics";
             } else {
                 Response authResponse = authenticate();
                 if (authResponse != null) return authResponse;
                 role = "admin";
             }
-            switch (request.getMethod().name() + " " + relpath) {
+            switch (request.method + " " + relpath) {
                 case "GET /":
                     requireRole("admin");
                     return render(View.home, "paused", crawl.paused.get(),
-                            "screenshots", crawl.db.screenshotCache.getN(0, 12));
+                            "screenshots", crawl.screenshots.getN(0, 12));
                 case "GET /analyse": {
                     requireRole("admin");
                     long originId = paramLong("o");
                     long pathId = paramLong("p");
                     Instant date = Instant.ofEpochMilli(paramLong("d"));
                     var location = db.locations.find(originId, pathId);
-                    var analysis = new Analysis(crawl, location, date, request.getParameters().containsKey("recordMode"));
+                    var analysis = new Analysis(crawl, location, date, request.parameters.containsKey("recordMode"),
+                            crawl.config.analysisCache && !request.parameters.containsKey("refresh"));
                     for (var resource : analysis.resources()) {
                         if (resource.visit == null) {
                             resource.visit = db.visits.findClosest(resource.url.originId(), resource.url.pathId(), analysis.visitDate, resource.method);
@@ -159,18 +155,49 @@ public class Webapp extends NanoHTTPD implements Closeable {
                 }
                 case "GET /cdx": {
                     requireRole("admin", "pywb");
-                    Url url = new Url(param("url"));
-                    var lines = new ArrayList<>(db.visits.asCdxLines(url.originId(), url.pathId()));
-                    if (url.scheme().equals("http")) {
-                        Url altUrl = url.withScheme("https");
-                        lines.addAll(db.visits.asCdxLines(altUrl.originId(), altUrl.pathId()));
+                    CdxQuery query;
+                    try {
+                        String closest = param("closest", null);
+                        query = new CdxQuery(new Url(param("url")),
+                                CdxQuery.MatchType.valueOf(param("matchType", "exact")),
+                                closest == null ? null : CdxQuery.parseTimestamp(closest),
+                                paramLong("limit", Long.MAX_VALUE),
+                                request.parameters.getOrDefault("filter", List.of()),
+                                Boolean.parseBoolean(param("showResumeKey", "false")),
+                                param("resumeKey", null));
+                    } catch (IllegalArgumentException | DateTimeException e) {
+                        throw new BadRequest(e.getMessage());
                     }
-                    StringBuilder sb = new StringBuilder();
-                    for (var line : lines) {
-                        sb.append(line.toString());
-                        sb.append('\n');
+                    return Response.stream("text/plain; charset=utf-8", out -> {
+                        try (var writer = new BufferedWriter(new OutputStreamWriter(out, UTF_8))) {
+                            query.run(db, writer);
+                        }
+                    });
+                }
+                case "GET /cdxj": {
+                    requireRole("admin", "pywb");
+                    CdxjIndex index = crawl.storage.cdxjIndex;
+                    if (index == null) throw new NotFound();
+                    Url url = new Url(param("url"));
+                    String key = CdxjIndex.urlkey(url);
+                    switch (param("matchType", "exact")) {
+                        case "exact":
+                            key += " ";
+                            break;
+                        case "prefix":
+                            break;
+                        default:
+                            throw new BadRequest("matchType must be exact or prefix");
                     }
-                    return newFixedLengthResponse(sb.toString());
+                    String prefix = key;
+                    return Response.stream("text/x-cdxj; charset=utf-8", out -> {
+                        try (var writer = new BufferedWriter(new OutputStreamWriter(out, UTF_8))) {
+                            index.query(prefix, line -> {
+                                writer.write(line);
+                                writer.write('\n');
+                            });
+                        }
+                    });
                 }
                 case "GET /debug": {
                     requireRole("admin");
@@ -202,7 +229,7 @@ public class Webapp extends NanoHTTPD implements Closeable {
                         }
                     }
                     sb.append("</div>");
-                    return newFixedLengthResponse(OK, "text/html", sb.toString());
+                    return Response.html(sb.toString());
 
                 }
                 case "POST /debug/load-dummy-data": {
@@ -253,7 +280,7 @@ public class Webapp extends NanoHTTPD implements Closeable {
                 }
                 case "GET /log":
                     requireRole("admin");
-                    boolean subresources = request.getParameters().containsKey("subresources");
+                    boolean subresources = request.parameters.containsKey("subresources");
                     Timestamp after = Optional.ofNullable(param("after", null))
                             .map(s -> Timestamp.from(Instant.ofEpochMilli(Long.parseLong(s))))
                             .orElse(Timestamp.from(Instant.now()));
@@ -267,8 +294,12 @@ public class Webapp extends NanoHTTPD implements Closeable {
                         id = new Url(param("url")).originId();
                     }
                     Origin origin = found(db.origins.find(id));
+                    List<byte[]> timings = db.visits.listRecentTimings(id, 100);
                     return render(View.origin, "origin", origin,
+                            "timings", Timings.summarise(timings),
+                            "timingsCount", timings.size(),
                             "rules", db.rules.listForOriginId(id),
+                            "reapplyRulesJob", crawl.reapplyRulesJobs.get(id),
                             "queue", db.locations.peek(id, 50),
                             "allCrawlPolicies", CrawlPolicy.values());
                 }
@@ -299,10 +330,10 @@ public class Webapp extends NanoHTTPD implements Closeable {
                 case "GET /recent.json": {
                     requireRole("admin");
                     var json = JsonWriter.string().array();
-                    for (var screenshot : db.screenshotCache.getN(paramLong("after", 0L), 5)) {
+                    for (var screenshot : crawl.screenshots.getN(paramLong("after", 0L), 5)) {
                         json.object()
-                                .value("originId", Long.toString(screenshot.originId))
-                                .value("pathId", Long.toString(screenshot.pathId))
+                                .value("originId", Long.toString(screenshot.url.originId()))
+                                .value("pathId", Long.toString(screenshot.url.pathId()))
                                 .value("date", Long.toString(screenshot.date.toEpochMilli()))
                                 .value("screenshotDataUrl", screenshot.screenshotDataUrl())
                                 .value("url", screenshot.url.toString())
@@ -310,23 +341,23 @@ public class Webapp extends NanoHTTPD implements Closeable {
                                 .value("path", screenshot.url.path())
                                 .end();
                     }
-                    return newFixedLengthResponse(OK, "application/json", json.end().done());
+                    return Response.of(OK, "application/json", json.end().done());
                 }
                 case "GET /record/serve": {
                     requireRole("admin", "pywb");
                     UUID id = UUID.fromString(param("id"));
                     String path = db.warcs.findPath(id);
                     if (path == null) throw new NotFound();
-                    String range = request.getHeaders().get("range");
+                    String range = request.headers.get("range");
+                    if (range == null) throw new BadRequest("range header required");
                     Matcher matcher = Pattern.compile("bytes=([0-9]+)-([0-9]+)").matcher(range);
                     if (!matcher.matches()) throw new BadRequest("invalid range");
                     long rangeStart = Long.parseLong(matcher.group(1));
                     long rangeEnd = Long.parseLong(matcher.group(2));
                     long length = rangeEnd - rangeStart - 1;
                     if (length < 0) throw new BadRequest("negative range length");
-                    FileChannel channel = FileChannel.open(Paths.get(path));
-                    channel.position(rangeStart);
-                    return newFixedLengthResponse(OK, "application/warc", Channels.newInputStream(channel), length);
+                    // closed by the server once sent
+                    return Response.file("application/warc", FileChannel.open(Paths.get(path)), rangeStart, length);
                 }
                 case "GET /rule": {
                     requireRole("admin");
@@ -341,7 +372,7 @@ public class Webapp extends NanoHTTPD implements Closeable {
                     long originId = paramLong("o");
                     String p = param("p", null);
                     String action;
-                    if (request.getParameters().containsKey("delete")) {
+                    if (request.parameters.containsKey("delete")) {
                         db.rules.delete(originId, p);
                         action = "deleted";
                     } else if (p == null || db.rules.find(originId, p) == null) {
@@ -351,8 +382,9 @@ public class Webapp extends NanoHTTPD implements Closeable {
                         db.rules.update(originId, p, param("pattern"), paramLong("scheduleId", null));
                         action = "updated";
                     }
-                    Rule.reapplyRulesToOrigin(db, originId);
-                    return seeOther(contextPath + "/origin?id=" + originId, "Rule " + param("pattern") + " " + action + ".");
+                    crawl.reapplyRules(originId);
+                    return seeOther(contextPath + "/origin?id=" + originId, "Rule " + param("pattern") + " " + action +
+                            ". Rescheduling locations in the background.");
                 }
                 case "GET /search": {
                     requireRole("admin");
@@ -374,12 +406,16 @@ public class Webapp extends NanoHTTPD implements Closeable {
                 case "POST /settings/config": {
                     requireRole("admin");
                     Config testConfig = new Config();
-                    for (String name : request.getParameters().getOrDefault("set", List.of())) {
-                        testConfig.set(name, param(name));
+                    for (String name : request.parameters.getOrDefault("set", List.of())) {
+                        try {
+                            testConfig.set(name, param(name));
+                        } catch (IllegalArgumentException | DateTimeException e) {
+                            throw new BadRequest("Invalid " + name + ": " + e.getMessage());
+                        }
                     }
                     db.jdbi.inTransaction(h -> {
                         db.config.deleteAll();
-                        for (String name : request.getParameters().getOrDefault("set", List.of())) {
+                        for (String name : request.parameters.getOrDefault("set", List.of())) {
                             db.config.insert(name, param(name));
                         }
                         return null;
@@ -405,13 +441,13 @@ public class Webapp extends NanoHTTPD implements Closeable {
                     if (id == null) {
                         db.schedules.insert(db.ids.next(), param("name"), parseInt(param("years")),
                                 parseInt(param("months")), parseInt(param("days")),
-                                toBits(request.getParameters().get("dayOfWeek")),
-                                toBits(request.getParameters().get("hourOfDay")));
+                                toBits(request.parameters.get("dayOfWeek")),
+                                toBits(request.parameters.get("hourOfDay")));
                     } else {
                         db.schedules.update(id, param("name"), parseInt(param("years")),
                                 parseInt(param("months")), parseInt(param("days")),
-                                toBits(request.getParameters().get("dayOfWeek")),
-                                toBits(request.getParameters().get("hourOfDay")));
+                                toBits(request.parameters.get("dayOfWeek")),
+                                toBits(request.parameters.get("hourOfDay")));
                     }
                     return seeOther(contextPath + "/settings/schedules", "Schedule saved.");
                 }
@@ -420,68 +456,37 @@ public class Webapp extends NanoHTTPD implements Closeable {
                     db.schedules.delete(paramLong("id"));
                     return seeOther(contextPath + "/settings/schedules", "Schedule deleted.");
                 }
+                case "GET /metrics": {
+                    requireRole("admin", "metrics");
+                    return Response.of(OK, "text/plain; version=0.0.4; charset=utf-8", Metrics.scrape());
+                }
                 case "GET /metrics.svg": {
                     requireRole("admin");
-
-                    Instant start = Instant.now().minusSeconds(15 * 60);
-                    Instant end = Instant.now();
-
-                    long startMillis = start.toEpochMilli();
-                    long endMillis = end.toEpochMilli();
-                    long intervalMillis = (endMillis - startMillis) / 300;
-                    int ticks = (int)((endMillis - startMillis) / intervalMillis);
-
-                    long[] values = new long[ticks];
-
-                    List<Database.Metric> metrics = db.visits.metrics(start, end, intervalMillis);
-                    for (var metric : metrics) {
-                        values[(int)((metric.millis - startMillis) / intervalMillis)] = metric.bytes;
-                    }
-                    var stats = Arrays.stream(values).summaryStatistics();
-
-                    int chartHeight = 100;
-                    int chartWidth = 800;
-                    long max = stats.getMax();
-                    if (max == 0) max = 1;
-
-                    StringWriter sw = new StringWriter();
-                    XMLStreamWriter xml = XMLOutputFactory.newDefaultFactory().createXMLStreamWriter(sw);
-                    xml.writeStartDocument("UTF-8", "1.0");
-                    xml.writeStartElement("svg");
-                    xml.writeAttribute("xmlns", "http://www.w3.org/2000/svg");
-                    int x = 0;
-                    int barWidth = chartWidth / ticks;
-                    for (int i = 0; i < values.length; i++) {
-                        int barHeight = (int)(values[i] * chartHeight / max);
-                        int y = chartHeight - barHeight;
-                        if (barHeight > 0) {
-                            xml.writeEmptyElement("rect");
-                            xml.writeAttribute("fill", "#66f");
-                            xml.writeAttribute("x", Integer.toString(x));
-                            xml.writeAttribute("y", Integer.toString(y));
-                            xml.writeAttribute("width", Integer.toString(barWidth));
-                            xml.writeAttribute("height", Integer.toString(barHeight));
-                            xml.writeCharacters("\n");
-                        }
-                        x += barWidth;
+                    RollingStats stats = crawl.stats;
+                    int buckets = (int) Math.max(1, 15 * 60 * 1000 / stats.bucketMillis);
+                    long[] bytes = stats.series(System.currentTimeMillis(), RollingStats.BYTES, buckets);
+                    return Response.of(OK, "image/svg+xml", Chart.chart(bytes));
+                }
+                case "GET /stats": {
+                    requireRole("admin");
+                    RollingStats stats = crawl.stats;
+                    long seconds = paramLong("seconds", 60L);
+                    int buckets = (int) Math.max(1, seconds * 1000 / stats.bucketMillis);
+                    long[] totals = stats.totals(System.currentTimeMillis(), buckets);
+                    long visits = totals[RollingStats.VISITS];
+                    var json = JsonWriter.string().object()
+                            .value("seconds", buckets * stats.bucketMillis / 1000)
+                            .value("visits", visits)
+                            .value("bytes", totals[RollingStats.BYTES])
+                            .object("status");
+                    for (int i = 0; i < 5; i++) {
+                        json.value((i + 1) + "xx", totals[RollingStats.STATUS_1XX + i]);
                     }
-
-                    int textHeight = 16;
-                    xml.writeStartElement("text");
-                    xml.writeAttribute("x", Integer.toString(chartWidth));
-                    xml.writeAttribute("y", Integer.toString(textHeight));
-                    xml.writeCharacters(max / 1024 + " KB");
-                    xml.writeEndElement();
-
-                    xml.writeStartElement("text");
-                    xml.writeAttribute("x", Integer.toString(chartWidth));
-                    xml.writeAttribute("y", Integer.toString(chartHeight));
-                    xml.writeCharacters("0 KB");
-                    xml.writeEndElement();
-
-                    xml.writeEndElement();
-                    xml.writeEndDocument();
-                    return newFixedLengthResponse(OK, "image/svg+xml", sw.toString());
+                    return Response.of(OK, "application/json", json.value("error", totals[RollingStats.ERRORS])
+                            .end()
+                            .value("latencyMeanMillis", visits == 0 ? 0 : totals[RollingStats.LATENCY_SUM] / visits)
+                            .value("latencyMaxMillis", totals[RollingStats.LATENCY_MAX])
+                            .end().done());
                 }
                 case "GET /visit": {
                     requireRole("admin");
@@ -490,7 +495,7 @@ public class Webapp extends NanoHTTPD implements Closeable {
                     Location location = db.locations.find(visit.originId, visit.pathId);
                     return render(View.visit, "visit", visit,
                             "location", location,
-                            "replayUrl", crawl.pywb.replayUrl(location.url, visit.date),
+                            "replayUrl", crawl.pywb.replayUrl(location.url(), visit.date),
                             "requestHeader", visit.warcId == null ? null : crawl.storage.slurpHeaders(visit.warcId, visit.requestPosition),
                             "responseHeader", visit.warcId == null ? null : crawl.storage.slurpHeaders(visit.warcId, visit.responsePosition));
                 }
@@ -498,7 +503,7 @@ public class Webapp extends NanoHTTPD implements Closeable {
                     requireRole("admin");
                     Visit visit = db.visits.find(paramLong("o"), paramLong("p"), Instant.ofEpochMilli(paramLong("d")));
                     if (visit == null) throw new NotFound();
-                    return newFixedLengthResponse(Response.Status.OK, "text/plain", crawl.storage.text(visit));
+                    return Response.text(OK, crawl.storage.text(visit));
                 }
                 default:
                     throw new NotFound();
@@ -514,6 +519,13 @@ public class Webapp extends NanoHTTPD implements Closeable {
             return bits;
         }
 
+        private boolean hasMetricsToken() {
+            String token = crawl.config.metricsToken;
+            String authorization = request.headers.get("authorization");
+            return token != null && authorization != null &&
+                    MessageDigest.isEqual(("Bearer " + token).getBytes(UTF_8), authorization.getBytes(UTF_8));
+        }
+
         private void requireRole(String... requiredRoles) {
             for (String requiredRole : requiredRoles) {
                 if (requiredRole.equals(this.role)) {
@@ -529,9 +541,9 @@ public class Webapp extends NanoHTTPD implements Closeable {
                 return null;
             }
             db.sessions.expire();
-            String sessionId = request.getCookies().read(crawl.config.uiSessionCookie);
+            String sessionId = request.cookie(crawl.config.uiSessionCookie);
             session = sessionId == null ? null : db.sessions.find(sessionId).orElse(null);
-            if (session != null && request.getUri().equals(contextPath + "/authcb") && param("state").equals(session.oidcState)) {
+            if (session != null && request.path.equals(contextPath + "/authcb") && param("state").equals(session.oidcState)) {
                 // exchange code for access token
                 var conn = (HttpURLConnection) new URL(oidcConfig().getString("token_endpoint")).openConnection();
                 conn.setRequestMethod("POST");
@@ -583,11 +595,11 @@ public class Webapp extends NanoHTTPD implements Closeable {
         }
 
         private String contextUrl() {
-            return request.getHeaders().getOrDefault("x-forwarded-proto", "http") + "://" + request.getHeaders().get("host") + contextPath;
+            return request.headers.getOrDefault("x-forwarded-proto", "http") + "://" + request.headers.get("host") + contextPath;
         }
 
         private boolean isSecure() {
-            return request.getHeaders().getOrDefault("x-forwarded-proto", "http").equals("https");
+            return request.headers.getOrDefault("x-forwarded-proto", "http").equals("https");
         }
 
         private String newSessionId() {
@@ -601,7 +613,7 @@ public class Webapp extends NanoHTTPD implements Closeable {
         }
 
         private Response seeOther(String location, String flash) {
-            Response response = newFixedLengthResponse(REDIRECT_SEE_OTHER, null, null);
+            Response response = Response.of(SEE_OTHER, null, null);
             response.addHeader("Location", location);
             if (flash != null) {
                 response.addHeader("Set-Cookie", "flash=" + Base64.getUrlEncoder().encodeToString(flash.getBytes(UTF_8)) + "; HttpOnly; Max-Age=60; SameSite=Lax" + (isSecure() ? "; Secure" : ""));
@@ -632,7 +644,7 @@ public class Webapp extends NanoHTTPD implements Closeable {
         }
 
         private String param(String name, String defaultValue) {
-            var values = request.getParameters().get(name);
+            var values = request.parameters.get(name);
             if (values == null || values.isEmpty() || values.get(0).isEmpty()) return defaultValue;
             return values.get(0);
         }
@@ -640,9 +652,8 @@ public class Webapp extends NanoHTTPD implements Closeable {
         public Response render(View view, Object... keysAndValues) {
             Map<String, Object> model = new HashMap<>();
             model.put("contextPath", contextPath);
-            String flash = request.getCookies().read("flash");
+            String flash = request.cookie("flash");
             if (flash != null) {
-                request.getCookies().delete("flash");
                 model.put("flash", new String(Base64.getUrlDecoder().decode(flash), UTF_8));
             } else {
                 model.put("flash", null);
@@ -656,7 +667,9 @@ public class Webapp extends NanoHTTPD implements Closeable {
             } catch (IOException e) {
                 throw new UncheckedIOException(e);
             }
-            return newFixedLengthResponse(buffer.toString());
+            Response response = Response.html(buffer.toString());
+            if (flash != null) response.addHeader("Set-Cookie", "flash=; Max-Age=0; HttpOnly; SameSite=Lax");
+            return response;
         }
     }
 
@@ -687,7 +700,7 @@ public class Webapp extends NanoHTTPD implements Closeable {
 
     @Override
     public void close() {
-        stop();
+        server.close();
     }
 
     public static class QueueInfo {
@@ -0,0 +1,120 @@
+package org.netpreserve.chronicrawl;
+
+import org.netpreserve.jwarc.HttpResponse;
+import org.netpreserve.jwarc.WarcResponse;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Link and resource extraction from a news-site-like page (DOM and streaming) and from its stylesheet. The page is
+ * generated so that its size and tag mix can be scaled with the sections parameter.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AnalysisBenchmark {
+    @Param({"20", "200"})
+    public int sections;
+
+    private final Url url = new Url("https://www.example.org/news/2020/08/some-article-title");
+    private final Url cssUrl = new Url("https://www.example.org/static/css/site.css");
+    private Location location;
+    private byte[] html;
+    private WarcResponse cssResponse;
+
+    @Setup
+    public void setup() throws IOException {
+        location = new Location(url);
+        html = samplePage(sections).getBytes(UTF_8);
+        cssResponse = new WarcResponse.Builder(cssUrl.toURI())
+                .body(new HttpResponse.Builder(200, "OK")
+                        .addHeader("Content-Type", "text/css")
+                        .body(Analysis.CSS, sampleStylesheet(sections).getBytes(UTF_8))
+                        .build())
+                .build();
+    }
+
+    @Benchmark
+    public Analysis parseHtml() throws IOException {
+        Analysis analysis = new Analysis(location, Instant.EPOCH);
+        analysis.parseHtml(new ByteArrayInputStream(html), "utf-8", url.toString());
+        return analysis;
+    }
+
+    @Benchmark
+    public Analysis parseHtmlStreaming() throws IOException {
+        Analysis analysis = new Analysis(location, Instant.EPOCH);
+        analysis.parseHtmlStreaming(new ByteArrayInputStream(html), "utf-8", url.toString());
+        return analysis;
+    }
+
+    @Benchmark
+    public Analysis parseStylesheet() throws IOException {
+        Analysis analysis = new Analysis(location, Instant.EPOCH);
+        analysis.parsePayload(cssResponse, cssResponse);
+        return analysis;
+    }
+
+    static String samplePage(int sections) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<!DOCTYPE html><html lang=en><head><meta charset=utf-8>" +
+                "<title>Some article title | Example News</title>" +
+                "<meta name=viewport content='width=device-width, initial-scale=1'>" +
+                "<link rel=stylesheet href=/static/css/site.css><link rel=icon href=/favicon.ico>" +
+                "<link rel=preload as=font href=/static/fonts/body.woff2 crossorigin>" +
+                "<script async src=https://www.googletagmanager.com/gtag/js?id=UA-1234></script>" +
+                "<script>window.dataLayer = window.dataLayer || []; function gtag(){dataLayer.push(arguments);}</script>" +
+                "<style>.hero { background: url(/static/img/hero.jpg) no-repeat; } .logo { content: url(logo.svg) }</style>" +
+                "</head><body class='article'>");
+        sb.append("<header><nav><ul>");
+        for (int i = 0; i < 12; i++) {
+            sb.append("<li><a href='/section/").append(i).append("/'>Section ").append(i).append("</a></li>");
+        }
+        sb.append("</ul></nav></header><main><article><h1>Some article title</h1>");
+        for (int i = 0; i < sections; i++) {
+            sb.append("<section><h2>Heading ").append(i).append("</h2><p>Lorem ipsum dolor sit amet, consectetur ")
+                    .append("adipiscing elit, sed do <a href='/news/2020/08/related-").append(i).append("'>eiusmod</a> ")
+                    .append("tempor incididunt ut labore et dolore magna aliqua. Ut enim ad minim veniam, quis nostrud ")
+                    .append("exercitation ullamco laboris nisi ut aliquip ex ea commodo consequat.</p>")
+                    .append("<figure><picture><source type=image/webp srcset='/img/").append(i).append("-480.webp 480w, /img/")
+                    .append(i).append("-960.webp 960w'><img src='/img/").append(i).append("-480.jpg' srcset='/img/")
+                    .append(i).append("-480.jpg 1x, /img/").append(i).append("-960.jpg 2x' alt='Figure ").append(i)
+                    .append("' loading=lazy></picture><figcaption style='background-image: url(/img/caption-")
+                    .append(i % 4).append(".png)'>Caption &amp; credit</figcaption></figure></section>");
+        }
+        sb.append("</article><aside><ul>");
+        for (int i = 0; i < 20; i++) {
+            sb.append("<li><a href='https://www.example.org/news/2020/07/popular-").append(i)
+                    .append("?utm_source=sidebar&amp;utm_medium=web'><img src=/thumbs/").append(i).append(".jpg>Popular ")
+                    .append(i).append("</a></li>");
+        }
+        sb.append("</ul></aside></main><footer><p>&copy; Example News</p>" +
+                "<a href=/about>About</a> <a href=/contact>Contact</a> <a href=/privacy>Privacy</a></footer>" +
+                "<script src=/static/js/app.js defer></script></body></html>");
+        return sb.toString();
+    }
+
+    static String sampleStylesheet(int rules) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("@import url('fonts.css');\n" +
+                "@font-face { font-family: Body; src: url(/static/fonts/body.woff2) format('woff2'), " +
+                "url(/static/fonts/body.woff) format('woff'); }\n");
+        for (int i = 0; i < rules; i++) {
+            sb.append(".card-").append(i).append(" { margin: 0 auto; padding: 4px 8px; color: #333; ")
+                    .append("font: 16px/1.5 Body, sans-serif; }\n")
+                    .append(".card-").append(i).append(":hover > .icon { background: url(\"../img/icons/")
+                    .append(i).append(".svg\") center / contain no-repeat; }\n")
+                    .append("@media (min-width: 768px) { .card-").append(i).append(" { display: flex; } }\n");
+        }
+        return sb.toString();
+    }
+}
@@ -10,8 +10,11 @@ import java.time.Instant;
 import java.util.HashSet;
 import java.util.Set;
 
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_16;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 public class AnalysisTest {
@@ -33,6 +36,40 @@ public class AnalysisTest {
         assertTrue(analysis.hasScript);
     }
 
+    @Test
+    public void testStreamingMatchesDom() throws IOException {
+        String html = "<!DOCTYPE html><html><head><base href='http://example.org/base/'>" +
+                "<title>Some &amp; <b>title</b>\n</title>" +
+                "<link rel=STYLESHEET href=\"style.css\"><meta http-equiv=refresh content='5; url=/refresh'>" +
+                "<style>body { background: url(bg.jpg) } a > b {}</style></head><body>" +
+                "<!-- <img src=commented.jpg> --><a href=page?a=1&amp;b=2 style='background: url(\"a.png\")'>x</a>" +
+                "<script>document.write('<img src=scripted.jpg>')</script><script src=s.js></script>" +
+                "<img src=\"i.jpg\" srcset=\"i1.jpg 1x, i2.jpg 2x\" data-src=lazy.jpg>" +
+                "<video poster=poster.jpg><source src=movie.mp4></video><picture><source srcset=p.webp></picture>" +
+                "<area href=\"/area\"><input type=image src=input.png>";
+        Location location = new Location(new Url("http://example.org/"));
+        Analysis dom = new Analysis(location, Instant.now());
+        dom.parseHtml(new ByteArrayInputStream(html.getBytes(UTF_8)), null, "http://example.org/");
+        Analysis streaming = new Analysis(location, Instant.now());
+        streaming.parseHtmlStreaming(new ByteArrayInputStream(html.getBytes(UTF_8)), null, "http://example.org/");
+
+        assertEquals(resourceStrings(dom), resourceStrings(streaming));
+        assertEquals(dom.links().toString(), streaming.links().toString());
+        assertEquals(dom.title, streaming.title);
+        assertEquals(dom.hasScript, streaming.hasScript);
+        assertTrue(resourceStrings(streaming).contains("http://example.org/base/movie.mp4 Media"));
+        assertFalse(resourceStrings(streaming).contains("http://example.org/base/commented.jpg Image"));
+        assertEquals(13, dom.resources().size());
+    }
+
+    private static Set<String> resourceStrings(Analysis analysis) {
+        var set = new HashSet<String>();
+        for (var res : analysis.resources()) {
+            set.add(res.url + " " + res.type);
+        }
+        return set;
+    }
+
     @Test
     public void testCss() throws IOException {
         Url url = new Url("http://example.org/styles/test.css");
@@ -40,12 +77,38 @@ public class AnalysisTest {
         WarcResponse response = new WarcResponse.Builder(url.toURI())
                 .body(new HttpResponse.Builder(200, "OK")
                         .addHeader("Content-Type", "text/css")
-                        .body(Analysis.CSS, "body { background: url(bg.jpg); }".getBytes(UTF_8))
+                        .body(Analysis.CSS, ("@import 'print.css'; body { background: url(bg.jpg); }")
+                                .getBytes(UTF_8))
+                        .build())
+                .build();
+        analysis.parsePayload(response, response);
+        var set = new HashSet<String>();
+        for (var res : analysis.resources()) {
+            set.add(res.url + " " + res.type);
+        }
+        assertEquals(Set.of("http://example.org/styles/bg.jpg Image",
+                "http://example.org/styles/print.css Stylesheet"), set);
+    }
+
+    @Test
+    public void testStyleSheetCharset() throws IOException {
+        byte[] latin1 = "@charset \"iso-8859-1\"; a { background: url(caf\u00e9.png) }".getBytes(ISO_8859_1);
+        assertEquals(ISO_8859_1, Analysis.styleSheetCharset(latin1, null));
+        assertEquals("HTTP charset beats @charset", UTF_8, Analysis.styleSheetCharset(latin1, "utf-8"));
+        assertEquals("BOM beats HTTP charset", UTF_16,
+                Analysis.styleSheetCharset(new byte[]{(byte) 0xff, (byte) 0xfe, 'a', 0}, "iso-8859-1"));
+        assertEquals(UTF_8, Analysis.styleSheetCharset("@charset \"utf-16\";".getBytes(ISO_8859_1), null));
+
+        Url url = new Url("http://example.org/styles/test.css");
+        Analysis analysis = new Analysis(new Location(url), Instant.now());
+        WarcResponse response = new WarcResponse.Builder(url.toURI())
+                .body(new HttpResponse.Builder(200, "OK")
+                        .addHeader("Content-Type", "text/css")
+                        .body(Analysis.CSS, latin1)
                         .build())
                 .build();
         analysis.parsePayload(response, response);
-        Analysis.Resource resource = analysis.resources().iterator().next();
-        assertEquals("http://example.org/styles/bg.jpg", resource.url.toString());
+        assertEquals("http://example.org/styles/caf%C3%A9.png", analysis.resources().iterator().next().url.toString());
     }
 
     @Test
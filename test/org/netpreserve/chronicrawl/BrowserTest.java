@@ -1,15 +1,32 @@
 package org.netpreserve.chronicrawl;
 
 import org.junit.Test;
+import org.netpreserve.jwarc.HttpResponse;
+import org.netpreserve.jwarc.MediaType;
+import org.netpreserve.jwarc.WarcResponse;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.charset.StandardCharsets;
 import java.time.Instant;
+import java.util.Base64;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assume.assumeNoException;
 
@@ -43,9 +60,90 @@ public class BrowserTest {
         }
     }
 
+    @Test
+    public void testStreamedFulfill() throws IOException, InterruptedException, ExecutionException {
+        Config config = new Config();
+        config.browserStreamThresholdBytes = 0;
+        try (TestServer server = new TestServer();
+             Browser browser = assumeNewBrowser(config);
+             Browser.Tab tab = browser.createTab()) {
+            tab.interceptRequests(request -> {
+                if (request.url().endsWith("/")) {
+                    try {
+                        request.fulfill(new WarcResponse.Builder(URI.create(request.url()))
+                                .body(new HttpResponse.Builder(200, "OK")
+                                        .body(MediaType.HTML, "<script>document.title = 'streamed'</script>".getBytes(UTF_8))
+                                        .build())
+                                .build());
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            });
+            tab.navigate(server.url() + "/").get();
+            assertEquals("streamed", tab.title());
+        }
+    }
+
+    @Test
+    public void testBodyServer() throws IOException, ExecutionException, InterruptedException {
+        String raw = "HTTP/1.1 201 Created\r\nContent-Type: text/plain\r\nTransfer-Encoding: chunked\r\n" +
+                "X-Test: a\r\nX-Test: b\r\n\r\n5\r\nhello\r\n6\r\n world\r\n0\r\n\r\n";
+        HttpResponse http = HttpResponse.parse(Channels.newChannel(new ByteArrayInputStream(raw.getBytes(UTF_8))));
+        var body = new Browser.StreamedBody(http);
+        var server = new Browser.BodyServer();
+        try {
+            String token = server.register(body);
+            var connection = (HttpURLConnection) new URL(server.url(token)).openConnection();
+            assertEquals(201, connection.getResponseCode());
+            assertEquals("text/plain", connection.getHeaderField("Content-Type"));
+            assertEquals("a, b", connection.getHeaderField("X-Test"));
+            try (var stream = connection.getInputStream()) {
+                assertEquals("hello world", new String(stream.readAllBytes(), UTF_8));
+            }
+            body.finished.get(5, TimeUnit.SECONDS);
+            assertEquals(404, ((HttpURLConnection) new URL(server.url(token)).openConnection()).getResponseCode());
+        } catch (TimeoutException e) {
+            throw new AssertionError("body was never closed", e);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testBase64() {
+        byte[] bytes = "hello world".getBytes(UTF_8);
+        String expected = Base64.getEncoder().encodeToString(bytes);
+        assertEquals(expected, Browser.Request.base64(ByteBuffer.wrap(bytes)));
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length).put(bytes).flip();
+        assertEquals(expected, Browser.Request.base64(direct));
+        assertEquals("position is left alone", 0, direct.position());
+        assertEquals(Base64.getEncoder().encodeToString("world".getBytes(UTF_8)),
+                Browser.Request.base64(ByteBuffer.wrap(bytes, 6, 5)));
+    }
+
+    @Test
+    public void testInterceptPatterns() {
+        assertEquals(List.of(Map.of("urlPattern", "http://*"), Map.of("urlPattern", "https://*")),
+                Browser.Tab.requestPatterns("http://*, https://*", ""));
+        assertEquals(List.of(Map.of("urlPattern", "*", "resourceType", "Document"),
+                Map.of("urlPattern", "*", "resourceType", "Script")),
+                Browser.Tab.requestPatterns("*", "Document,Script"));
+
+        Set<String> blocked = Set.of("ads.test");
+        assertTrue(Browser.Tab.isBlockedHost(blocked, "http://ads.test/x.js"));
+        assertTrue(Browser.Tab.isBlockedHost(blocked, "https://a.b.ADS.test:8443/x.js"));
+        assertFalse(Browser.Tab.isBlockedHost(blocked, "http://notads.test/"));
+        assertFalse(Browser.Tab.isBlockedHost(blocked, "http://example.org/ads.test"));
+    }
+
     public Browser assumeNewBrowser() throws IOException {
+        return assumeNewBrowser(new Config());
+    }
+
+    public Browser assumeNewBrowser(Config config) throws IOException {
         try {
-            return new Browser();
+            return new Browser(config);
         } catch (IOException e) {
             assumeNoException("browser must be runnable", e);
             throw e;
@@ -0,0 +1,101 @@
+package org.netpreserve.chronicrawl;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+
+public class CdxQueryTest {
+    @Test
+    public void test() throws IOException {
+        try (Database db = new Database("jdbc:h2:mem:cdxtest;DB_CLOSE_DELAY=-1", "sa", "", new Config())) {
+            db.init();
+            UUID warcId = UUID.randomUUID();
+            capture(db, "http://example.org/", 1000, warcId);
+            capture(db, "https://example.org/", 2000, warcId);
+            capture(db, "http://example.org/", 3000, warcId);
+            capture(db, "http://example.org/a/1", 1000, warcId);
+            capture(db, "http://example.org/a/2", 1000, warcId);
+            capture(db, "http://example.org/b", 1000, warcId);
+            capture(db, "http://sub.example.org/", 1000, warcId);
+            capture(db, "http://example.org.evil/", 1000, warcId);
+            capture(db, "http://example.org/b", 4000, warcId, "length"); // truncated so never listed
+
+            assertEquals(List.of("http://example.org/ 1000", "https://example.org/ 2000", "http://example.org/ 3000"),
+                    query(db, "http://example.org/", "exact", null, Long.MAX_VALUE, List.of(), null));
+            assertEquals(List.of("https://example.org/ 2000", "http://example.org/ 3000", "http://example.org/ 1000"),
+                    query(db, "http://example.org/", "exact", Instant.ofEpochMilli(2400), Long.MAX_VALUE, List.of(), null));
+            assertEquals(List.of("http://example.org/a/1 1000", "http://example.org/a/2 1000"),
+                    query(db, "http://example.org/a/", "prefix", null, Long.MAX_VALUE, List.of(), null));
+            assertEquals(6, query(db, "http://example.org/", "host", null, Long.MAX_VALUE, List.of(), null).size());
+            assertEquals(List.of("http://sub.example.org/ 1000"),
+                    query(db, "http://example.org/", "domain", null, Long.MAX_VALUE, List.of("~urlkey:org,example,sub)"), null));
+            assertEquals(List.of("http://example.org/b 1000"),
+                    query(db, "http://example.org/", "host", null, Long.MAX_VALUE, List.of("original:.*/b$"), null));
+            assertEquals(5, query(db, "http://example.org/", "host", null, Long.MAX_VALUE, List.of("!~original:/b"), null).size());
+
+            // paginate with resume keys
+            StringWriter out = new StringWriter();
+            new CdxQuery(new Url("http://example.org/"), CdxQuery.MatchType.domain, null, 4, List.of(), true, null)
+                    .run(db, out);
+            String[] parts = out.toString().split("\n\n");
+            assertEquals(4, parts[0].split("\n").length);
+            assertEquals("org,example)/a/1 1000", parts[1].strip());
+            assertEquals(List.of("http://example.org/a/2 1000", "http://example.org/b 1000", "http://sub.example.org/ 1000"),
+                    query(db, "http://example.org/", "domain", null, Long.MAX_VALUE, List.of(), parts[1].strip()));
+
+            // reading in pages smaller than the limit gives the same output
+            StringWriter paged = new StringWriter();
+            CdxQuery query = new CdxQuery(new Url("http://example.org/"), CdxQuery.MatchType.domain, null, 4, List.of(),
+                    true, null);
+            query.pageSize = 3;
+            query.run(db, paged);
+            assertEquals(out.toString(), paged.toString());
+            paged = new StringWriter();
+            query = new CdxQuery(new Url("http://example.org/"), CdxQuery.MatchType.domain, null, Long.MAX_VALUE,
+                    List.of("!~original:/b"), true, null);
+            query.pageSize = 2;
+            query.run(db, paged);
+            assertEquals(6, paged.toString().split("\n").length);
+
+            // closest queries can't resume so they stop after a page
+            StringWriter closest = new StringWriter();
+            query = new CdxQuery(new Url("http://example.org/"), CdxQuery.MatchType.exact, Instant.ofEpochMilli(2400),
+                    Long.MAX_VALUE, List.of(), true, null);
+            query.pageSize = 2;
+            query.run(db, closest);
+            assertEquals(2, closest.toString().split("\n").length);
+        }
+    }
+
+    private static void capture(Database db, String url, long millis, UUID warcId) {
+        capture(db, url, millis, warcId, null);
+    }
+
+    private static void capture(Database db, String url, long millis, UUID warcId, String truncated) {
+        Url u = new Url(url);
+        db.origins.tryInsert(u.originId(), u.origin(), Instant.EPOCH, CrawlPolicy.CONTINUOUS);
+        db.locations.tryInsert(u, Location.Type.PAGE, null, 0, Instant.EPOCH);
+        db.visits._insert(u.originId(), u.pathId(), Instant.ofEpochMilli(millis), "GET", 200, 10, "text/html",
+                warcId, 0, 10, null, 10, 10, new byte[8], null, null, truncated);
+    }
+
+    private static List<String> query(Database db, String url, String matchType, Instant closest, long limit,
+                                      List<String> filters, String resumeKey) throws IOException {
+        StringWriter out = new StringWriter();
+        new CdxQuery(new Url(url), CdxQuery.MatchType.valueOf(matchType), closest, limit, filters, false, resumeKey)
+                .run(db, out);
+        var results = new java.util.ArrayList<String>();
+        for (String line : out.toString().split("\n")) {
+            if (line.isEmpty()) continue;
+            String[] fields = line.split(" ");
+            results.add(fields[2] + " " + Util.ARC_DATE.parse(fields[1], Instant::from).toEpochMilli());
+        }
+        return results;
+    }
+}
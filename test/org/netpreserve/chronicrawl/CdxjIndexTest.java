@@ -0,0 +1,90 @@
+package org.netpreserve.chronicrawl;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CdxjIndexTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testFlushMergeAndQuery() throws IOException {
+        Path dir = tmp.getRoot().toPath();
+        List<String> expected = new ArrayList<>();
+        try (CdxjIndex index = new CdxjIndex(dir, 10, 1000)) {
+            // add in reverse so each segment covers an interleaved range
+            for (int i = 99; i >= 0; i--) {
+                String line = String.format("com,example)/page%02d 20200101000000 {\"n\": %d}", i % 50, i);
+                index.add(line);
+                if (i % 50 < 10) expected.add(line);
+            }
+            index.add("com,example)/page00 20200101000000 {\"n\": 0}"); // duplicate
+            assertEquals(10, index.segmentCount());
+            expected.sort(null);
+            assertEquals(expected, index.query("com,example)/page0"));
+
+            index.merge();
+            assertEquals(1, index.segmentCount());
+            assertEquals(expected, index.query("com,example)/page0"));
+            assertEquals(List.of(), index.query("com,example)/zzz"));
+            assertEquals(List.of(), index.query("a"));
+            assertEquals(100, index.query("").size());
+            for (int i = 0; i < 50; i++) {
+                assertEquals(2, index.query(String.format("com,example)/page%02d ", i)).size());
+            }
+        }
+        // the merged segment plus the duplicate flushed on close, merge inputs are deleted
+        assertEquals(2, Files.list(dir).filter(p -> p.toString().endsWith(".cdxj") &&
+                p.getFileName().toString().startsWith("segment-")).count());
+    }
+
+    @Test
+    public void testPickTier() {
+        long mb = 1024 * 1024;
+        // a big merged segment and three fresh flushes: nothing to do yet
+        assertEquals(List.of(), CdxjIndex.pickTier(List.of(8 * mb, mb, mb, mb), Long::longValue, 4));
+        // a fourth flush fills the lowest tier, the big segment is left alone
+        assertEquals(List.of(mb, mb, mb, mb + 1),
+                CdxjIndex.pickTier(List.of(8 * mb, mb, mb + 1, mb, mb), Long::longValue, 4));
+        // tiny leftover flushes all count as one tier
+        assertEquals(List.of(10L, 500L, 3000L, 40000L),
+                CdxjIndex.pickTier(List.of(40000L, 3000L, 8 * mb, 500L, 10L), Long::longValue, 4));
+        // the smallest full tier wins
+        assertEquals(List.of(4 * mb, 5 * mb, 6 * mb),
+                CdxjIndex.pickTier(List.of(mb, 4 * mb, 5 * mb, 6 * mb, 20 * mb), Long::longValue, 3));
+    }
+
+    @Test
+    public void testUrlkey() {
+        assertEquals("com,example)/foo/bar?a=1&b=2",
+                CdxjIndex.urlkey(new Url("https://WWW.Example.com/Foo/Bar?b=2&A=1#frag")));
+        assertEquals("com,example:8080)/", CdxjIndex.urlkey(new Url("http://example.com:8080/?")));
+    }
+
+    @Test
+    public void testLogReplay() throws IOException {
+        Path dir = tmp.getRoot().toPath();
+        CdxjIndex index = new CdxjIndex(dir, 1000, 1000);
+        index.add("org,example)/b 20200101000000 {}");
+        index.add("org,example)/a 20200101000000 {}");
+        // simulate a crash: reopen without closing
+        try (CdxjIndex reopened = new CdxjIndex(dir, 1000, 1000)) {
+            assertEquals(List.of("org,example)/a 20200101000000 {}"), reopened.query("org,example)/a "));
+            assertEquals(2, reopened.query("org,example)/").size());
+        }
+        try (CdxjIndex reopened = new CdxjIndex(dir, 1000, 1000)) {
+            assertEquals(1, reopened.segmentCount());
+            assertTrue(reopened.query("org,example)/b").get(0).startsWith("org,example)/b "));
+        }
+    }
+}
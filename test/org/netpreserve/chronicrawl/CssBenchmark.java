@@ -0,0 +1,53 @@
+package org.netpreserve.chronicrawl;
+
+import com.steadystate.css.parser.HandlerBase;
+import com.steadystate.css.parser.SACParserCSS3;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.w3c.css.sac.InputSource;
+import org.w3c.css.sac.LexicalUnit;
+import org.w3c.css.sac.Locator;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Extracting URLs from a typical style attribute with a fresh SAC parser per attribute (the old approach) versus
+ * CssScanner.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CssBenchmark {
+    @Param({"color: red; margin: 0 auto; padding: 4px 8px",
+            "background-image: url('/images/hero.jpg'); background-size: cover; min-height: 300px"})
+    public String style;
+
+    @Benchmark
+    public void sac(Blackhole bh) throws IOException {
+        InputSource source = new InputSource();
+        source.setCharacterStream(new StringReader(style));
+        SACParserCSS3 parser = new SACParserCSS3();
+        parser.setErrorHandler(new HandlerBase());
+        parser.setDocumentHandler(new HandlerBase() {
+            @Override
+            public void property(String name, LexicalUnit value, boolean important, Locator locator) {
+                for (var unit = value; unit != null; unit = unit.getNextLexicalUnit()) {
+                    if (unit.getLexicalUnitType() == LexicalUnit.SAC_URI) {
+                        bh.consume(unit.getStringValue());
+                    }
+                }
+            }
+        });
+        parser.parseStyleDeclaration(source);
+    }
+
+    @Benchmark
+    public void scanner(Blackhole bh) {
+        CssScanner.scan(style, (url, type) -> bh.consume(url));
+    }
+}
@@ -0,0 +1,41 @@
+package org.netpreserve.chronicrawl;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class CssScannerTest {
+    private static List<String> scan(String css) {
+        List<String> list = new ArrayList<>();
+        CssScanner.scan(css, (url, type) -> list.add(url + " " + type));
+        return list;
+    }
+
+    @Test
+    public void styleAttribute() {
+        assertEquals(List.of("a.png Image", "b c.png Image", "d.png Image"),
+                scan("background: URL( a.png ); background-image: url(\"b c.png\"), url('d.png')"));
+    }
+
+    @Test
+    public void ignoresStringsAndComments() {
+        assertEquals(List.of("real.png Image"),
+                scan("/* url(comment.png) */ content: 'url(string.png)'; --x: myurl(x.png); b: url(real.png)"));
+    }
+
+    @Test
+    public void escapes() {
+        assertEquals(List.of("a(b).png Image", "é.png Image"), scan("a: url(a\\(b\\).png); b: url('\\e9 .png')"));
+    }
+
+    @Test
+    public void stylesheet() {
+        assertEquals(List.of("one.css Stylesheet", "two.css Stylesheet", "f.woff Font", "f.ttf Font", "bg.jpg Image"),
+                scan("@import 'one.css'; @import url(two.css) screen;\n" +
+                        "@font-face { font-family: f; src: url(f.woff) format('woff'), url(f.ttf); }\n" +
+                        "@media screen { body { background: url(bg.jpg) } }"));
+    }
+}
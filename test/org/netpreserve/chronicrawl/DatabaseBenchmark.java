@@ -0,0 +1,85 @@
+package org.netpreserve.chronicrawl;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Frontier operations from Crawl.enqueue and Crawl.step against on-disk SQLite and H2 databases holding 100 origins
+ * of 100 locations each.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DatabaseBenchmark {
+    private static final int ORIGINS = 100;
+    private static final int LOCATIONS_PER_ORIGIN = 100;
+
+    @Param({"sqlite", "h2"})
+    public String engine;
+
+    private Path dir;
+    private Database db;
+    private Location via;
+    private int counter;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("chronicrawl-bench");
+        String url = engine.equals("sqlite") ? "jdbc:sqlite:" + dir.resolve("bench.sqlite3") : "jdbc:h2:" + dir.resolve("bench");
+        db = new Database(url, "sa", "", new Config());
+        db.init();
+        Instant now = Instant.now();
+        for (int i = 0; i < ORIGINS; i++) {
+            for (int j = 0; j < LOCATIONS_PER_ORIGIN; j++) {
+                enqueue(new Url("http://site" + i + ".example.org/page/" + j), now);
+            }
+        }
+        via = db.locations.find(new Url("http://site0.example.org/page/0").originId(),
+                new Url("http://site0.example.org/page/0").pathId());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        db.close();
+        try (Stream<Path> stream = Files.walk(dir)) {
+            stream.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private void enqueue(Url url, Instant date) {
+        if (db.origins.tryInsert(url.originId(), url.origin(), date, CrawlPolicy.CONTINUOUS)) {
+            db.locations.tryInsert(url.resolve("/robots.txt"), Location.Type.ROBOTS, null, 0, date);
+        }
+        db.locations.tryInsert(url, Location.Type.PAGE, via == null ? null : via.url(), 1, date);
+    }
+
+    @Benchmark
+    public void enqueueNew() {
+        enqueue(new Url("http://site" + (counter % ORIGINS) + ".example.org/new/" + counter++), Instant.now());
+    }
+
+    @Benchmark
+    public void enqueueExisting() {
+        int i = counter++;
+        enqueue(new Url("http://site" + (i % ORIGINS) + ".example.org/page/" + (i / ORIGINS % LOCATIONS_PER_ORIGIN)),
+                Instant.now());
+    }
+
+    @Benchmark
+    public void peek(Blackhole bh) {
+        List<Origin> origins = db.origins.peek(1);
+        bh.consume(db.locations.peek(origins.get(0).id));
+    }
+}
@@ -0,0 +1,31 @@
+package org.netpreserve.chronicrawl;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DevtoolsMessageTest {
+    @Test
+    public void peekEvent() {
+        var message = DevtoolsMessage.peek("{\"method\":\"Page.lifecycleEvent\",\"params\":{\"name\":\"x\\\"}\"," +
+                "\"list\":[1,{\"a\":[]}],\"method\":\"nested\"},\"sessionId\":\"AB\\u0043\"}");
+        assertTrue(message.isEvent());
+        assertEquals("Page.lifecycleEvent", message.method);
+        assertEquals("ABC", message.sessionId);
+        assertEquals("x\"}", message.object().getObject("params").getString("name"));
+    }
+
+    @Test
+    public void peekResponse() {
+        var message = DevtoolsMessage.peek(" { \"id\" : 42 , \"result\" : { \"data\" : \"\\\\\" , \"ok\" : true } } ");
+        assertFalse(message.isEvent());
+        assertEquals(42, message.id);
+        assertNull(message.sessionId);
+        assertEquals("\\", message.object().getObject("result").getString("data"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void malformed() {
+        DevtoolsMessage.peek("{\"id\": 1, \"result\": {\"data\": \"unterminated}}");
+    }
+}
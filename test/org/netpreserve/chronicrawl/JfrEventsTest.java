@@ -0,0 +1,45 @@
+package org.netpreserve.chronicrawl;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+
+public class JfrEventsTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testDatabaseTransaction() throws Exception {
+        Path file = tmp.getRoot().toPath().resolve("test.jfr");
+        try (Database db = new Database("jdbc:h2:mem:jfrtest;DB_CLOSE_DELAY=-1", "sa", "", new Config());
+             Recording recording = new Recording()) {
+            db.init();
+            recording.enable("chronicrawl.DatabaseTransaction").withoutThreshold();
+            recording.start();
+            db.jdbi.inTransaction(h -> h.inTransaction(h2 -> 1)); // nested counts once
+            try {
+                db.jdbi.useTransaction(h -> {
+                    throw new IllegalStateException();
+                });
+            } catch (IllegalStateException e) {
+                // expected
+            }
+            recording.stop();
+            recording.dump(file);
+        }
+        List<Boolean> committed = RecordingFile.readAllEvents(file).stream()
+                .filter(e -> e.getEventType().getName().equals("chronicrawl.DatabaseTransaction"))
+                .map((RecordedEvent e) -> e.getBoolean("committed"))
+                .collect(Collectors.toList());
+        assertEquals(List.of(true, false), committed);
+    }
+}
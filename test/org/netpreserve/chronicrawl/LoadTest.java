@@ -0,0 +1,189 @@
+package org.netpreserve.chronicrawl;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Crawls a {@link SimulatedWeb} for a fixed duration and reports throughput and resource usage, so engine changes
+ * can be compared offline and reproducibly. The browser is still required as Crawl always starts one.
+ * <p>
+ * Run from the test classpath (see the Benchmarks section of the README), for example:
+ * <pre>java -cp ... org.netpreserve.chronicrawl.LoadTest --duration 120 --hosts 5000 --latency 50</pre>
+ */
+public class LoadTest {
+    public static void main(String[] args) throws Exception {
+        SimulatedWeb web = new SimulatedWeb();
+        Config config = new Config();
+        config.politenessGroup = PolitenessGroup.HOST; // every simulated host shares one IP address
+        long durationSeconds = 60;
+        int seeds = -1;
+        String dbUrl = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-c":
+                    config.load(Paths.get(args[++i]));
+                    break;
+                case "--db":
+                    dbUrl = args[++i];
+                    break;
+                case "--duration":
+                    durationSeconds = Long.parseLong(args[++i]);
+                    break;
+                case "--seeds":
+                    seeds = Integer.parseInt(args[++i]);
+                    break;
+                case "--hosts":
+                    web.hosts = Integer.parseInt(args[++i]);
+                    break;
+                case "--pages":
+                    web.pagesPerHost = Integer.parseInt(args[++i]);
+                    break;
+                case "--links":
+                    web.linksPerPage = Integer.parseInt(args[++i]);
+                    break;
+                case "--external":
+                    web.externalLinkFraction = Double.parseDouble(args[++i]);
+                    break;
+                case "--images":
+                    web.imagesPerPage = Integer.parseInt(args[++i]);
+                    break;
+                case "--size":
+                    web.medianPageBytes = Integer.parseInt(args[++i]);
+                    break;
+                case "--latency":
+                    web.medianLatencyMillis = Double.parseDouble(args[++i]);
+                    break;
+                case "--errors":
+                    web.errorRate = Double.parseDouble(args[++i]);
+                    break;
+                case "--no-sitemaps":
+                    web.sitemaps = false;
+                    break;
+                case "--crawl-delay":
+                    web.robotsCrawlDelay = Integer.parseInt(args[++i]);
+                    break;
+                case "-h":
+                case "--help":
+                    System.out.println("Usage: LoadTest [options]");
+                    System.out.println("");
+                    System.out.println("-c FILE             Load crawler config from properties file");
+                    System.out.println("    --db URL        JDBC URL (default: SQLite in a temporary directory)");
+                    System.out.println("    --duration SECS Length of the run (default: 60)");
+                    System.out.println("    --seeds N       Number of hosts to seed (default: all)");
+                    System.out.println("    --hosts N       Number of simulated hosts (default: 1000)");
+                    System.out.println("    --pages N       Pages per host (default: 200)");
+                    System.out.println("    --links N       Links per page (default: 20)");
+                    System.out.println("    --external F    Fraction of links to other hosts (default: 0.1)");
+                    System.out.println("    --images N      Images per page (default: 3)");
+                    System.out.println("    --size BYTES    Median page size (default: 20480)");
+                    System.out.println("    --latency MS    Median response latency (default: 20)");
+                    System.out.println("    --errors F      Fraction of requests that fail with 500 (default: 0.01)");
+                    System.out.println("    --no-sitemaps   Don't advertise sitemaps in robots.txt");
+                    System.out.println("    --crawl-delay N Crawl-delay in robots.txt (default: none)");
+                    System.exit(0);
+                    break;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    System.exit(1);
+            }
+        }
+
+        Path dir = Files.createTempDirectory("chronicrawl-loadtest");
+        config.dbUrl = dbUrl != null ? dbUrl : "jdbc:sqlite:" + dir.resolve("chronicrawl.sqlite3");
+        config.warcFilename = dir.resolve("chronicrawl-{TIMESTAMP}-{SEQNO}.warc").toString();
+        config.cdxjDir = dir.resolve("cdxj").toString();
+        web.start();
+        config.resolveOverrides = web.resolveOverrides();
+        System.out.println("Simulating " + web);
+
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        AtomicLong maxHeap = new AtomicLong();
+        Thread sampler = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                maxHeap.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+                try {
+                    Thread.sleep(250);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "LoadTest heap sampler");
+        sampler.setDaemon(true);
+
+        try (Database db = new Database(config.dbUrl, config.dbUser, config.dbPassword, config)) {
+            db.init();
+            try (Crawl crawl = new Crawl(config, db)) {
+                for (int i = 0; i < (seeds < 0 ? web.hosts : seeds); i++) {
+                    crawl.addSeed(web.seed(i));
+                }
+                crawl.paused.set(false);
+
+                var os = (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+                var threads = ManagementFactory.getThreadMXBean();
+                long startCpu = os.getProcessCpuTime();
+                long startThreadCpu = threads.getCurrentThreadCpuTime();
+                long startGcCount = gcCount();
+                long startGcMillis = gcMillis();
+                long startRequests = web.requests.get();
+                long startPages = web.pages.get();
+                long startBytes = web.bytes.get();
+                long start = System.nanoTime();
+                long deadline = start + durationSeconds * 1000000000L;
+                sampler.start();
+                long steps = 0;
+                while (System.nanoTime() < deadline) {
+                    crawl.step();
+                    steps++;
+                }
+                double seconds = (System.nanoTime() - start) / 1e9;
+                sampler.interrupt();
+
+                double cpuSeconds = (os.getProcessCpuTime() - startCpu) / 1e9;
+                double crawlThreadCpuSeconds = (threads.getCurrentThreadCpuTime() - startThreadCpu) / 1e9;
+                long pages = web.pages.get() - startPages;
+                long bytes = web.bytes.get() - startBytes;
+                System.out.println();
+                System.out.printf(Locale.ROOT, "Duration:          %.1f s%n", seconds);
+                System.out.printf(Locale.ROOT, "Steps:             %d (%.1f/s)%n", steps, steps / seconds);
+                System.out.printf(Locale.ROOT, "Requests served:   %d (%.1f/s, %d errors injected)%n",
+                        web.requests.get() - startRequests, (web.requests.get() - startRequests) / seconds,
+                        web.errors.get());
+                System.out.printf(Locale.ROOT, "Pages served:      %d (%.1f/s)%n", pages, pages / seconds);
+                System.out.printf(Locale.ROOT, "Bytes served:      %d (%.1f KiB/s)%n", bytes, bytes / seconds / 1024);
+                System.out.printf(Locale.ROOT, "Process CPU:       %.1f s (%.0f%% of one core)%n", cpuSeconds,
+                        cpuSeconds / seconds * 100);
+                System.out.printf(Locale.ROOT, "Crawl thread CPU:  %.1f s (%.0f%%)%n", crawlThreadCpuSeconds,
+                        crawlThreadCpuSeconds / seconds * 100);
+                System.out.printf(Locale.ROOT, "Max heap used:     %.1f MiB%n", maxHeap.get() / 1048576.0);
+                System.out.printf(Locale.ROOT, "GC:                %d collections, %d ms%n",
+                        gcCount() - startGcCount, gcMillis() - startGcMillis);
+            }
+        } finally {
+            web.close();
+            try (Stream<Path> stream = Files.walk(dir)) {
+                stream.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            } catch (IOException e) {
+                System.err.println("Failed to clean up " + dir + ": " + e);
+            }
+        }
+    }
+
+    private static long gcCount() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream()
+                .mapToLong(GarbageCollectorMXBean::getCollectionCount).sum();
+    }
+
+    private static long gcMillis() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream()
+                .mapToLong(GarbageCollectorMXBean::getCollectionTime).sum();
+    }
+}
@@ -0,0 +1,46 @@
+package org.netpreserve.chronicrawl;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsTest {
+    @Test
+    public void testTextFormat() {
+        var counter = new Metrics.Counter("test_total", "Test counter", "status");
+        counter.inc("200");
+        counter.add(2, "404");
+        counter.inc("a\"b");
+        StringBuilder out = new StringBuilder();
+        counter.write(out);
+        assertEquals("test_total{status=\"200\"} 1\n" +
+                "test_total{status=\"404\"} 2\n" +
+                "test_total{status=\"a\\\"b\"} 1\n", out.toString());
+
+        var histogram = new Metrics.Histogram("test_seconds", "Test histogram", new double[]{0.1, 1});
+        histogram.observe(0.05);
+        histogram.observe(0.1);
+        histogram.observe(5);
+        out = new StringBuilder();
+        histogram.write(out);
+        assertEquals("test_seconds_bucket{le=\"0.1\"} 2\n" +
+                "test_seconds_bucket{le=\"1.0\"} 2\n" +
+                "test_seconds_bucket{le=\"+Inf\"} 3\n" +
+                "test_seconds_sum 5.15\n" +
+                "test_seconds_count 3\n", out.toString());
+        assertEquals(3, histogram.count());
+    }
+
+    @Test
+    public void testUnregister() {
+        var first = Metrics.gauge("test_unregister", "Test gauge", () -> 1);
+        Metrics.gauge("test_unregister", "Test gauge", () -> 2);
+        Metrics.unregister(first);
+        assertTrue("a replaced gauge is left alone", Metrics.scrape().contains("test_unregister 2\n"));
+        var second = Metrics.gauge("test_unregister", "Test gauge", () -> 3);
+        Metrics.unregister(second);
+        assertFalse(Metrics.scrape().contains("test_unregister"));
+    }
+}
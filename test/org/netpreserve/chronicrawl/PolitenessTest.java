@@ -0,0 +1,85 @@
+package org.netpreserve.chronicrawl;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Instant;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PolitenessTest {
+    @Test
+    public void testKeys() {
+        Config config = new Config();
+        config.resolveOverrides = "a.test=10.0.0.1,b.test=10.0.0.1,c.test=10.0.0.2";
+        Resolver resolver = new Resolver(config);
+        Politeness politeness = new Politeness(config, resolver);
+
+        config.politenessGroup = PolitenessGroup.IP;
+        assertEquals(politeness.key(origin("http://a.test")), politeness.key(origin("https://b.test:8443")));
+        assertNotEquals(politeness.key(origin("http://a.test")), politeness.key(origin("http://c.test")));
+
+        config.politenessGroup = PolitenessGroup.HOST;
+        assertEquals(politeness.key(origin("http://a.test")), politeness.key(origin("https://a.test")));
+        assertNotEquals(politeness.key(origin("http://a.test")), politeness.key(origin("http://b.test")));
+
+        config.politenessGroup = PolitenessGroup.ORIGIN;
+        assertNotEquals(politeness.key(origin("http://a.test")), politeness.key(origin("https://a.test")));
+        resolver.close();
+    }
+
+    @Test
+    public void testKeyDoesNotBlockOnDns() throws Exception {
+        Config config = new Config();
+        config.politenessGroup = PolitenessGroup.IP;
+        CountDownLatch lookedUp = new CountDownLatch(1);
+        Resolver resolver = new Resolver(config, host -> {
+            if (host.equals("e.test")) throw new UnknownHostException(host);
+            lookedUp.countDown();
+            return new InetAddress[]{InetAddress.getByAddress(host, new byte[]{10, 0, 0, 3})};
+        });
+        Politeness politeness = new Politeness(config, resolver);
+        try {
+            assertNull("uncached hosts have no group yet", politeness.key(origin("http://d.test")));
+            assertTrue(lookedUp.await(5, TimeUnit.SECONDS));
+            resolver.resolve("d.test", 80); // wait for the background lookup to be cached
+            assertEquals("10.0.0.3", politeness.key(origin("http://d.test")));
+
+            try {
+                resolver.resolve("e.test", 80);
+                fail("expected UnknownHostException");
+            } catch (UnknownHostException e) {
+                assertEquals("failed lookups are grouped by name", "e.test", politeness.key(origin("http://e.test")));
+            }
+        } finally {
+            resolver.close();
+        }
+    }
+
+    @Test
+    public void testBudget() {
+        Config config = new Config();
+        config.politenessGroupConcurrency = 2;
+        Politeness politeness = new Politeness(config, null);
+
+        Politeness.Group first = politeness.tryAcquire("g", 1000);
+        Politeness.Group second = politeness.tryAcquire("g", 1000);
+        assertNotNull(first);
+        assertNotNull(second);
+        assertNull(politeness.tryAcquire("g", 1000));
+        assertNotNull(politeness.tryAcquire("other", 1000));
+
+        politeness.release(first, 1000, 500);
+        assertNull("should wait out the delay", politeness.tryAcquire("g", 1200));
+        assertEquals(1500, politeness.availableAt("g", 1200));
+        assertNotNull(politeness.tryAcquire("g", 1500));
+    }
+
+    private static Origin origin(String name) {
+        return new Origin(new Url(name).originId(), name, Instant.EPOCH, null, Instant.EPOCH, null, null,
+                CrawlPolicy.CONTINUOUS, null, null);
+    }
+}
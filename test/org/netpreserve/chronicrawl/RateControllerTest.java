@@ -0,0 +1,91 @@
+package org.netpreserve.chronicrawl;
+
+import org.junit.Test;
+
+import java.time.Instant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RateControllerTest {
+    @Test
+    public void testAdapt() {
+        Config config = new Config();
+        config.maxDelayMillis = 5000;
+        config.minDelayMillis = 200;
+        config.adaptiveStepMillis = 1000;
+        RateController controller = new RateController(config);
+
+        // healthy responses speed up additively down to the minimum
+        RateController.State state = controller.update(origin(null, null, null), 200, 100);
+        assertEquals(4000, state.delayMillis);
+        assertEquals(Long.valueOf(100), state.responseMillis);
+        state = controller.update(origin(null, 1000L, 100L), 200, 90);
+        assertEquals(200, state.delayMillis);
+        assertEquals(Long.valueOf(98), state.responseMillis);
+
+        // trouble backs off multiplicatively
+        assertEquals(1000, controller.update(origin(null, 200L, 100L), 503, 100).delayMillis);
+        assertEquals(2000, controller.update(origin(null, 1000L, 100L), 429, 100).delayMillis);
+        assertEquals(2000, controller.update(origin(null, 1000L, 100L), Status.CONNECT_FAILED, 30000).delayMillis);
+        assertEquals("slow response", 2000, controller.update(origin(null, 1000L, 100L), 200, 500).delayMillis);
+        assertEquals("a bit slower holds steady", 1000, controller.update(origin(null, 1000L, 100L), 200, 150).delayMillis);
+        config.backoffMaxDelayMillis = 1500;
+        assertEquals(1500, controller.update(origin(null, 1000L, 100L), 503, 100).delayMillis);
+
+        // robots crawl-delay is a floor
+        assertEquals(3000, controller.update(origin(3L, 3000L, 100L), 200, 50).delayMillis);
+
+        // a lookup failure says nothing about the server
+        state = controller.update(origin(null, 1000L, null), Status.DNS_LOOKUP_FAILED, 0);
+        assertEquals(1000, state.delayMillis);
+        assertNull(state.responseMillis);
+        assertEquals("hitting our size limit isn't trouble", 1000,
+                controller.update(origin(null, 1000L, 100L), Status.RESPONSE_TOO_LARGE, 100).delayMillis);
+
+        config.adaptiveDelay = false;
+        assertEquals(3000, controller.update(origin(3L, 1000L, 100L), 503, 100).delayMillis);
+    }
+
+    @Test
+    public void testRetryAfter() {
+        Config config = new Config();
+        RateController controller = new RateController(config);
+        Instant now = Instant.parse("2015-10-21T07:28:00Z");
+        assertEquals(120000, controller.retryAfterMillis("120", now));
+        assertEquals(90000, controller.retryAfterMillis("Wed, 21 Oct 2015 07:29:30 GMT", now));
+        assertEquals(0, controller.retryAfterMillis("Wed, 21 Oct 2015 07:00:00 GMT", now));
+        assertEquals(0, controller.retryAfterMillis("soon", now));
+        assertEquals(0, controller.retryAfterMillis(null, now));
+        assertEquals(config.backoffMaxDelayMillis, controller.retryAfterMillis("99999999999999999", now));
+    }
+
+    @Test
+    public void testThrottledTransfer() throws Exception {
+        Config config = new Config();
+        config.bandwidthLimit = 10000;
+        config.maxDelayMillis = 5000;
+        config.adaptiveStepMillis = 100;
+        RateController controller = new RateController(config);
+        Throttle.Transfer transfer = new Throttle(config).start(1);
+        Timings timings = new Timings();
+
+        long start = System.nanoTime();
+        transfer.received(new byte[14000], 14000);
+        long throttled = transfer.throttledNanos();
+        assertTrue("should have slept about 400ms", throttled > 300_000_000);
+        timings.exclude(throttled);
+        timings.end(Timings.Phase.TRANSFER);
+        long fetchMillis = (System.nanoTime() - start - throttled) / 1000000;
+        assertTrue(timings.nanos(Timings.Phase.TRANSFER) < 100_000_000);
+
+        // our own throttling mustn't look like a slow server
+        assertEquals(900, controller.update(origin(null, 1000L, 50L), 200, fetchMillis).delayMillis);
+    }
+
+    private static Origin origin(Long robotsCrawlDelay, Long delayMillis, Long responseMillis) {
+        return new Origin(1, "http://example.org", Instant.EPOCH, null, Instant.EPOCH, robotsCrawlDelay, null,
+                CrawlPolicy.CONTINUOUS, delayMillis, responseMillis);
+    }
+}
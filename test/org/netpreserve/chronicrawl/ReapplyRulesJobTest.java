@@ -0,0 +1,65 @@
+package org.netpreserve.chronicrawl;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.*;
+
+public class ReapplyRulesJobTest {
+    @Test
+    public void test() {
+        Config config = new Config();
+        config.reapplyRulesBatchSize = 2;
+        config.reapplyRulesBatchDelayMillis = 50;
+        try (Database db = new Database("jdbc:h2:mem:reapplytest;DB_CLOSE_DELAY=-1", "sa", "", config)) {
+            db.init();
+            Instant lastVisit = Instant.parse("2020-01-01T00:00:00Z");
+            Instant oldNextVisit = lastVisit.plus(Duration.ofDays(30));
+            Url seed = new Url("http://example.org/");
+            db.origins.tryInsert(seed.originId(), seed.origin(), Instant.EPOCH, CrawlPolicy.CONTINUOUS);
+            for (String path : new String[]{"/a/1", "/a/2", "/a/3", "/a/4", "/b"}) {
+                Url url = seed.resolve(path);
+                db.locations.tryInsert(url, Location.Type.PAGE, null, 0, Instant.EPOCH);
+                db.locations.updateVisitData(url.originId(), url.pathId(), lastVisit, oldNextVisit);
+            }
+            Url unvisited = seed.resolve("/a/unvisited");
+            db.locations.tryInsert(unvisited, Location.Type.PAGE, null, 0, Instant.EPOCH);
+
+            // edit the rule for /a/ to follow a daily schedule
+            db.schedules.insert(100, "test daily", 0, 0, 1, 0, 0);
+            db.rules.insert(seed.originId(), "/a/.*", 100L);
+
+            Map<Long, ReapplyRulesJob> jobs = new ConcurrentHashMap<>();
+            ReapplyRulesJob earlier = new ReapplyRulesJob(db, config, 42, jobs);
+            jobs.put(42L, earlier);
+            earlier.run();
+            assertTrue(jobs.containsKey(42L));
+
+            ReapplyRulesJob job = new ReapplyRulesJob(db, config, seed.originId(), jobs);
+            jobs.put(seed.originId(), job);
+            long start = System.nanoTime();
+            job.run();
+            long elapsedMillis = (System.nanoTime() - start) / 1000000;
+
+            assertTrue(job.isFinished());
+            assertEquals(6, job.total());
+            assertEquals(6, job.processed());
+            assertEquals(4, job.updated());
+            assertTrue("three batches should each be followed by a pause", elapsedMillis >= 150);
+            for (String path : new String[]{"/a/1", "/a/2", "/a/3", "/a/4"}) {
+                Url url = seed.resolve(path);
+                assertEquals(path, lastVisit.plus(Duration.ofDays(1)),
+                        db.locations.find(url.originId(), url.pathId()).nextVisit);
+            }
+            Url other = seed.resolve("/b");
+            assertEquals(oldNextVisit, db.locations.find(other.originId(), other.pathId()).nextVisit);
+            assertEquals(Instant.EPOCH, db.locations.find(unvisited.originId(), unvisited.pathId()).nextVisit);
+
+            assertEquals("the earlier finished job is forgotten", Map.of(seed.originId(), job), jobs);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package org.netpreserve.chronicrawl;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ResolverTest {
+    @Test
+    public void testOverrides() throws IOException {
+        Config config = new Config();
+        config.resolveOverrides = "*.sim.test=127.0.0.1:8000, example.org=127.0.0.2, v6.test=[::1]:81";
+        Resolver resolver = new Resolver(config);
+        assertEquals(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 8000), resolver.resolve("a.b.SIM.test", 80));
+        assertEquals(new InetSocketAddress(InetAddress.getByName("127.0.0.2"), 443), resolver.resolve("example.org", 443));
+        assertEquals(new InetSocketAddress(InetAddress.getByName("::1"), 81), resolver.resolve("v6.test", 80));
+
+        config.resolveOverrides = "*=127.0.0.3";
+        assertEquals(new InetSocketAddress(InetAddress.getByName("127.0.0.3"), 80), resolver.resolve("example.org", 80));
+
+        for (String invalid : new String[]{"example.org", "example.org=[::1", "example.org=127.0.0.1:http"}) {
+            try {
+                config.set("resolveOverrides", invalid);
+                fail("expected IllegalArgumentException for " + invalid);
+            } catch (IllegalArgumentException e) {
+                assertEquals("*=127.0.0.3", config.resolveOverrides);
+            }
+        }
+    }
+
+    @Test
+    public void testCache() throws Exception {
+        Config config = new Config();
+        AtomicInteger lookups = new AtomicInteger();
+        Resolver resolver = new Resolver(config, host -> {
+            lookups.incrementAndGet();
+            if (host.equals("missing.test")) throw new UnknownHostException(host);
+            return new InetAddress[]{InetAddress.getByAddress(host, new byte[]{10, 0, 0, 1})};
+        });
+        try {
+            assertEquals(80, resolver.resolve("example.test", 80).getPort());
+            assertEquals("10.0.0.1", resolver.resolve("EXAMPLE.test", 443).getAddress().getHostAddress());
+            assertEquals(1, lookups.get());
+
+            for (int i = 0; i < 2; i++) {
+                try {
+                    resolver.resolve("missing.test", 80);
+                    fail("expected UnknownHostException");
+                } catch (UnknownHostException e) {
+                    // expected
+                }
+            }
+            assertEquals(2, lookups.get());
+
+            config.dnsCacheTtl = Duration.ZERO;
+            resolver.resolve("other.test", 80);
+            resolver.resolve("other.test", 80);
+            assertEquals(4, lookups.get());
+
+            config.dnsCacheTtl = Duration.ofMinutes(5);
+            resolver.prefetch("prefetched.test");
+            resolver.resolve("prefetched.test", 80);
+            resolver.prefetch("prefetched.test");
+            assertEquals(5, lookups.get());
+
+            // a full cache is evicted down to three quarters in one go
+            config.dnsCacheMaxEntries = 8;
+            for (int i = 0; i < 5; i++) {
+                resolver.resolve("host" + i + ".test", 80);
+            }
+            assertEquals(6, resolver.cacheSize());
+            resolver.resolve("host5.test", 80);
+            assertEquals(7, resolver.cacheSize());
+        } finally {
+            resolver.close();
+        }
+    }
+
+    @Test
+    public void testSimulatedWeb() throws IOException {
+        try (SimulatedWeb web = new SimulatedWeb()) {
+            web.medianLatencyMillis = 0;
+            web.errorRate = 0;
+            web.start();
+            Config config = new Config();
+            config.resolveOverrides = web.resolveOverrides();
+            Url url = new Url("http://site7" + SimulatedWeb.DOMAIN + "/robots.txt");
+            try (Socket socket = url.connect(null, null, new Resolver(config), 0, new Timings())) {
+                socket.getOutputStream().write(("GET /robots.txt HTTP/1.0\r\nHost: " + url.hostInfo() + "\r\n\r\n")
+                        .getBytes(US_ASCII));
+                String response = new String(socket.getInputStream().readAllBytes(), US_ASCII);
+                assertTrue(response, response.startsWith("HTTP/1.1 200"));
+                assertTrue(response, response.contains("Sitemap: http://site7.sim.test/sitemap.xml"));
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package org.netpreserve.chronicrawl;
+
+import org.junit.Test;
+import org.netpreserve.jwarc.HttpResponse;
+import org.netpreserve.jwarc.MediaType;
+import org.netpreserve.jwarc.WarcResponse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.time.Instant;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+public class ResponseCacheTest {
+    private static WarcResponse response(Url url, String body) throws IOException {
+        return new WarcResponse.Builder(url.toURI())
+                .body(new HttpResponse.Builder(200, "OK")
+                        .addHeader("Content-Type", "text/css")
+                        .body(MediaType.parse("text/css"), body.getBytes(UTF_8))
+                        .build())
+                .build();
+    }
+
+    @Test
+    public void test() throws IOException {
+        var cache = new ResponseCache(8 * 1024, 1024, Duration.ofDays(1));
+        Url a = new Url("http://example.org/a.css");
+        Url b = new Url("http://example.org/b.css");
+        Instant date = Instant.parse("2020-01-01T10:00:00Z");
+
+        assertNull(cache.get(a, "GET", date));
+        var entry = cache.put(a, "GET", date, null, response(a, "body { }"));
+        assertNotNull(entry);
+        var hit = cache.get(a, "GET", date.plus(Duration.ofHours(1)));
+        assertSame(entry, hit);
+        assertEquals(200, hit.status);
+        assertEquals("body { }", UTF_8.decode(hit.body()).toString());
+        assertEquals("body { }", UTF_8.decode(hit.body()).toString());
+        assertNull(cache.get(a, "GET", date.plus(Duration.ofDays(1))));
+        assertNull(cache.get(a, "POST", date));
+
+        assertNull("too large to cache", cache.put(b, "GET", date, null, response(b, "x".repeat(2000))));
+
+        for (int i = 0; i < 20; i++) {
+            Url url = new Url("http://example.org/" + i + ".css");
+            cache.put(url, "GET", date, null, response(url, "y".repeat(900)));
+        }
+        assertTrue(cache.sizeBytes() <= 8 * 1024);
+        assertNull("evicted", cache.get(a, "GET", date));
+        assertNotNull(cache.get(new Url("http://example.org/19.css"), "GET", date));
+    }
+}
@@ -0,0 +1,48 @@
+package org.netpreserve.chronicrawl;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RollingStatsTest {
+    @Test
+    public void test() {
+        RollingStats stats = new RollingStats(1000, 4);
+        stats.record(10_000, 200, 100, 5);
+        stats.record(10_500, 404, 50, 15);
+        stats.record(12_000, Status.CONNECT_FAILED, 0, 1);
+        assertArrayEquals(new long[]{0, 150, 0, 0}, stats.series(12_999, RollingStats.BYTES, 4));
+
+        long[] totals = stats.totals(12_000, 3);
+        assertEquals(3, totals[RollingStats.VISITS]);
+        assertEquals(1, totals[RollingStats.STATUS_1XX + 1]);
+        assertEquals(1, totals[RollingStats.STATUS_1XX + 3]);
+        assertEquals(1, totals[RollingStats.ERRORS]);
+        assertEquals(21, totals[RollingStats.LATENCY_SUM]);
+        assertEquals(15, totals[RollingStats.LATENCY_MAX]);
+
+        // wraps around the ring and reuses the bucket of second 10
+        stats.record(14_000, 200, 7, 1);
+        assertArrayEquals(new long[]{0, 0, 7}, stats.series(14_000, RollingStats.BYTES, 3));
+        assertArrayEquals(new long[]{0, 0, 0, 0}, stats.series(10_000, RollingStats.BYTES, 4));
+        stats.record(10_000, 200, 1000, 1); // too late, dropped
+        assertEquals(7, stats.totals(14_000, 4)[RollingStats.BYTES]);
+    }
+
+    @Test
+    public void testInvalidConfig() throws Exception {
+        Config config = new Config();
+        for (String invalid : new String[]{"0", "-1"}) {
+            try {
+                config.set("statsBucketMillis", invalid);
+                fail("expected IllegalArgumentException for " + invalid);
+            } catch (IllegalArgumentException e) {
+                assertEquals(3000, config.statsBucketMillis);
+            }
+        }
+        assertTrue(Chart.chart(new long[0]).startsWith("<?xml"));
+    }
+}
@@ -0,0 +1,54 @@
+package org.netpreserve.chronicrawl;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Computing the next visit time for a location: choosing its rule and applying the rule's schedule.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScheduleBenchmark {
+    @Param({"5", "50"})
+    public int ruleCount;
+
+    private final ZonedDateTime time = ZonedDateTime.of(2020, 8, 6, 12, 34, 21, 0, ZoneOffset.UTC);
+    private final Schedule daily = new Schedule(0, "daily", 0, 0, 1, 0, 0);
+    private final Schedule weekdaysTwiceDaily = new Schedule(1, "weekdays", 0, 0, 0, 0b0011111, (1 << 9) | (1 << 15));
+    private final String pathref = "/news/2020/08/some-article-title?page=2&ref=home";
+    private List<Rule> rules;
+
+    @Setup
+    public void setup() {
+        rules = new ArrayList<>();
+        rules.add(new Rule(1, ".*", 0L, "daily"));
+        for (int i = 1; i < ruleCount; i++) {
+            rules.add(new Rule(1, "/section" + i + "/.*", 1L, "weekdays"));
+        }
+        rules.add(new Rule(1, "/news/.*", 1L, "weekdays"));
+    }
+
+    @Benchmark
+    public ZonedDateTime applyInterval() {
+        return daily.apply(time);
+    }
+
+    @Benchmark
+    public ZonedDateTime applyDaysAndHours() {
+        return weekdaysTwiceDaily.apply(time);
+    }
+
+    @Benchmark
+    public Rule bestMatching() {
+        return Rule.bestMatching(rules, pathref);
+    }
+}
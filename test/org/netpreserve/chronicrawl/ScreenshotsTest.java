@@ -0,0 +1,42 @@
+package org.netpreserve.chronicrawl;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class ScreenshotsTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void test() throws IOException {
+        Url url = new Url("http://example.org/");
+        var screenshots = new Screenshots(3, folder.getRoot().toPath());
+        for (int i = 1; i <= 5; i++) {
+            screenshots.add(url, Instant.ofEpochMilli(i * 1000), new byte[]{(byte) i});
+        }
+        assertEquals("5000,4000,3000", screenshots.getN(0, 10).stream()
+                .map(s -> Long.toString(s.date.toEpochMilli())).collect(Collectors.joining(",")));
+        assertEquals(2, screenshots.getN(0, 2).size());
+        assertEquals(1, screenshots.getN(4000, 10).size());
+        screenshots.close();
+        assertArrayEquals(new byte[]{1}, Files.readAllBytes(screenshots.path(url, Instant.ofEpochMilli(1000))));
+    }
+
+    @Test
+    public void testDiskOnly() throws IOException {
+        Url url = new Url("http://example.org/");
+        var screenshots = new Screenshots(0, folder.getRoot().toPath());
+        screenshots.add(url, Instant.ofEpochMilli(1000), new byte[]{1});
+        assertEquals(0, screenshots.getN(0, 10).size());
+        screenshots.close();
+        assertArrayEquals(new byte[]{1}, Files.readAllBytes(screenshots.path(url, Instant.ofEpochMilli(1000))));
+    }
+}
@@ -0,0 +1,212 @@
+package org.netpreserve.chronicrawl;
+
+import fi.iki.elonen.NanoHTTPD;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.net.InetAddress;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A generated web of many virtual hosts served from a single loopback port. Hosts are named site0.sim.test,
+ * site1.sim.test and so on; point the crawler at it with resolveOverrides set to {@link #resolveOverrides()}.
+ * <p>
+ * Everything except latency and injected errors is derived from a hash of the host and path, so each run sees the
+ * same pages, links and sizes.
+ */
+public class SimulatedWeb extends NanoHTTPD implements Closeable {
+    static final String DOMAIN = ".sim.test";
+
+    /** Number of virtual hosts. */
+    int hosts = 1000;
+    /** Number of pages on each host. */
+    int pagesPerHost = 200;
+    /** Number of links on each page. */
+    int linksPerPage = 20;
+    /** Fraction of links that point to another host. */
+    double externalLinkFraction = 0.1;
+    /** Number of images on each page. */
+    int imagesPerPage = 3;
+    /** Median size of a page in bytes. Sizes are log-normally distributed. */
+    int medianPageBytes = 20 * 1024;
+    /** Median size of an image in bytes. */
+    int medianImageBytes = 30 * 1024;
+    /** Spread of the log-normal size distributions. 0 makes every response the median size. */
+    double sizeSigma = 0.8;
+    /** Median delay before responding. Latencies are log-normally distributed. */
+    double medianLatencyMillis = 20;
+    /** Spread of the latency distribution. */
+    double latencySigma = 0.6;
+    /** Fraction of requests answered with a 500 error. */
+    double errorRate = 0.01;
+    /** Fraction of pages that don't exist. */
+    double notFoundRate = 0.02;
+    /** Whether hosts advertise a sitemap listing all their pages in robots.txt. */
+    boolean sitemaps = true;
+    /** Crawl-delay in robots.txt, or 0 for none. */
+    int robotsCrawlDelay = 0;
+
+    final AtomicLong requests = new AtomicLong();
+    final AtomicLong pages = new AtomicLong();
+    final AtomicLong bytes = new AtomicLong();
+    final AtomicLong errors = new AtomicLong();
+
+    public SimulatedWeb() {
+        super(InetAddress.getLoopbackAddress().getHostAddress(), 0);
+    }
+
+    String host(int i) {
+        return "site" + i + DOMAIN;
+    }
+
+    String seed(int i) {
+        return "http://" + host(i) + "/";
+    }
+
+    /**
+     * Value for the resolveOverrides config option that sends all simulated hosts to this server.
+     */
+    String resolveOverrides() {
+        return "*" + DOMAIN + "=" + getHostname() + ":" + getListeningPort();
+    }
+
+    @Override
+    public Response serve(IHTTPSession session) {
+        requests.incrementAndGet();
+        sleep(logNormal(ThreadLocalRandom.current(), medianLatencyMillis, latencySigma));
+        String host = session.getHeaders().getOrDefault("host", "");
+        int colon = host.indexOf(':');
+        if (colon >= 0) host = host.substring(0, colon);
+        int hostIndex = hostIndex(host);
+        if (hostIndex < 0) return notFound();
+        if (ThreadLocalRandom.current().nextDouble() < errorRate) {
+            errors.incrementAndGet();
+            return respond(Response.Status.INTERNAL_ERROR, "text/plain", "500 Simulated error".getBytes(UTF_8));
+        }
+
+        String path = session.getUri();
+        Random random = new Random(((long) hostIndex << 32) ^ path.hashCode());
+        if (path.equals("/")) {
+            return page(hostIndex, 0, random);
+        } else if (path.equals("/robots.txt")) {
+            return respond(Response.Status.OK, "text/plain", robotsTxt(hostIndex).getBytes(UTF_8));
+        } else if (path.equals("/sitemap.xml") && sitemaps) {
+            return respond(Response.Status.OK, "application/xml", sitemap(hostIndex).getBytes(UTF_8));
+        } else if (path.startsWith("/page/")) {
+            int page = parseInt(path.substring("/page/".length()));
+            if (page < 0 || page >= pagesPerHost || random.nextDouble() < notFoundRate) return notFound();
+            return page(hostIndex, page, random);
+        } else if (path.startsWith("/img/")) {
+            byte[] data = new byte[size(random, medianImageBytes)];
+            random.nextBytes(data);
+            return respond(Response.Status.OK, "image/jpeg", data);
+        } else if (path.equals("/style.css")) {
+            return respond(Response.Status.OK, "text/css",
+                    "body { font: 16px sans-serif; background: url(/img/background.jpg) }".getBytes(UTF_8));
+        }
+        return notFound();
+    }
+
+    private int hostIndex(String host) {
+        if (!host.startsWith("site") || !host.endsWith(DOMAIN)) return -1;
+        int i = parseInt(host.substring("site".length(), host.length() - DOMAIN.length()));
+        return i < hosts ? i : -1;
+    }
+
+    private static int parseInt(String s) {
+        try {
+            return Integer.parseInt(s);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private String robotsTxt(int hostIndex) {
+        StringBuilder sb = new StringBuilder("User-agent: *\nDisallow: /private/\n");
+        if (robotsCrawlDelay > 0) sb.append("Crawl-delay: ").append(robotsCrawlDelay).append('\n');
+        if (sitemaps) sb.append("Sitemap: http://").append(host(hostIndex)).append("/sitemap.xml\n");
+        return sb.toString();
+    }
+
+    private String sitemap(int hostIndex) {
+        StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                "<urlset xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\">\n");
+        for (int i = 0; i < pagesPerHost; i++) {
+            sb.append("<url><loc>http://").append(host(hostIndex)).append("/page/").append(i)
+                    .append("</loc><changefreq>daily</changefreq></url>\n");
+        }
+        return sb.append("</urlset>\n").toString();
+    }
+
+    private Response page(int hostIndex, int page, Random random) {
+        pages.incrementAndGet();
+        StringBuilder sb = new StringBuilder();
+        sb.append("<!DOCTYPE html><html><head><title>").append(host(hostIndex)).append(" page ").append(page)
+                .append("</title><link rel=stylesheet href=/style.css></head><body><h1>Page ").append(page)
+                .append("</h1><ul>");
+        for (int i = 0; i < linksPerPage; i++) {
+            int targetPage = random.nextInt(pagesPerHost);
+            if (random.nextDouble() < externalLinkFraction) {
+                sb.append("<li><a href='http://").append(host(random.nextInt(hosts))).append("/page/")
+                        .append(targetPage).append("'>External ").append(i).append("</a></li>");
+            } else {
+                sb.append("<li><a href='/page/").append(targetPage).append("'>Page ").append(targetPage)
+                        .append("</a></li>");
+            }
+        }
+        sb.append("</ul>");
+        for (int i = 0; i < imagesPerPage; i++) {
+            sb.append("<img src='/img/").append(random.nextInt(pagesPerHost * 2)).append(".jpg'>");
+        }
+        int size = size(random, medianPageBytes);
+        sb.append("<p>");
+        while (sb.length() < size) {
+            sb.append("Lorem ipsum dolor sit amet, consectetur adipiscing elit. ");
+        }
+        sb.append("</p></body></html>");
+        return respond(Response.Status.OK, "text/html", sb.toString().getBytes(UTF_8));
+    }
+
+    private Response notFound() {
+        return respond(Response.Status.NOT_FOUND, "text/plain", "404 Not found".getBytes(UTF_8));
+    }
+
+    private Response respond(Response.Status status, String contentType, byte[] body) {
+        bytes.addAndGet(body.length);
+        return newFixedLengthResponse(status, contentType, new ByteArrayInputStream(body), body.length);
+    }
+
+    private int size(Random random, int median) {
+        return (int) Math.min(Integer.MAX_VALUE - 16, logNormal(random, median, sizeSigma));
+    }
+
+    private static double logNormal(Random random, double median, double sigma) {
+        return median * Math.exp(sigma * random.nextGaussian());
+    }
+
+    private static void sleep(double millis) {
+        if (millis < 1) return;
+        try {
+            Thread.sleep((long) millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%d hosts x %d pages, %d links/page (%.0f%% external), " +
+                        "median %d bytes, median latency %.0f ms, %.1f%% errors", hosts, pagesPerHost, linksPerPage,
+                externalLinkFraction * 100, medianPageBytes, medianLatencyMillis, errorRate * 100);
+    }
+
+    @Override
+    public void close() {
+        stop();
+    }
+}
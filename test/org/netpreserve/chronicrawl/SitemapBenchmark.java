@@ -0,0 +1,43 @@
+package org.netpreserve.chronicrawl;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Parsing a sitemap with the maximum 50,000 entries allowed by the protocol.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SitemapBenchmark {
+    private byte[] sitemap;
+
+    @Setup
+    public void setup() {
+        StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                "<urlset xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\">\n");
+        for (int i = 0; i < 50000; i++) {
+            sb.append("  <url>\n    <loc>https://www.example.org/products/").append(i / 100).append("/item-")
+                    .append(i).append(".html</loc>\n    <lastmod>2020-0").append(1 + i % 9).append("-1")
+                    .append(i % 10).append("</lastmod>\n    <changefreq>")
+                    .append(i % 3 == 0 ? "daily" : "weekly").append("</changefreq>\n    <priority>0.")
+                    .append(1 + i % 9).append("</priority>\n  </url>\n");
+        }
+        sb.append("</urlset>\n");
+        sitemap = sb.toString().getBytes(UTF_8);
+    }
+
+    @Benchmark
+    public void parse(Blackhole bh) throws XMLStreamException {
+        Sitemap.parse(new ByteArrayInputStream(sitemap), bh::consume);
+    }
+}
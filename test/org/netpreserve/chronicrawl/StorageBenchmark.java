@@ -0,0 +1,120 @@
+package org.netpreserve.chronicrawl;
+
+import org.netpreserve.jwarc.HttpRequest;
+import org.netpreserve.jwarc.HttpResponse;
+import org.netpreserve.jwarc.LengthedBody;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+/**
+ * Writing an exchange's request and response records to a WARC file and reading the response back, as a revisit
+ * check or the replay of a subresource does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StorageBenchmark {
+    @Param({"2048", "262144"})
+    public int bodySize;
+
+    private Path dir;
+    private Database db;
+    private Storage storage;
+    private Exchange exchange;
+    private Visit saved;
+    private final byte[] buffer = new byte[8192];
+
+    @Setup
+    public void setup() throws IOException, NoSuchAlgorithmException {
+        dir = Files.createTempDirectory("chronicrawl-bench");
+        Config config = new Config();
+        config.warcFilename = dir.resolve("bench-{TIMESTAMP}-{SEQNO}.warc").toString();
+        config.cdxjDir = dir.resolve("cdxj").toString();
+        db = new Database("jdbc:sqlite:" + dir.resolve("bench.sqlite3"), "sa", "", config);
+        db.init();
+        storage = new Storage(config, db);
+
+        Url url = new Url("https://www.example.org/news/2020/08/some-article-title");
+        exchange = new Exchange(null, null, new Location(url), "GET", Map.of(), null, null);
+        byte[] body = new byte[bodySize];
+        new Random(0).nextBytes(body);
+        exchange.bufferFile.write(ByteBuffer.wrap(("HTTP/1.1 200 OK\r\nContent-Type: text/html\r\n" +
+                "Content-Length: " + bodySize + "\r\n\r\n").getBytes(US_ASCII)));
+        exchange.bufferFile.write(ByteBuffer.wrap(body));
+        exchange.bufferFile.position(0);
+        exchange.httpRequest = new HttpRequest.Builder("GET", url.target())
+                .addHeader("Host", url.hostInfo())
+                .addHeader("User-Agent", config.userAgent)
+                .build();
+        exchange.httpResponse = HttpResponse.parse(LengthedBody.create(exchange.bufferFile,
+                ByteBuffer.allocate(8192).flip(), exchange.bufferFile.size()));
+        exchange.fetchStatus = exchange.httpResponse.status();
+        exchange.ip = InetAddress.getLoopbackAddress();
+        exchange.digest = MessageDigest.getInstance(config.warcDigestAlgorithm).digest(body);
+        exchange.contentLength = bodySize;
+
+        storage.save(exchange);
+        saved = visit(exchange);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        exchange.close();
+        storage.close();
+        db.close();
+        try (Stream<Path> stream = Files.walk(dir)) {
+            stream.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private static Visit visit(Exchange exchange) {
+        return new Visit(exchange.location.originId, exchange.location.pathId, exchange.date, exchange.method,
+                exchange.fetchStatus, "text/html", exchange.contentLength, exchange.warcId,
+                exchange.requestPosition, exchange.requestLength, null, exchange.responsePosition,
+                exchange.responseLength, exchange.digest, null, null, null);
+    }
+
+    private void readBody(Visit visit, Blackhole bh) throws IOException {
+        storage.readResponse(visit, (record, response) -> {
+            InputStream stream = response.http().body().stream();
+            for (int n = stream.read(buffer); n >= 0; n = stream.read(buffer)) {
+                bh.consume(n);
+            }
+        });
+    }
+
+    @Benchmark
+    public void save() throws IOException {
+        storage.save(exchange);
+    }
+
+    @Benchmark
+    public void readResponse(Blackhole bh) throws IOException {
+        readBody(saved, bh);
+    }
+
+    @Benchmark
+    public void roundTrip(Blackhole bh) throws IOException {
+        storage.save(exchange);
+        readBody(visit(exchange), bh);
+    }
+}
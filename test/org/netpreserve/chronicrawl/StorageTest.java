@@ -1,15 +1,32 @@
 package org.netpreserve.chronicrawl;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.netpreserve.jwarc.HttpRequest;
+import org.netpreserve.jwarc.HttpResponse;
+import org.netpreserve.jwarc.LengthedBody;
+import org.netpreserve.jwarc.WarcTruncationReason;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 
 public class StorageTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
     @Test
     public void testCopyHeader() throws IOException {
         String data = "HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nshould not be read";
@@ -18,4 +35,81 @@ public class StorageTest {
                 "Content-Length: 5\r\n" +
                 "\r\n", new String(copied, StandardCharsets.US_ASCII));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testTruncated() throws Exception {
+        Config config = new Config();
+        config.warcFilename = temp.getRoot().toPath().resolve("test-{TIMESTAMP}-{SEQNO}.warc").toString();
+        config.cdxjDir = null;
+        try (Database db = new Database("jdbc:sqlite:" + temp.getRoot().toPath().resolve("test.sqlite3"), "sa", "", config);
+             Storage storage = new Storage(config, db)) {
+            db.init();
+            Url url = new Url("http://example.org/video.mp4");
+            try (Exchange exchange = new Exchange(null, null, new Location(url), "GET", Map.of(), null, null)) {
+                exchange.bufferFile.write(ByteBuffer.wrap(("HTTP/1.1 200 OK\r\nContent-Length: 1000000\r\n\r\n" +
+                        "only the start").getBytes(StandardCharsets.US_ASCII)));
+                exchange.bufferFile.position(0);
+                exchange.httpRequest = new HttpRequest.Builder("GET", url.target()).build();
+                exchange.httpResponse = HttpResponse.parse(LengthedBody.create(exchange.bufferFile,
+                        ByteBuffer.allocate(8192).flip(), exchange.bufferFile.size()));
+                exchange.fetchStatus = exchange.httpResponse.status();
+                exchange.ip = InetAddress.getLoopbackAddress();
+                exchange.digest = MessageDigest.getInstance(config.warcDigestAlgorithm)
+                        .digest("only the start".getBytes(StandardCharsets.US_ASCII));
+                exchange.truncated = WarcTruncationReason.LENGTH;
+                storage.save(exchange);
+
+                Visit visit = new Visit(url.originId(), url.pathId(), exchange.date, "GET", 200, null, null,
+                        exchange.warcId, exchange.requestPosition, exchange.requestLength, null,
+                        exchange.responsePosition, exchange.responseLength, null, null, null, "length");
+                assertEquals(WarcTruncationReason.LENGTH, storage.readResponseHeader(visit).truncated());
+            }
+        }
+    }
+
+    @Test
+    public void testStreamStoredResponse() throws Exception {
+        Config config = new Config();
+        config.warcFilename = temp.getRoot().toPath().resolve("test-{TIMESTAMP}-{SEQNO}.warc").toString();
+        byte[] body = new byte[200000];
+        new Random(0).nextBytes(body);
+        try (Database db = new Database("jdbc:sqlite:" + temp.getRoot().toPath().resolve("test.sqlite3"), "sa", "", config);
+             Storage storage = new Storage(config, db)) {
+            db.init();
+            Url url = new Url("http://example.org/big.bin");
+            Visit visit;
+            try (Exchange exchange = new Exchange(null, null, new Location(url), "GET", Map.of(), null, null)) {
+                exchange.bufferFile.write(ByteBuffer.wrap(("HTTP/1.1 200 OK\r\nContent-Type: application/octet-stream\r\n" +
+                        "Content-Length: " + body.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII)));
+                exchange.bufferFile.write(ByteBuffer.wrap(body));
+                exchange.bufferFile.position(0);
+                exchange.httpRequest = new HttpRequest.Builder("GET", url.target()).build();
+                exchange.httpResponse = HttpResponse.parse(LengthedBody.create(exchange.bufferFile,
+                        ByteBuffer.allocate(8192).flip(), exchange.bufferFile.size()));
+                exchange.fetchStatus = exchange.httpResponse.status();
+                exchange.ip = InetAddress.getLoopbackAddress();
+                exchange.digest = MessageDigest.getInstance(config.warcDigestAlgorithm).digest(body);
+                storage.save(exchange);
+                visit = new Visit(url.originId(), url.pathId(), exchange.date, "GET", 200, null, null,
+                        exchange.warcId, exchange.requestPosition, exchange.requestLength, null,
+                        exchange.responsePosition, exchange.responseLength, null, null, null, null);
+            }
+
+            // like a streamed fulfil: the body server only starts reading after the opener has moved on
+            Storage.StoredResponse stored = storage.openResponse(visit);
+            var streamed = new Browser.StreamedBody(stored.response.http(), stored);
+            var server = new Browser.BodyServer();
+            try {
+                String token = server.register(streamed);
+                var connection = (HttpURLConnection) new URL(server.url(token)).openConnection();
+                assertEquals(200, connection.getResponseCode());
+                try (var stream = connection.getInputStream()) {
+                    assertArrayEquals(body, stream.readAllBytes());
+                }
+                streamed.finished.get(5, TimeUnit.SECONDS);
+            } finally {
+                server.stop();
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package org.netpreserve.chronicrawl;
+
+import org.junit.Test;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static org.junit.Assert.*;
+
+public class ThrottleTest {
+    @Test
+    public void testBucket() {
+        Throttle.Bucket bucket = new Throttle.Bucket();
+        assertEquals("starts with a full second of burst", 0, bucket.take(0, 1000, 1000));
+        assertEquals("overdraft is repaid at the limit", 500_000_000, bucket.take(0, 1000, 500));
+        assertEquals(0, bucket.take(1_500_000_000L, 1000, 1000));
+        assertEquals("refill is capped at one second", 1_000_000_000, bucket.take(60_000_000_000L, 1000, 2000));
+        assertEquals("unlimited", 0, bucket.take(60_000_000_000L, 0, 1000000));
+        assertTrue(bucket.isIdle(60_000_000_000L, 1000));
+    }
+
+    @Test
+    public void testContentType() throws Exception {
+        assertEquals("video/mp4", Throttle.sniffContentType("HTTP/1.1 200 OK\r\nServer: x\r\ncontent-TYPE: Video/MP4; codecs=avc1\r\n"));
+        assertNull(Throttle.sniffContentType("HTTP/1.1 200 OK\r\nServer: x\r\n"));
+
+        Config config = new Config();
+        config.contentTypeBandwidthLimits = "video/*=1000, video/webm=2000";
+        Throttle throttle = new Throttle(config);
+        Throttle.Transfer transfer = throttle.start(1);
+        transfer.received("HTTP/1.1 200 OK\r\nContent-Type: video/mp4\r\n\r".getBytes(ISO_8859_1), 43);
+        long start = System.nanoTime();
+        byte[] body = ("\n" + "x".repeat(1049)).getBytes(ISO_8859_1);
+        transfer.received(body, body.length);
+        assertTrue("should have waited about 50ms", System.nanoTime() - start > 30_000_000);
+        assertTrue(Metrics.bandwidthThrottleMillis.get("content_type") > 0);
+
+        for (String invalid : new String[]{"video/*", "video/*=fast"}) {
+            try {
+                config.set("contentTypeBandwidthLimits", invalid);
+                fail("expected IllegalArgumentException for " + invalid);
+            } catch (IllegalArgumentException e) {
+                assertEquals("video/*=1000, video/webm=2000", config.contentTypeBandwidthLimits);
+            }
+        }
+    }
+}
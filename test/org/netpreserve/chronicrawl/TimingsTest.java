@@ -0,0 +1,41 @@
+package org.netpreserve.chronicrawl;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TimingsTest {
+    @Test
+    public void testEncodeDecode() throws InterruptedException {
+        Timings timings = new Timings();
+        timings.start();
+        Thread.sleep(2);
+        timings.end(Timings.Phase.CONNECT);
+        Thread.sleep(1);
+        timings.end(Timings.Phase.TRANSFER);
+        long[] micros = Timings.decodeMicros(timings.encode());
+        assertEquals(0, micros[Timings.Phase.DNS.ordinal()]);
+        assertEquals(timings.nanos(Timings.Phase.CONNECT) / 1000, micros[Timings.Phase.CONNECT.ordinal()]);
+        assertEquals(timings.nanos(Timings.Phase.TRANSFER) / 1000, micros[Timings.Phase.TRANSFER.ordinal()]);
+        assertEquals(0, micros[Timings.Phase.PROCESS.ordinal()]);
+    }
+
+    @Test
+    public void testSummarise() {
+        // DNS 1ms, CONNECT 300 micros (two byte varint)
+        byte[] a = {(byte) 0xe8, 0x07, (byte) 0xac, 0x02};
+        byte[] b = {(byte) 0xd0, 0x0f};
+        assertArrayEquals(new long[]{1000, 300, 0, 0, 0, 0, 0, 0, 0, 0}, Timings.decodeMicros(a));
+        List<Timings.Row> rows = Timings.summarise(List.of(a, b));
+        assertEquals(1.5, rows.get(0).meanMillis, 0.0001);
+        assertEquals(2.0, rows.get(0).maxMillis, 0.0001);
+        assertEquals(0.15, rows.get(1).meanMillis, 0.0001);
+        Timings.Row total = rows.get(rows.size() - 1);
+        assertEquals("Total", total.phase);
+        assertEquals(1.65, total.meanMillis, 0.0001);
+        assertEquals(2.0, total.maxMillis, 0.0001);
+    }
+}
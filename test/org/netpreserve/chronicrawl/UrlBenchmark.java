@@ -0,0 +1,74 @@
+package org.netpreserve.chronicrawl;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Url construction and id hashing. Run with -prof gc to see allocation per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UrlBenchmark {
+    private final String string = "https://www.example.org/news/2020/08/some-article-title?page=2&ref=home";
+    private Url url;
+    private Location location;
+
+    @Setup
+    public void setup() {
+        url = new Url(string);
+        location = new Location(url.originId(), url.pathId(), url.origin(), url.pathref(), Location.Type.PAGE, 1,
+                null, null, Instant.EPOCH, null, null);
+    }
+
+    @Benchmark
+    public Url construct() {
+        return new Url(string);
+    }
+
+    @Benchmark
+    public void idsFirstCall(Blackhole bh) {
+        Url copy = url.withoutFragment();
+        bh.consume(copy.originId());
+        bh.consume(copy.pathId());
+    }
+
+    @Benchmark
+    public void idsRepeated(Blackhole bh) {
+        bh.consume(url.originId());
+        bh.consume(url.pathId());
+    }
+
+    @Benchmark
+    public long hash() {
+        return Url.hash(string);
+    }
+
+    @Benchmark
+    public void locationRow(Blackhole bh) {
+        Location row = new Location(location.originId, location.pathId, url.origin(), url.pathref(),
+                Location.Type.PAGE, 1, null, null, Instant.EPOCH, null, null);
+        bh.consume(row.originId);
+        bh.consume(row.pathId);
+    }
+
+    /**
+     * A row whose url is then used, as the crawler does for the location it's about to fetch. The ids should come
+     * from the row rather than being rehashed.
+     */
+    @Benchmark
+    public void locationRowUrl(Blackhole bh) {
+        Location row = new Location(location.originId, location.pathId, url.origin(), url.pathref(),
+                Location.Type.PAGE, 1, null, null, Instant.EPOCH, null, null);
+        Url rowUrl = row.url();
+        bh.consume(rowUrl.toString());
+        bh.consume(rowUrl.originId());
+        bh.consume(row.url() == rowUrl);
+    }
+}
@@ -0,0 +1,37 @@
+package org.netpreserve.chronicrawl;
+
+import net.jpountz.xxhash.XXHashFactory;
+import org.junit.Test;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+
+public class UrlTest {
+    @Test
+    public void hashMatchesUtf8Bytes() {
+        for (String s : new String[]{"", "http://example.org", "/café?q=中文", "/😀",
+                "/unpaired\ud83d", "/unpaired\ude00x"}) {
+            byte[] bytes = s.getBytes(UTF_8);
+            long expected = XXHashFactory.fastestJavaInstance().hash64().hash(bytes, 0, bytes.length, 0);
+            assertEquals(s, expected, Url.hash(s));
+        }
+    }
+
+    @Test
+    public void idsMatchStrings() {
+        Url url = new Url("HTTP://Example.ORG:8080/a/../b?x=1#frag");
+        assertEquals(Url.hash(url.origin()), url.originId());
+        assertEquals(Url.hash(url.pathref()), url.pathId());
+        assertEquals(Url.hash(url.toString()), url.id());
+    }
+
+    @Test
+    public void fromCanonical() {
+        Url url = new Url("http://example.org/b?x=1");
+        Url copy = Url.fromCanonical(url.origin(), url.pathref(), url.originId(), url.pathId());
+        assertEquals(url.toString(), copy.toString());
+        assertEquals(url.originId(), copy.originId());
+        assertEquals(url.pathId(), copy.pathId());
+        assertEquals(url.host(), copy.host());
+    }
+}
@@ -0,0 +1,102 @@
+package org.netpreserve.chronicrawl;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WebServerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void test() throws IOException {
+        Path file = folder.newFile().toPath();
+        Files.writeString(file, "0123456789");
+        var handler = (WebServer.Handler) request -> {
+            switch (request.method + " " + request.path) {
+                case "GET /hello world":
+                    return WebServer.Response.text(WebServer.OK, "hi " + request.parameters.get("name") +
+                            " " + request.cookie("c"));
+                case "POST /form":
+                    return WebServer.Response.text(WebServer.OK, request.parameters.toString());
+                case "GET /stream":
+                    return WebServer.Response.stream("text/plain", out -> {
+                        for (int i = 0; i < 10000; i++) out.write(("line " + i + "\n").getBytes(UTF_8));
+                    });
+                case "GET /file":
+                case "HEAD /file":
+                    return WebServer.Response.file("text/plain", FileChannel.open(file), 2, 5);
+                default:
+                    return WebServer.Response.text(WebServer.NOT_FOUND, "not found");
+            }
+        };
+        try (var server = new WebServer(new InetSocketAddress("127.0.0.1", 0), 2, handler)) {
+            String base = "http://127.0.0.1:" + server.port();
+
+            var connection = (HttpURLConnection) new URL(base + "/hello%20world?name=a&name=b%21").openConnection();
+            connection.setRequestProperty("Cookie", "x=1; c=2");
+            assertEquals("hi [a, b!] 2", read(connection));
+
+            connection = (HttpURLConnection) new URL(base + "/form?q=1").openConnection();
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write("a=x+y&b=".getBytes(UTF_8));
+            }
+            String body = read(connection);
+            assertTrue(body, body.contains("a=[x y]") && body.contains("b=[]") && body.contains("q=[1]"));
+
+            assertEquals("23456", read((HttpURLConnection) new URL(base + "/file").openConnection()));
+            String streamed = read((HttpURLConnection) new URL(base + "/stream").openConnection());
+            assertTrue(streamed.startsWith("line 0\n") && streamed.endsWith("line 9999\n"));
+            assertEquals(404, ((HttpURLConnection) new URL(base + "/missing").openConnection()).getResponseCode());
+
+            // two pipelined requests on one connection, the second asking to close
+            try (Socket socket = new Socket("127.0.0.1", server.port())) {
+                socket.getOutputStream().write(("GET /file HTTP/1.1\r\nHost: x\r\n\r\n" +
+                        "GET /file HTTP/1.1\r\nHost: x\r\nConnection: close\r\n\r\n").getBytes(UTF_8));
+                String raw = new String(socket.getInputStream().readAllBytes(), UTF_8);
+                assertEquals(2, raw.split("HTTP/1.1 200 OK", -1).length - 1);
+                assertTrue(raw.endsWith("\r\n\r\n23456"));
+            }
+
+            // HEAD gets the headers without a body
+            try (Socket socket = new Socket("127.0.0.1", server.port())) {
+                socket.getOutputStream().write("HEAD /file HTTP/1.1\r\nHost: x\r\nConnection: close\r\n\r\n".getBytes(UTF_8));
+                String raw = new String(socket.getInputStream().readAllBytes(), UTF_8);
+                assertTrue(raw, raw.contains("Content-Length: 5\r\n") && raw.endsWith("\r\n\r\n"));
+            }
+
+            // HTTP/1.0 clients get a stream delimited by closing the connection rather than chunked
+            try (Socket socket = new Socket("127.0.0.1", server.port())) {
+                socket.getOutputStream().write("GET /stream HTTP/1.0\r\nConnection: keep-alive\r\n\r\n".getBytes(UTF_8));
+                String raw = new String(socket.getInputStream().readAllBytes(), UTF_8);
+                assertFalse(raw, raw.contains("Transfer-Encoding"));
+                assertTrue(raw.contains("Connection: close\r\n"));
+                assertTrue(raw.contains("\r\n\r\nline 0\n") && raw.endsWith("line 9999\n"));
+            }
+        }
+    }
+
+    private static String read(HttpURLConnection connection) throws IOException {
+        try (InputStream stream = connection.getInputStream()) {
+            return new String(stream.readAllBytes(), UTF_8);
+        }
+    }
+}